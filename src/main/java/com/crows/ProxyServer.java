@@ -1,27 +1,43 @@
 package com.crows;
 
 import proxy.AdvancedProxy;
+import proxy.NioProxyServer;
+import proxy.ThreadMode;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Scanner;
 import java.util.concurrent.*;
 
 public class ProxyServer {
     private static final int PORT = 10088;
-    private static final ExecutorService executor = Executors.newFixedThreadPool(100);
+    // 线程模式，可通过 -Dproxy.threads=virtual 切换为虚拟线程
+    private static final ThreadMode THREAD_MODE = ThreadMode.of(System.getProperty("proxy.threads", "platform"));
+    // 处理引擎，可通过 -Dproxy.engine=nio 切换为非阻塞的 NIO 引擎
+    private static final String ENGINE = System.getProperty("proxy.engine", "blocking");
+    // NIO 引擎的事件循环线程数，默认每个 CPU 核心一个
+    private static final int LOOPS = Integer.getInteger("proxy.loops", Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService executor = THREAD_MODE.newExecutor(100);
 
     public static void main(String[] args)
     {
-        try (ServerSocket serverSocket = new ServerSocket(PORT); Scanner s = new Scanner(System.in)) {
+        if (ENGINE.equalsIgnoreCase("nio")) {
+            startNio();
+            return;
+        }
+        // 通过 ServerSocketChannel 接受连接，客户端 Socket 带有通道，隧道可以直接在通道之间转发
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open(); Scanner s = new Scanner(System.in)) {
+            serverChannel.bind(new InetSocketAddress(PORT));
             System.out.println("请输入用户名");
             // 登录用户名
             String user = s.nextLine().trim();
-            System.out.println("Proxy server started on port " + PORT);
+            ThreadMode.use(THREAD_MODE);
+            System.out.println("Proxy server started on port " + PORT + " (" + THREAD_MODE + " threads)");
 
             // 无限循环，等待客户端连接
             while (true) {
-                Socket clientSocket = serverSocket.accept();
+                Socket clientSocket = serverChannel.accept().socket();
                 clientSocket.setSoTimeout(10000); // 设置超时时间为10秒
                 // 这里默认为ALL，即所有用户和域名都可访问
                 // 如果需要限制访问权限，则可将"ALL"替换为任意其他字符串
@@ -29,4 +45,20 @@ public class ProxyServer {
             }
         } catch (IOException ignored) {}
     }
+
+    // 使用 NIO 引擎启动代理服务器
+    private static void startNio()
+    {
+        try (Scanner s = new Scanner(System.in)) {
+            System.out.println("请输入用户名");
+            // 登录用户名
+            String user = s.nextLine().trim();
+            ThreadMode.use(THREAD_MODE);
+            // 这里默认为ALL，即所有用户和域名都可访问
+            new NioProxyServer(PORT, user, "ALL", LOOPS).start();
+        } catch (IOException ignored) {}
+        finally {
+            executor.shutdown();
+        }
+    }
 }
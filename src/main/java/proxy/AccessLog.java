@@ -0,0 +1,420 @@
+package proxy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 异步访问日志
+ * 每个请求结束时生成一条记录（方法、主机、状态码、字节数、缓存结果、各阶段耗时），
+ * 放入无锁的环形缓冲区后立即返回，由后台线程批量写入日志文件，文件超过大小上限后轮转
+ * 缓冲区满时丢弃记录并计数，请求线程从不等待磁盘或控制台
+ * 首部和报文体的调试跟踪按采样率单独开启，默认关闭
+ */
+public class AccessLog {
+    public static final String FILE = System.getProperty("proxy.log.file", "logs/access.log"); // 日志文件
+    public static final long MAX_FILE_SIZE = Long.getLong("proxy.log.maxFileSize", 10 * 1024 * 1024); // 单个文件最大10MB
+    public static final int MAX_FILES = Integer.getInteger("proxy.log.maxFiles", 5); // 保留5个轮转后的旧文件
+    public static final int CAPACITY = Integer.getInteger("proxy.log.capacity", 8192); // 缓冲区最多8192条，向上取2的幂
+    public static final int HEADER_SAMPLE = Integer.getInteger("proxy.trace.headers", 0); // 每N个请求跟踪一次首部，0表示关闭
+    public static final int BODY_SAMPLE = Integer.getInteger("proxy.trace.body", 0); // 每N个请求跟踪一次报文体，0表示关闭
+    public static final int BODY_BYTES = Integer.getInteger("proxy.trace.bodyBytes", 1024); // 报文体跟踪最多记录的字节数
+    private static final int BATCH = 256; // 每批最多写入的记录数
+    private static final long IDLE_PARK = 10_000_000L; // 缓冲区为空时等待10毫秒
+
+    private static final AccessLog SHARED = new AccessLog(FILE);
+
+    // 环形缓冲区：多个请求线程写入，后台线程读取
+    // 每个槽位的序号表示该槽位当前可以被哪一轮的写入或读取使用
+    private final Object[] slots;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // 下一个写入位置
+    private long head; // 下一个读取位置，只在持有 drainLock 时访问
+    private final ReentrantLock drainLock = new ReentrantLock(); // 后台线程与退出时的清空互斥
+
+    private final File file;
+    private Writer writer;
+    private long fileSize;
+    private boolean failed; // 日志文件无法打开，只报告一次
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+    private final StringBuilder line = new StringBuilder(256);
+
+    // 统计信息
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private long reportedDropped;
+
+    /**
+     * 缓存的处理结果
+     */
+    public enum CacheResult {
+        NONE,        // 不经过缓存，例如 POST、CONNECT
+        MISS,        // 缓存未命中
+        HIT,         // 缓存命中，直接返回
+        COALESCED,   // 与同时进行的相同请求合并，转发其响应
+        REVALIDATED, // 缓存经上游确认有效（304）后返回
+        EXPIRED,     // 缓存经上游确认已经失效，返回上游的新响应
+        STALE        // 返回过期的缓存：后台确认中（stale-while-revalidate）或目标服务器不可用（stale-if-error）
+    }
+
+    /**
+     * 一个请求的访问记录
+     * 在请求线程中创建，只保存原始数据，格式化在后台线程中进行
+     */
+    public static class Entry {
+        final long time;
+        final String client;
+        final String method;
+        final String host;
+        final String url;
+        final int status;
+        final long bytes;
+        final CacheResult cache;
+        final Timings timings;
+        final long totalNanos;
+
+        /**
+         * 构造函数
+         * @param client 客户端地址
+         * @param method 请求方法
+         * @param host 目标主机
+         * @param url 请求 URL
+         * @param status 返回给客户端的状态码，没有响应时为0
+         * @param bytes 返回给客户端的响应体字节数，响应体不完整时为-1
+         * @param cache 缓存的处理结果
+         * @param timings 各阶段耗时，会被复制
+         */
+        public Entry(String client, String method, String host, String url, int status, long bytes,
+                     CacheResult cache, Timings timings) {
+            this.time = System.currentTimeMillis();
+            this.client = client;
+            this.method = method;
+            this.host = host;
+            this.url = url;
+            this.status = status;
+            this.bytes = bytes;
+            this.cache = cache;
+            this.timings = timings.copy();
+            this.totalNanos = timings.elapsed();
+        }
+    }
+
+    /**
+     * 构造函数
+     * @param path 日志文件路径
+     */
+    public AccessLog(String path) {
+        int capacity = Integer.highestOneBit(Math.max(2, CAPACITY - 1)) << 1;
+        this.slots = new Object[capacity];
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.file = new File(path);
+
+        Thread thread = new Thread(this::writeLoop, "access-log");
+        thread.setDaemon(true);
+        thread.start();
+        // 退出时写完缓冲区中剩余的记录
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drainAll, "access-log-flush"));
+    }
+
+    /**
+     * @return 所有代理共用的访问日志
+     */
+    public static AccessLog shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return 本次请求是否跟踪首部
+     */
+    public static boolean sampleHeaders() {
+        return sample(HEADER_SAMPLE);
+    }
+
+    /**
+     * @return 本次请求是否跟踪报文体
+     */
+    public static boolean sampleBody() {
+        return sample(BODY_SAMPLE);
+    }
+
+    private static boolean sample(int rate) {
+        return rate > 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    /**
+     * 记录一个请求，不会阻塞
+     * @param entry 访问记录
+     */
+    public void log(Entry entry) {
+        offer(entry);
+    }
+
+    /**
+     * 记录一条跟踪信息，不会阻塞
+     * @param text 跟踪信息，可以包含多行
+     */
+    public void trace(String text) {
+        offer("TRACE " + text);
+    }
+
+    /**
+     * 记录一条运行信息，例如定期的统计信息，不会阻塞
+     * @param text 运行信息
+     */
+    public void info(String text) {
+        offer("INFO " + text);
+    }
+
+    // 放入环形缓冲区，缓冲区满时丢弃
+    private void offer(Object item) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequence.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[index] = item;
+                    sequence.set(index, pos + 1); // 发布给读取方
+                    return;
+                }
+            } else if (diff < 0) {
+                dropped.increment(); // 缓冲区已满
+                return;
+            }
+            // 其他线程已经占用了这个位置，重试
+        }
+    }
+
+    // 取出一条记录，缓冲区为空时返回 null，只在持有 drainLock 时调用
+    private Object poll() {
+        int index = (int) head & mask;
+        if (sequence.get(index) != head + 1) {
+            return null;
+        }
+        Object item = slots[index];
+        slots[index] = null;
+        sequence.set(index, head + mask + 1); // 槽位可供下一轮写入
+        head++;
+        return item;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK);
+            }
+        }
+    }
+
+    private void drainAll() {
+        while (drain() > 0) {
+            // 继续写入直到缓冲区为空
+        }
+    }
+
+    // 写入一批记录，返回写入的条数
+    private int drain() {
+        drainLock.lock();
+        try {
+            int count = 0;
+            Object item;
+            while (count < BATCH && (item = poll()) != null) {
+                write(item);
+                count++;
+            }
+            long droppedNow = dropped.sum();
+            if (droppedNow != reportedDropped) {
+                write("INFO 缓冲区已满，丢弃了 " + (droppedNow - reportedDropped) + " 条记录");
+                reportedDropped = droppedNow;
+                count++;
+            }
+            if (count > 0 && writer != null) {
+                writer.flush();
+            }
+            return count;
+        } catch (IOException e) {
+            System.err.println("写入访问日志时出错: " + e.getMessage());
+            closeWriter();
+            return 0;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private void write(Object item) throws IOException {
+        line.setLength(0);
+        if (item instanceof Entry) {
+            format((Entry) item);
+        } else {
+            line.append(dateFormat.format(new Date())).append(' ').append(item);
+            // 多行的跟踪信息以换行结尾时不再重复换行
+            if (line.charAt(line.length() - 1) == '\n') {
+                line.setLength(line.length() - 1);
+            }
+        }
+        line.append('\n');
+        if (!open()) {
+            return;
+        }
+        writer.write(line.toString());
+        fileSize += line.length();
+        written.increment();
+        if (fileSize >= MAX_FILE_SIZE) {
+            rotate();
+        }
+    }
+
+    // 时间 客户端 方法 主机 "URL" 状态码 字节数 缓存结果 total=… dns=… connect=… upstream=… transfer=…
+    private void format(Entry entry) {
+        line.append(dateFormat.format(new Date(entry.time))).append(' ')
+                .append(entry.client).append(' ')
+                .append(entry.method).append(' ')
+                .append(entry.host == null ? "-" : entry.host).append(' ')
+                .append('"').append(entry.url).append("\" ")
+                .append(entry.status == 0 ? "-" : String.valueOf(entry.status)).append(' ')
+                .append(entry.bytes < 0 ? "-" : String.valueOf(entry.bytes)).append(' ')
+                .append(entry.cache).append(' ')
+                .append(String.format("total=%.1fms ", entry.totalNanos / 1e6))
+                .append(entry.timings);
+    }
+
+    // 打开日志文件，失败时只报告一次，之后的记录被丢弃
+    private boolean open() {
+        if (writer != null) {
+            return true;
+        }
+        if (failed) {
+            return false;
+        }
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+            fileSize = file.length();
+            return true;
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("无法打开访问日志 " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // access.log -> access.log.1 -> access.log.2 ...，超过 MAX_FILES 的旧文件被删除
+    private void rotate() {
+        closeWriter();
+        String path = file.getPath();
+        new File(path + "." + MAX_FILES).delete();
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            File from = new File(path + "." + i);
+            if (from.exists()) {
+                from.renameTo(new File(path + "." + (i + 1)));
+            }
+        }
+        if (MAX_FILES > 0) {
+            file.renameTo(new File(path + ".1"));
+        } else {
+            file.delete();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {}
+        }
+        writer = null;
+        fileSize = 0;
+    }
+
+    /**
+     * @return 因缓冲区已满而丢弃的记录数
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return 已经写入文件的记录数
+     */
+    public long written() {
+        return written.sum();
+    }
+
+    /**
+     * 报文体跟踪
+     * 转发报文体时同时写入另一个输出流（可以为 null），并保留开头的 BODY_BYTES 个字节
+     */
+    public static class BodySample extends OutputStream {
+        private final OutputStream next;
+        private final byte[] prefix = new byte[BODY_BYTES];
+        private int length;
+        private long total;
+
+        /**
+         * 构造函数
+         * @param next 同时写入的输出流，例如缓存的副本，可以为 null
+         */
+        public BodySample(OutputStream next) {
+            this.next = next;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (next != null) {
+                next.write(b, off, len);
+            }
+            int n = Math.min(len, prefix.length - length);
+            System.arraycopy(b, off, prefix, length, n);
+            length += n;
+            total += len;
+        }
+
+        /**
+         * 生成跟踪信息，不可打印的字节以 \xHH 表示
+         * @param label 报文体的说明，例如 "request http://…"
+         * @return 跟踪信息
+         */
+        public String describe(String label) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("body ").append(label).append(" (").append(total).append(" bytes): ");
+            for (int i = 0; i < length; i++) {
+                int b = prefix[i] & 0xff;
+                if (b >= 0x20 && b < 0x7f && b != '\\') {
+                    builder.append((char) b);
+                } else {
+                    builder.append(String.format("\\x%02x", b));
+                }
+            }
+            if (total > length) {
+                builder.append("...");
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package proxy;
+
+import org.w3c.dom.*;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 访问策略
+ * 包括允许访问的网站、允许访问的用户以及钓鱼网站，网站列表支持子域名规则，见 DomainMatcher
+ * 配置来自 -Dproxy.config 指定的文件，默认为 src/main/resources/config.xml，都不存在时使用类路径中的 config.xml
+ * 只在启动和配置文件变化时解析一次，得到不可变的快照，所有连接共享
+ * 配置文件在文件系统中时由后台线程监视，变化后重新解析并整体替换快照；
+ * 正在处理的请求继续使用开始时取得的快照，解析失败时保留原来的快照
+ */
+public class AccessPolicy {
+    public static final long RELOAD_DELAY = Long.getLong("proxy.config.reloadDelay", 200); // 配置文件变化后等待200毫秒再加载，合并编辑器的多次写入
+
+    public static final String CONFIG_PATH = System.getProperty("proxy.config"); // 配置文件路径，未指定时使用 DEFAULT_PATH
+    public static final String DEFAULT_PATH = "src/main/resources/config.xml";
+
+    private static final String CONFIG = "config.xml";
+    private static final Path FILE = configFile();
+    private static volatile AccessPolicy current = load();
+
+    static {
+        if (FILE != null) {
+            Thread thread = new Thread(AccessPolicy::watch, "config-watch");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private final DomainMatcher allowedHosts;
+    private final Set<String> allowedUsers;
+    private final DomainMatcher fishingHosts;
+
+    private AccessPolicy(List<String> allowedHosts, List<String> allowedUsers, List<String> fishingHosts) {
+        this.allowedHosts = new DomainMatcher(allowedHosts);
+        this.allowedUsers = Set.copyOf(allowedUsers);
+        this.fishingHosts = new DomainMatcher(fishingHosts);
+    }
+
+    /**
+     * 当前的访问策略快照，每个请求开始时取得一次
+     * @return 访问策略
+     */
+    public static AccessPolicy current() {
+        return current;
+    }
+
+    /**
+     * 加载配置文件：在文件系统中时直接读取文件，否则从类路径读取
+     * 加载失败时返回空策略
+     * @return 访问策略
+     */
+    public static AccessPolicy load() {
+        try {
+            if (FILE != null) {
+                return parse(FILE);
+            }
+            InputStream in = AccessPolicy.class.getClassLoader().getResourceAsStream(CONFIG);
+            if (in == null) {
+                throw new IOException("Unable to find file: "
+                        + (CONFIG_PATH != null ? Paths.get(CONFIG_PATH).toAbsolutePath() + ", " : "")
+                        + Paths.get(DEFAULT_PATH).toAbsolutePath() + ", classpath:" + CONFIG);
+            }
+            return parse(in);
+        } catch (Exception e) {
+            System.err.println("加载访问策略失败: " + e.getMessage());
+            return new AccessPolicy(List.of(), List.of(), List.of());
+        }
+    }
+
+    // 要读取和监视的配置文件：-Dproxy.config 指定的文件，其次是源码目录中的 config.xml（直接编辑的是这个文件，
+    // 而不是 Maven 复制到 target/classes 的副本），最后是类路径中的 config.xml；在 jar 中或都不存在时返回 null（不监视）
+    private static Path configFile() {
+        if (CONFIG_PATH != null) {
+            Path file = Paths.get(CONFIG_PATH).toAbsolutePath();
+            if (Files.isRegularFile(file)) {
+                return file;
+            }
+            System.err.println("配置文件不存在: " + file + "，使用默认的配置文件");
+        }
+        Path file = Paths.get(DEFAULT_PATH).toAbsolutePath();
+        if (Files.isRegularFile(file)) {
+            return file;
+        }
+        URL url = AccessPolicy.class.getClassLoader().getResource(CONFIG);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return Paths.get(url.toURI());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static AccessPolicy parse(Path file) throws Exception {
+        return parse(Files.newInputStream(file));
+    }
+
+    private static AccessPolicy parse(InputStream inputStream) throws Exception {
+        // 创建文档构建器
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder builder = factory.newDocumentBuilder();
+
+        // 解析 XML 文件
+        Document document;
+        try (InputStream in = inputStream) {
+            document = builder.parse(in);
+        }
+        document.getDocumentElement().normalize();
+
+        // 加载所有的 website、user 和 fish 节点
+        return new AccessPolicy(readElements(document, "website"), readElements(document, "user"),
+                readElements(document, "fish"));
+    }
+
+    // 读取指定标签的所有节点内容
+    private static List<String> readElements(Document document, String tagName) {
+        List<String> target = new ArrayList<String>();
+        NodeList nodeList = document.getElementsByTagName(tagName);
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Node node = nodeList.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                Element element = (Element) node;
+                target.add(element.getTextContent());
+            }
+        }
+        return target;
+    }
+
+    // 后台线程：监视配置文件所在的目录，配置文件被修改或替换（编辑器先写临时文件再改名）时重新加载
+    private static void watch() {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            FILE.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = changed(key);
+                if (!key.reset()) {
+                    System.err.println("配置文件所在的目录已经不存在，停止监视");
+                    return;
+                }
+                if (!changed) {
+                    continue;
+                }
+                Thread.sleep(RELOAD_DELAY);
+                // 合并等待期间的其他事件
+                for (WatchKey more = watcher.poll(); more != null; more = watcher.poll()) {
+                    more.pollEvents();
+                    more.reset();
+                }
+                reload();
+            }
+        } catch (IOException e) {
+            System.err.println("监视配置文件失败: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || FILE.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // 重新解析配置文件并替换快照，失败时（例如文件写了一半）保留原来的快照，下一次修改时再次加载
+    private static void reload() {
+        long start = System.nanoTime();
+        try {
+            AccessPolicy policy = parse(FILE);
+            current = policy;
+            System.out.println(String.format("访问策略已重新加载: %d 个网站, %d 个用户, %d 个钓鱼网站, 用时 %.1f ms",
+                    policy.allowedHosts.size(), policy.allowedUsers.size(), policy.fishingHosts.size(),
+                    (System.nanoTime() - start) / 1e6));
+        } catch (Exception e) {
+            System.err.println("重新加载访问策略失败，继续使用原来的配置: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 判断是否允许访问
+     * @param method 请求方法
+     * @param host 目标主机
+     * @param port 目标端口
+     * @param user 用户
+     * @param s 为"ALL"时不进行用户和网站过滤
+     * @return 是否允许访问
+     */
+    public boolean isAllowed(String method, String host, int port, String user, String s)
+    {
+        if(method == null || (!method.equals("GET") && !method.equals("POST")
+        && !method.equals("PUT") && !method.equals("DELETE")
+                &&!method.equals("HEAD")&&!method.equals("OPTIONS")&&!method.equals("CONNECT")))
+        {
+            return false;
+        }
+        // 只接收HTTP和HTTPS协议
+        if(host == null || (port!=80) && (port!=443))
+        {
+            return false;
+        }
+        if (!s.equals("ALL")) {
+            // 允许访问的网站和用户
+            return allowedHosts.matches(host) && user != null && allowedUsers.contains(user);
+        }
+        else
+        {
+            return true;
+        }
+    }
+
+    /**
+     * 判断是否是钓鱼网站
+     * @param host 目标主机
+     * @return 是否匹配钓鱼网站列表中的规则
+     */
+    public boolean isFishing(String host)
+    {
+        return fishingHosts.matches(host);
+    }
+}
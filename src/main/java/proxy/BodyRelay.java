@@ -0,0 +1,135 @@
+package proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 报文体的流式转发
+ * 支持三种边界：Content-Length、分块编码以及以连接关闭结束
+ * 数据到达后立即转发，不在内存中保存整个报文体；需要缓存时可同时复制一份解码后的数据（见 CacheFill）
+ */
+public class BodyRelay {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * 判断是否是 Transfer-Encoding 首部
+     * @param headerLine 首部行
+     * @return 是否是 Transfer-Encoding 首部
+     */
+    public static boolean isTransferEncoding(String headerLine) {
+        return headerLine.regionMatches(true, 0, "Transfer-Encoding:", 0, 18);
+    }
+
+    /**
+     * 转发报文体
+     * @param in 来源
+     * @param out 目标
+     * @param length Content-Length，-1 表示没有，此时为分块编码或以连接关闭结束
+     * @param chunked 来源是否使用分块编码
+     * @param encodeChunked 是否以分块编码发送给目标
+     * @param capture 同时保存解码后的报文体，可以为 null
+     * @return 转发的报文体字节数（解码后），报文体不完整时返回-1
+     */
+    public static long relay(HttpInput in, OutputStream out, long length, boolean chunked, boolean encodeChunked,
+                             OutputStream capture) throws IOException {
+        ChunkedInput decoder = chunked ? new ChunkedInput(in) : null;
+        InputStream body = chunked ? decoder : in;
+        ChunkedOutput encoder = encodeChunked ? new ChunkedOutput(out) : null;
+        OutputStream target = encodeChunked ? encoder : out;
+        long limit = chunked || length < 0 ? Long.MAX_VALUE : length;
+
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long total = 0;
+        int n;
+        while (total < limit && (n = body.read(chunk, 0, (int) Math.min(chunk.length, limit - total))) != -1) {
+            target.write(chunk, 0, n);
+            if (capture != null) {
+                capture.write(chunk, 0, n);
+            }
+            total += n;
+            // 来源暂时没有更多数据时才发送，避免每读一次就发送一个小包
+            if (body.available() == 0) {
+                out.flush();
+            }
+        }
+        // 以连接关闭结束的报文体读到结束即为完整
+        boolean complete = chunked ? decoder.isDone() : (length < 0 || total == length);
+        if (encoder != null && complete) {
+            encoder.finish(chunked ? decoder.trailers() : Collections.<String>emptyList());
+        }
+        out.flush();
+        return complete ? total : -1;
+    }
+
+    /**
+     * 同时写入两个输出流，例如转发给合并的请求的副本和缓存的副本
+     * @param first 第一个输出流
+     * @param second 第二个输出流，可以为 null
+     * @return 输出流
+     */
+    public static OutputStream tee(OutputStream first, OutputStream second) {
+        if (second == null) {
+            return first;
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                first.write(b);
+                second.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                first.write(b, off, len);
+                second.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * 有大小上限的报文体副本，用于合并的请求
+     * 超过上限后丢弃已保存的数据，不再保存
+     */
+    public static class Capture extends ByteArrayOutputStream {
+        private final int limit;
+        private boolean overflowed;
+
+        /**
+         * 构造函数
+         * @param limit 最多保存的字节数
+         */
+        public Capture(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (overflowed) {
+                return;
+            }
+            if (count + len > limit) {
+                overflowed = true;
+                buf = new byte[0];
+                count = 0;
+                return;
+            }
+            super.write(b, off, len);
+        }
+
+        /**
+         * @return 报文体是否超过上限
+         */
+        public boolean overflowed() {
+            return overflowed;
+        }
+    }
+}
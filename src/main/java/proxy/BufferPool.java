@@ -0,0 +1,109 @@
+package proxy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 直接缓冲区池
+ * 缓冲区按2的幂分为若干规格，用完后归还复用，避免每次转发都分配新的缓冲区
+ * 直接缓冲区可以直接交给操作系统读写，不需要在 Java 堆和本地内存之间复制
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 8 * 1024;
+    public static final int MAX_SIZE = Integer.getInteger("proxy.buffer.maxSize", 256 * 1024); // 最大的缓冲区为256KB
+    public static final int MAX_POOLED = Integer.getInteger("proxy.buffer.maxPooled", 64); // 每种规格最多保留64个
+
+    private static final BufferPool SHARED = new BufferPool(MIN_SIZE, MAX_SIZE, MAX_POOLED);
+
+    private final int minSize;
+    private final int maxSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedDeque<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+
+    /**
+     * 构造函数
+     * @param minSize 最小的缓冲区大小，会向上取整为2的幂
+     * @param maxSize 最大的缓冲区大小，会向上取整为2的幂
+     * @param maxPooled 每种规格最多保留的空闲缓冲区数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minSize, int maxSize, int maxPooled) {
+        this.minSize = roundUp(minSize);
+        this.maxSize = Math.max(this.minSize, roundUp(maxSize));
+        this.maxPooled = maxPooled;
+        int classes = Integer.numberOfTrailingZeros(this.maxSize) - Integer.numberOfTrailingZeros(this.minSize) + 1;
+        this.free = new ConcurrentLinkedDeque[classes];
+        this.freeCount = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedDeque<ByteBuffer>();
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return 所有代理共用的缓冲区池
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return 最小的缓冲区大小
+     */
+    public int minSize() {
+        return minSize;
+    }
+
+    /**
+     * @return 最大的缓冲区大小
+     */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 获取一个清空的直接缓冲区，容量为不小于 size 的规格
+     * 使用完毕后应调用 release 归还
+     * @param size 需要的大小
+     * @return 缓冲区
+     */
+    public ByteBuffer acquire(int size) {
+        int index = indexFor(size);
+        ByteBuffer buffer = free[index].pollFirst();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(minSize << index);
+        }
+        freeCount[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，池已满或规格不符时直接丢弃
+     * @param buffer acquire 得到的缓冲区
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1 || capacity < minSize || capacity > maxSize) {
+            return;
+        }
+        int index = indexFor(capacity);
+        if (freeCount[index].incrementAndGet() > maxPooled) {
+            freeCount[index].decrementAndGet();
+            return;
+        }
+        free[index].offerFirst(buffer);
+    }
+
+    // 规格的序号，0 表示最小的规格
+    private int indexFor(int size) {
+        int rounded = Math.min(Math.max(roundUp(size), minSize), maxSize);
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    private static int roundUp(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+}
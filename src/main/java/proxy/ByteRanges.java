@@ -0,0 +1,322 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 范围请求（Range）
+ * 从完整的 200 缓存中返回 206 Partial Content：一个范围直接发送对应的片段，多个范围以 multipart/byteranges 发送；
+ * 没有可以满足的范围时返回 416；不是 bytes 单位、语法错误或 If-Range 与缓存不匹配时忽略 Range，返回完整的响应
+ * 片段直接从内存或段文件发送（transferTo 或 ByteBuffer 的视图），不复制响应体
+ * 重叠或相邻的范围合并后发送，合并后超过 MAX_RANGES 个时返回完整的响应，避免大量小片段
+ */
+public class ByteRanges {
+    public static final int MAX_RANGES = 16;
+    // 范围请求未命中缓存时，在后台获取不超过该大小的完整响应写入缓存，之后的范围请求直接从缓存返回；0表示不获取
+    public static final long COMPLETE_LIMIT = Long.getLong("proxy.cache.rangeComplete", CacheStore.MAX_OBJECT);
+
+    private final long length;   // 完整响应体的长度
+    private final long[] starts;
+    private final long[] ends;   // 包括最后一个字节
+    private final int count;
+    private final String contentType;
+    private final String boundary;
+
+    private ByteRanges(long length, long[] starts, long[] ends, int count, String contentType) {
+        this.length = length;
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+        this.contentType = contentType;
+        this.boundary = count > 1 ? Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE) : null;
+    }
+
+    /**
+     * 根据请求的 Range 和 If-Range 确定要从缓存返回的范围
+     * @param request 请求首部
+     * @param cached 缓存的响应
+     * @param decode 是否解压后发送；解压后的内容不能直接截取，此时忽略 Range
+     * @return 要返回的范围，没有可以满足的范围时 satisfiable() 为 false；需要返回完整的响应时返回 null
+     */
+    public static ByteRanges of(HeaderTable request, CachedResponse cached, boolean decode) {
+        String value = request.value(HeaderName.RANGE);
+        if (value == null || decode || KeepAlive.statusCode(cached.statusLine()) != 200) {
+            return null;
+        }
+        String ifRange = request.value(HeaderName.IF_RANGE);
+        if (ifRange != null && !ifRangeMatches(ifRange.trim(), cached)) {
+            return null;
+        }
+        value = value.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        long length = cached.bodyLength();
+        String[] specs = value.substring(6).split(",");
+        long[] starts = new long[specs.length];
+        long[] ends = new long[specs.length];
+        int count = 0;
+        boolean any = false;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue; // 允许空的列表元素
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first = parse(spec.substring(0, dash));
+            long last = parse(spec.substring(dash + 1));
+            long start;
+            long end;
+            if (dash == 0) {
+                // -n 表示最后 n 个字节
+                if (last < 0) {
+                    return null;
+                }
+                start = Math.max(0, length - last);
+                end = last == 0 ? -1 : length - 1;
+            } else {
+                if (first < 0 || (dash + 1 < spec.length() && (last < 0 || last < first))) {
+                    return null;
+                }
+                start = first;
+                end = dash + 1 == spec.length() ? length - 1 : Math.min(last, length - 1);
+            }
+            any = true;
+            if (start < length && start <= end) {
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+        }
+        if (!any) {
+            return null;
+        }
+        count = merge(starts, ends, count);
+        if (count > MAX_RANGES) {
+            return null;
+        }
+        return new ByteRanges(length, starts, ends, count, count > 1 ? contentType(cached) : null);
+    }
+
+    // 非负整数，为空或格式错误时返回-1
+    private static long parse(String value) {
+        value = value.trim();
+        if (value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        long result = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    // 按起点排序，合并重叠或相邻的范围，返回合并后的个数
+    private static int merge(long[] starts, long[] ends, int count) {
+        if (count < 2) {
+            return count;
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(starts[a], starts[b]));
+        long[] s = new long[count];
+        long[] e = new long[count];
+        int merged = 0;
+        for (int i : order) {
+            if (merged > 0 && starts[i] <= e[merged - 1] + 1) {
+                e[merged - 1] = Math.max(e[merged - 1], ends[i]);
+            } else {
+                s[merged] = starts[i];
+                e[merged] = ends[i];
+                merged++;
+            }
+        }
+        System.arraycopy(s, 0, starts, 0, merged);
+        System.arraycopy(e, 0, ends, 0, merged);
+        return merged;
+    }
+
+    // If-Range 是 ETag 时按强比较匹配（压缩保存的缓存发送的是弱 ETag，不匹配），
+    // 是日期时必须与 Last-Modified 相同，且 Last-Modified 至少比 Date 早1秒（强验证器）
+    private static boolean ifRangeMatches(String ifRange, CachedResponse cached) {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            String etag = cached.etag();
+            return etag != null && !cached.encoded() && !etag.startsWith("W/") && etag.equals(ifRange);
+        }
+        long since = CacheStore.parseHttpDate(ifRange);
+        long modified = CacheStore.parseHttpDate(cached.lastModified());
+        return since > 0 && since == modified && cached.date() >= modified + 1000;
+    }
+
+    private static String contentType(CachedResponse cached) {
+        for (String line : cached.headerLines()) {
+            if (line.regionMatches(true, 0, "Content-Type:", 0, 13)) {
+                return line.substring(13).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从 206 响应的 Content-Range 中取得完整响应体的长度
+     * @param contentRange Content-Range 首部的值，例如 "bytes 0-99/1000"
+     * @return 完整长度，未知（"*"）或格式错误时返回-1
+     */
+    public static long completeLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        return slash < 0 ? -1 : parse(contentRange.substring(slash + 1));
+    }
+
+    /**
+     * 范围请求未命中缓存、目标服务器返回 206 时，判断是否在后台获取完整的响应写入缓存
+     * @param request 请求首部
+     * @param response 206 响应的首部
+     * @return 完整长度已知、不超过 COMPLETE_LIMIT，且同样的 200 响应可以缓存时返回 true
+     */
+    public static boolean shouldComplete(HeaderTable request, HeaderTable response) {
+        long total = completeLength(response.value(HeaderName.CONTENT_RANGE));
+        return total > 0 && total <= COMPLETE_LIMIT && Freshness.isStorable(200, request, response);
+    }
+
+    /**
+     * @return 是否有可以满足的范围，没有时返回 416
+     */
+    public boolean satisfiable() {
+        return count > 0;
+    }
+
+    /**
+     * @return 是否以 multipart/byteranges 发送多个范围
+     */
+    public boolean multipart() {
+        return count > 1;
+    }
+
+    /**
+     * @return 完整响应体的长度
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return 只有一个范围时的 Content-Range 首部值，例如 "bytes 0-99/1000"
+     */
+    public String contentRange() {
+        return contentRange(0);
+    }
+
+    private String contentRange(int i) {
+        return "bytes " + starts[i] + "-" + ends[i] + "/" + length;
+    }
+
+    /**
+     * @return 多个范围时的 Content-Type 首部值
+     */
+    public String multipartType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    /**
+     * @return 206 响应体的字节数，多个范围时包括各部分的首部和分隔行
+     */
+    public long contentLength() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += ends[i] - starts[i] + 1;
+            if (count > 1) {
+                total += partHead(i).length;
+            }
+        }
+        return count > 1 ? total + closing().length : total;
+    }
+
+    // 多个范围时每部分之前的分隔行和首部，第一部分之前没有换行
+    private byte[] partHead(int i) {
+        StringBuilder head = new StringBuilder();
+        if (i > 0) {
+            head.append("\r\n");
+        }
+        head.append("--").append(boundary).append("\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        head.append("Content-Range: ").append(contentRange(i)).append("\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private byte[] closing() {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 发送各个范围的内容，用于阻塞引擎，片段由 CachedResponse.transferRange 直接从内存或段文件发送
+     * @param cached 缓存的响应
+     * @param out 客户端的输出流，之前写入的响应头一起发送
+     * @param target 客户端的通道
+     * @return 发送的字节数，小于 contentLength 说明段文件被截断
+     */
+    public long transfer(CachedResponse cached, OutputStream out, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        for (int i = 0; i < count; i++) {
+            if (count > 1) {
+                byte[] head = partHead(i);
+                out.write(head);
+                sent += head.length;
+            }
+            long size = ends[i] - starts[i] + 1;
+            long n = cached.transferRange(out, target, starts[i], size);
+            sent += n;
+            if (n < size) {
+                return sent;
+            }
+        }
+        if (count > 1) {
+            byte[] closing = closing();
+            out.write(closing);
+            out.flush();
+            sent += closing.length;
+        }
+        return sent;
+    }
+
+    /**
+     * 各个范围的只读缓冲区，用于 NIO 引擎；片段是响应体缓冲区的视图，不复制
+     * @param body 完整响应体的只读缓冲区，见 CachedResponse.body
+     * @return 按顺序发送的缓冲区
+     */
+    public List<ByteBuffer> buffers(ByteBuffer body) {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(count * 2 + 1);
+        for (int i = 0; i < count; i++) {
+            if (count > 1) {
+                buffers.add(ByteBuffer.wrap(partHead(i)));
+            }
+            int start = (int) Math.min(starts[i], body.limit());
+            int size = (int) Math.min(ends[i] - starts[i] + 1, body.limit() - start);
+            buffers.add(body.slice(body.position() + start, size));
+        }
+        if (count > 1) {
+            buffers.add(ByteBuffer.wrap(closing()));
+        }
+        return buffers;
+    }
+}
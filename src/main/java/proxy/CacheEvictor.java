@@ -0,0 +1,213 @@
+package proxy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 磁盘缓存的容量控制
+ * 段文件中有效缓存的总字节数超过 DISK_BUDGET 时，后台线程按以下顺序淘汰，直到降到预算的 LOW_WATERMARK：
+ * 先淘汰已经过期且没有 ETag、Last-Modified（无法向目标服务器确认）的缓存，
+ * 再按访问频率从低到高、同一频率级别内按最近访问时间从早到晚淘汰；淘汰之后压缩段文件释放磁盘空间
+ * 超过预算 1/MAX_OBJECT_FRACTION 的响应不写入磁盘，一个大响应不会挤掉大量小响应
+ * 请求线程只记录访问（不加锁）并在超过预算时唤醒后台线程，淘汰不会阻塞请求
+ */
+public class CacheEvictor {
+    public static final long DISK_BUDGET = Long.getLong("proxy.cache.diskBudget", 1024L * 1024 * 1024); // 磁盘缓存最多1GB
+    public static final double LOW_WATERMARK = 0.9; // 淘汰到预算的90%，避免每次写入都触发淘汰
+    public static final int MAX_OBJECT_FRACTION = 16; // 单个响应最多占预算的1/16
+    public static final long INTERVAL = Long.getLong("proxy.cache.evictInterval", 10000); // 每10秒检查一次
+
+    private final SegmentStore store;
+    private final ConcurrentHashMap<String, Usage> usage = new ConcurrentHashMap<String, Usage>();
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * 一个缓存的访问记录
+     * 多个请求线程同时更新时可能少计几次，淘汰只需要近似的频率
+     */
+    private static class Usage {
+        volatile long lastAccess;
+        volatile int hits;
+
+        Usage(long lastAccess) {
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    // 淘汰的候选，排序时使用遍历开始时的快照
+    private static class Candidate {
+        final String name;
+        final CacheIndex.Entry entry;
+        final boolean expired;  // 已经过期且无法确认
+        final int frequency;    // 访问次数的对数级别
+        final long lastAccess;
+
+        Candidate(String name, CacheIndex.Entry entry, Usage usage, long now) {
+            this.name = name;
+            this.entry = entry;
+            this.expired = entry.expires >= 0 && entry.expires <= now && entry.etag == null && entry.lastModified == null;
+            this.frequency = usage == null ? 0 : 32 - Integer.numberOfLeadingZeros(usage.hits);
+            this.lastAccess = usage == null ? entry.storedAt : usage.lastAccess;
+        }
+    }
+
+    private static final Comparator<Candidate> ORDER = Comparator
+            .comparing((Candidate c) -> !c.expired)
+            .thenComparingInt(c -> c.frequency)
+            .thenComparingLong(c -> c.lastAccess);
+
+    /**
+     * 构造函数，启动定期检查的后台线程
+     * @param store 段存储
+     */
+    public CacheEvictor(SegmentStore store) {
+        this.store = store;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-evict");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (INTERVAL > 0) {
+            executor.scheduleWithFixedDelay(this::evict, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 判断响应能否写入磁盘
+     * @param size 缓存内容的字节数
+     * @return 不超过单个响应的上限时返回 true
+     */
+    public boolean admits(long size) {
+        if (size <= DISK_BUDGET / MAX_OBJECT_FRACTION) {
+            return true;
+        }
+        skipped.increment();
+        return false;
+    }
+
+    /**
+     * 记录一次命中
+     * @param name 缓存键
+     */
+    public void touch(String name) {
+        Usage entry = usage.get(name);
+        if (entry == null) {
+            return; // 启动前写入的缓存在第一次写入或淘汰检查之前没有访问记录，按写入时间处理
+        }
+        entry.lastAccess = System.currentTimeMillis();
+        entry.hits++;
+    }
+
+    /**
+     * 记录一次写入，导致写入的请求也算一次访问；超过预算时唤醒后台线程
+     * @param name 缓存键
+     */
+    public void written(String name) {
+        Usage entry = new Usage(System.currentTimeMillis());
+        entry.hits = 1;
+        usage.put(name, entry);
+        if (store.liveBytes() > DISK_BUDGET) {
+            wake();
+        }
+    }
+
+    /**
+     * 唤醒后台线程检查，例如写入失败（磁盘可能已满）时；已经在等待执行时不重复提交
+     */
+    public void wake() {
+        if (pending.compareAndSet(false, true)) {
+            executor.execute(this::evict);
+        }
+    }
+
+    // 在后台线程中执行
+    private void evict() {
+        pending.set(false);
+        try {
+            if (store.liveBytes() <= DISK_BUDGET) {
+                // 有效缓存没有超过预算，但无效记录可能占满磁盘
+                if (store.diskBytes() > DISK_BUDGET) {
+                    store.reclaim();
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            long now = System.currentTimeMillis();
+            long target = (long) (DISK_BUDGET * LOW_WATERMARK);
+            List<Candidate> candidates = new ArrayList<Candidate>(store.size());
+            store.forEach((name, entry) -> candidates.add(new Candidate(name, entry, usage.get(name), now)));
+            candidates.sort(ORDER);
+            int count = 0;
+            long bytes = 0;
+            for (Candidate candidate : candidates) {
+                if (store.liveBytes() <= target) {
+                    break;
+                }
+                if (CacheStore.evict(candidate.name, candidate.entry)) {
+                    usage.remove(candidate.name);
+                    count++;
+                    bytes += candidate.entry.size;
+                    if (candidate.expired) {
+                        expired.increment();
+                    }
+                }
+            }
+            evictions.add(count);
+            evictedBytes.add(bytes);
+            // 访问次数减半，很久以前的热点逐渐让位给最近的热点；同时清除已经删除的缓存的访问记录
+            usage.entrySet().removeIf(e -> store.get(e.getKey()) == null);
+            for (Usage entry : usage.values()) {
+                entry.hits >>= 1;
+            }
+            store.reclaim();
+            AccessLog.shared().info(String.format("cache evicted %d entries (%d bytes) in %.1fms, live=%d budget=%d",
+                    count, bytes, (System.nanoTime() - start) / 1e6, store.liveBytes(), DISK_BUDGET));
+        } catch (RuntimeException e) {
+            System.err.println("淘汰磁盘缓存时出错: " + e);
+        }
+    }
+
+    /**
+     * @return 统计信息
+     */
+    public Stats stats() {
+        return new Stats(evictions.sum(), evictedBytes.sum(), expired.sum(), skipped.sum(), DISK_BUDGET);
+    }
+
+    /**
+     * 磁盘缓存淘汰的统计信息
+     */
+    public static class Stats {
+        public final long evictions;    // 淘汰的缓存数
+        public final long evictedBytes; // 淘汰的字节数
+        public final long expired;      // 其中已经过期且无法确认的缓存数
+        public final long skipped;      // 超过单个响应上限而没有写入的响应数
+        public final long budget;       // 磁盘预算
+
+        Stats(long evictions, long evictedBytes, long expired, long skipped, long budget) {
+            this.evictions = evictions;
+            this.evictedBytes = evictedBytes;
+            this.expired = expired;
+            this.skipped = skipped;
+            this.budget = budget;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("evictions=%d bytes=%d expired=%d skipped=%d budget=%d",
+                    evictions, evictedBytes, expired, skipped, budget);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 正在写入缓存的响应体
+ * 转发响应体的同时写入这里：前 BUFFER_SIZE 字节保存在内存中，更长的响应体写入缓存目录下 tmp/ 中的临时文件，
+ * 无论响应体多大都只占用固定的内存；超过上限或写入临时文件失败时删除临时文件、不再保存，转发不受影响
+ * 响应体完整之后由 CacheStore.write 一次追加到段文件并更新索引，查找缓存的请求看不到写了一半的内容
+ * 只由一个线程写入；关闭时删除临时文件，可以重复关闭
+ */
+public class CacheFill extends OutputStream {
+    public static final String DIRECTORY = "tmp";
+    public static final int BUFFER_SIZE = 64 * 1024; // 内存缓冲区64KB，更小的响应体不创建临时文件
+
+    private static final File TEMP = new File(CacheStore.CACHE_PATH, DIRECTORY);
+
+    static {
+        // 上次退出时没有完成的临时文件
+        File[] leftovers = TEMP.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+        TEMP.mkdirs();
+    }
+
+    private final long limit;
+    private byte[] buffer = new byte[0];
+    private int buffered;
+    private FileChannel channel; // 超过内存缓冲区后才创建
+    private long length;
+    private boolean aborted;
+
+    /**
+     * 构造函数
+     * @param limit 最多保存的字节数，超过后放弃保存
+     */
+    public CacheFill(long limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (aborted) {
+            return;
+        }
+        if (length + len > limit) {
+            abort();
+            return;
+        }
+        try {
+            if (buffered + len > BUFFER_SIZE) {
+                spill();
+            }
+            if (len > BUFFER_SIZE) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+            } else {
+                if (buffered + len > buffer.length) {
+                    // 缓冲区按需增长，小响应只占用很少的内存
+                    buffer = Arrays.copyOf(buffer, Math.min(BUFFER_SIZE, Math.max(buffered + len, buffer.length * 2)));
+                }
+                System.arraycopy(b, off, buffer, buffered, len);
+                buffered += len;
+            }
+            length += len;
+        } catch (IOException e) {
+            System.err.println("写入缓存临时文件失败: " + e.getMessage());
+            abort();
+        }
+    }
+
+    // 把内存缓冲区中的数据写入临时文件
+    private void spill() throws IOException {
+        if (channel == null) {
+            File file = File.createTempFile("fill", ".tmp", TEMP);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        writeFully(ByteBuffer.wrap(buffer, 0, buffered));
+        buffered = 0;
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        if (channel == null) {
+            spill();
+        }
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * 放弃保存，删除临时文件，之后的写入被忽略
+     */
+    public void abort() {
+        close();
+    }
+
+    /**
+     * @return 是否已经放弃保存（超过上限、写入临时文件失败或已经关闭）
+     */
+    public boolean aborted() {
+        return aborted;
+    }
+
+    /**
+     * @return 已经写入的字节数
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * 读取保存的全部内容，只用于较小的响应体
+     * @return 响应体
+     */
+    public byte[] toByteArray() throws IOException {
+        if (channel == null) {
+            return Arrays.copyOf(buffer, buffered);
+        }
+        byte[] data = new byte[(int) length];
+        try (InputStream in = input()) {
+            int n = in.readNBytes(data, 0, data.length);
+            if (n < data.length) {
+                throw new IOException("缓存临时文件被截断");
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 从头读取保存的内容，例如压缩时
+     * @return 输入流，关闭时不删除临时文件
+     */
+    public InputStream input() throws IOException {
+        if (channel == null) {
+            return new ByteArrayInputStream(buffer, 0, buffered);
+        }
+        spill();
+        InputStream in = Channels.newInputStream(channel.position(0));
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+                // 临时文件由 CacheFill 管理
+            }
+        };
+    }
+
+    /**
+     * 保存内容的临时文件，写入段文件时由内核直接复制
+     * @return 临时文件，内容在内存缓冲区中时返回 null
+     */
+    public FileChannel channel() throws IOException {
+        if (channel != null) {
+            spill();
+        }
+        return channel;
+    }
+
+    /**
+     * 删除临时文件，释放内存缓冲区，之后的写入被忽略
+     */
+    @Override
+    public void close() {
+        aborted = true;
+        buffer = new byte[0];
+        buffered = 0;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * 缓存的元数据索引
+ * 内存中保存所有缓存的键、所在的段和偏移、大小、Last-Modified、ETag、Date、过期时间和 Vary，
+ * 查找缓存时只查索引，不需要访问文件系统
+ * 索引的变化追加写入二进制日志（index.journal），启动时顺序读取即可恢复；日志中的无效记录过多时压缩为快照
+ * 正常退出时在日志末尾写入关闭标记，没有关闭标记说明上次异常退出，由 SegmentStore 扫描段文件重建索引
+ */
+public class CacheIndex {
+    public static final String JOURNAL = "index.journal";
+    private static final int MAGIC = 0x50434958; // "PCIX"
+    private static final int VERSION = 2;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLOSE = 3;
+    private static final int MAX_RECORD = 1024 * 1024; // 单条记录的上限，超过说明日志已损坏
+
+    private final File directory;
+    private final File journalFile;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ReentrantLock journalLock = new ReentrantLock();
+    private final boolean clean;
+    private DataOutputStream journal;
+    private long records; // 日志中的记录数，用于判断是否需要压缩
+
+    /**
+     * 一个缓存的元数据
+     */
+    public static class Entry {
+        public final int segment;         // 所在的段
+        public final long offset;         // 缓存内容在段文件中的偏移
+        public final long size;           // 缓存内容的字节数（响应头和响应体）
+        public final long bodyOffset;     // 响应体相对缓存内容开头的偏移
+        public final long storedAt;       // 收到响应的时间（毫秒）
+        public final long date;           // Date 首部的时间（毫秒），没有时为-1
+        public final long expires;        // 过期时间（毫秒），未知时为-1
+        public final String lastModified; // 没有时为 null
+        public final String etag;         // 没有时为 null
+        public final String vary;         // 没有时为 null
+
+        Entry(int segment, long offset, long size, long bodyOffset, long storedAt, long date, long expires,
+              String lastModified, String etag, String vary) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.bodyOffset = bodyOffset;
+            this.storedAt = storedAt;
+            this.date = date;
+            this.expires = expires;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.vary = vary;
+        }
+
+        /**
+         * 由解析好的缓存响应创建
+         * @param response 缓存的响应
+         * @param segment 所在的段
+         * @param offset 缓存内容在段文件中的偏移
+         * @param storedAt 收到响应的时间
+         * @return 索引条目
+         */
+        public static Entry of(CachedResponse response, int segment, long offset, long storedAt) {
+            return new Entry(segment, offset, response.size(), response.bodyOffset(), storedAt, response.date(),
+                    response.expires(), response.lastModified(), response.etag(), response.vary());
+        }
+
+        /**
+         * 压缩时缓存内容被复制到新的位置
+         * @param segment 新的段
+         * @param offset 新的偏移
+         * @return 新的索引条目
+         */
+        public Entry moveTo(int segment, long offset) {
+            return new Entry(segment, offset, size, bodyOffset, storedAt, date, expires, lastModified, etag, vary);
+        }
+    }
+
+    /**
+     * 构造函数，读取日志恢复索引
+     * 之后需要调用 open() 才开始写入日志
+     * @param directory 缓存目录
+     */
+    public CacheIndex(String directory) {
+        this.directory = new File(directory);
+        this.directory.mkdirs();
+        this.journalFile = new File(this.directory, JOURNAL);
+        this.clean = load();
+    }
+
+    /**
+     * 压缩日志并开始记录之后的变化，正常退出时写入关闭标记
+     */
+    public void open() {
+        try {
+            compact();
+        } catch (IOException e) {
+            System.err.println("无法写入缓存索引: " + e.getMessage());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "cache-index-close"));
+    }
+
+    /**
+     * @return 上次是否正常退出；为 false 时索引可能缺少最后写入的缓存，需要重建
+     */
+    public boolean clean() {
+        return clean;
+    }
+
+    /**
+     * @param name 缓存键
+     * @return 索引条目，不存在时返回 null
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return 索引中的条目数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 遍历所有条目，遍历期间的修改可能可见也可能不可见
+     * @param action 对每个条目执行的操作
+     */
+    public void forEach(BiConsumer<String, Entry> action) {
+        entries.forEach(action);
+    }
+
+    /**
+     * 用重建的条目替换全部条目，在 open() 之前调用
+     * @param rebuilt 重建的条目
+     */
+    public void reset(Map<String, Entry> rebuilt) {
+        entries.clear();
+        entries.putAll(rebuilt);
+    }
+
+    /**
+     * 添加或更新一个条目，同时写入日志
+     * @param name 缓存键
+     * @param entry 索引条目
+     */
+    public void put(String name, Entry entry) {
+        entries.put(name, entry);
+        append(PUT, name, entry);
+    }
+
+    /**
+     * 删除一个条目，同时写入日志
+     * @param name 缓存键
+     */
+    public void remove(String name) {
+        if (entries.remove(name) != null) {
+            append(REMOVE, name, null);
+        }
+    }
+
+    // ---------- 日志 ----------
+
+    // 读取日志，返回上次是否正常关闭；日志末尾不完整或校验失败的记录被忽略
+    private boolean load() {
+        if (!journalFile.exists()) {
+            // 第一次启动
+            return true;
+        }
+        boolean clean = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("缓存索引格式不正确，重新建立索引");
+                entries.clear();
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[256];
+            while (true) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xffffffffL;
+                if (length <= 0 || length > MAX_RECORD) {
+                    break;
+                }
+                if (buffer.length < length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                crc.reset();
+                crc.update(buffer, 0, length);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                clean = apply(new DataInputStream(new java.io.ByteArrayInputStream(buffer, 0, length)));
+                records++;
+            }
+        } catch (EOFException e) {
+            // 日志结束，最后一条记录可能不完整
+        } catch (IOException e) {
+            System.err.println("读取缓存索引时出错: " + e.getMessage());
+        }
+        return clean;
+    }
+
+    // 应用一条记录，返回是否为关闭标记
+    private boolean apply(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        if (type == CLOSE) {
+            return true;
+        }
+        String name = record.readUTF();
+        if (type == REMOVE) {
+            entries.remove(name);
+        } else if (type == PUT) {
+            int segment = record.readInt();
+            long offset = record.readLong();
+            long size = record.readLong();
+            long bodyOffset = record.readLong();
+            long storedAt = record.readLong();
+            long date = record.readLong();
+            long expires = record.readLong();
+            String lastModified = readString(record);
+            String etag = readString(record);
+            String vary = readString(record);
+            entries.put(name, new Entry(segment, offset, size, bodyOffset, storedAt, date, expires,
+                    lastModified, etag, vary));
+        }
+        return false;
+    }
+
+    private void append(byte type, String name, Entry entry) {
+        journalLock.lock();
+        try {
+            if (journal == null) {
+                return;
+            }
+            writeRecord(journal, type, name, entry);
+            journal.flush();
+            records++;
+            // 无效记录超过有效条目数时压缩
+            if (records > 1024 && records > entries.size() * 2L) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("写入缓存索引时出错: " + e.getMessage());
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // 把当前的所有条目写成新的日志，替换旧日志
+    private void compact() throws IOException {
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            File temp = new File(directory, JOURNAL + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    writeRecord(out, PUT, e.getKey(), e.getValue());
+                }
+            }
+            Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = entries.size();
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    // 记录格式：长度、CRC32、类型、缓存键、条目的各个字段
+    private static void writeRecord(DataOutputStream out, byte type, String name, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(type);
+        if (type != CLOSE) {
+            record.writeUTF(name);
+        }
+        if (type == PUT) {
+            record.writeInt(entry.segment);
+            record.writeLong(entry.offset);
+            record.writeLong(entry.size);
+            record.writeLong(entry.bodyOffset);
+            record.writeLong(entry.storedAt);
+            record.writeLong(entry.date);
+            record.writeLong(entry.expires);
+            writeString(record, entry.lastModified);
+            writeString(record, entry.etag);
+            writeString(record, entry.vary);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeInt(bytes.size());
+        out.writeInt((int) crc.getValue());
+        bytes.writeTo((OutputStream) out);
+    }
+
+    // 可以为 null 的字符串，null 写为单独的标记
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // 正常退出，写入关闭标记
+    private void close() {
+        journalLock.lock();
+        try {
+            if (journal != null) {
+                writeRecord(journal, CLOSE, null, null);
+                journal.close();
+                journal = null;
+            }
+        } catch (IOException ignored) {
+        } finally {
+            journalLock.unlock();
+        }
+    }
+}
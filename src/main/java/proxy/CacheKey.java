@@ -0,0 +1,174 @@
+package proxy;
+
+/**
+ * 缓存的键
+ * 对规范化后的请求方法和 URL 计算128位哈希，得到32个十六进制字符的键：
+ * 协议和主机名不区分大小写，去掉默认端口和片段（#...），空路径视为 "/"，查询字符串原样保留
+ * 带 Vary 的响应按变体保存，变体的键由主键和 Vary 列出的请求首部的值再计算一次哈希
+ * 计算时逐字符更新哈希，不创建规范化的中间字符串
+ */
+public final class CacheKey {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int LENGTH = 32;
+
+    private CacheKey() {
+    }
+
+    /**
+     * 计算请求的缓存键
+     * @param method 请求方法
+     * @param url 完整的请求 URL，例如 http://example.com/a?b=1
+     * @return 缓存键
+     */
+    public static String of(String method, String url) {
+        Hasher hasher = new Hasher();
+        for (int i = 0; i < method.length(); i++) {
+            hasher.update(method.charAt(i));
+        }
+        hasher.update(' ');
+        int schemeEnd = url.indexOf("://");
+        int p = 0;
+        boolean https = false;
+        if (schemeEnd > 0) {
+            for (int i = 0; i < schemeEnd; i++) {
+                hasher.update(lower(url.charAt(i)));
+            }
+            https = schemeEnd == 5 && url.regionMatches(true, 0, "https", 0, 5);
+            p = schemeEnd + 3;
+        } else {
+            hasher.update('h');
+            hasher.update('t');
+            hasher.update('t');
+            hasher.update('p');
+        }
+        hasher.update(':');
+        int authorityEnd = p;
+        while (authorityEnd < url.length()) {
+            char c = url.charAt(authorityEnd);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            authorityEnd++;
+        }
+        // 默认端口与不写端口相同；IPv6 地址中的冒号在方括号内
+        int hostEnd = authorityEnd;
+        int colon = url.lastIndexOf(':', authorityEnd - 1);
+        if (colon >= p && colon > url.lastIndexOf(']', authorityEnd - 1)) {
+            int portLength = authorityEnd - colon - 1;
+            if (portLength == 0
+                    || (!https && portLength == 2 && url.startsWith("80", colon + 1))
+                    || (https && portLength == 3 && url.startsWith("443", colon + 1))) {
+                hostEnd = colon;
+            }
+        }
+        for (int i = p; i < hostEnd; i++) {
+            hasher.update(lower(url.charAt(i)));
+        }
+        for (int i = hostEnd; i < authorityEnd; i++) {
+            hasher.update(url.charAt(i));
+        }
+        int end = url.indexOf('#', authorityEnd);
+        if (end < 0) {
+            end = url.length();
+        }
+        if (authorityEnd == end || url.charAt(authorityEnd) != '/') {
+            hasher.update('/');
+        }
+        for (int i = authorityEnd; i < end; i++) {
+            hasher.update(url.charAt(i));
+        }
+        return hasher.key();
+    }
+
+    /**
+     * 计算变体的缓存键
+     * 请求首部的值去掉空白后参与计算，没有该首部与值为空不同
+     * @param key 主键
+     * @param vary 缓存的响应的 Vary 首部的值，例如 "Accept-Encoding, User-Agent"
+     * @param request 请求首部
+     * @return 变体的缓存键
+     */
+    public static String variant(String key, String vary, HeaderTable request) {
+        Hasher hasher = new Hasher();
+        for (int i = 0; i < key.length(); i++) {
+            hasher.update(key.charAt(i));
+        }
+        int p = 0;
+        int length = vary.length();
+        while (p < length) {
+            while (p < length && (vary.charAt(p) == ',' || vary.charAt(p) == ' ' || vary.charAt(p) == '\t')) {
+                p++;
+            }
+            int start = p;
+            while (p < length && vary.charAt(p) != ',' && vary.charAt(p) != ' ' && vary.charAt(p) != '\t') {
+                p++;
+            }
+            if (p > start) {
+                String name = vary.substring(start, p).toLowerCase();
+                hasher.update('\n');
+                for (int i = 0; i < name.length(); i++) {
+                    hasher.update(name.charAt(i));
+                }
+                hasher.update(':');
+                request.hashValues(name, hasher);
+            }
+        }
+        return hasher.key();
+    }
+
+    /**
+     * @param name 索引中的键
+     * @return 是否是本类生成的缓存键，旧版本以文件名为键
+     */
+    public static boolean isKey(String name) {
+        if (name.length() != LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+    }
+
+    /**
+     * 两路64位哈希：一路为 FNV-1a，另一路为乘法与循环移位，结束时各自经过 MurmurHash3 的混合函数
+     */
+    static final class Hasher {
+        private long h1 = 0xcbf29ce484222325L;
+        private long h2 = 0x9e3779b97f4a7c15L;
+        private int count;
+
+        void update(int c) {
+            h1 = (h1 ^ c) * 0x100000001b3L;
+            h2 = Long.rotateLeft((h2 + c) * 0xc2b2ae3d27d4eb4fL, 31);
+            count++;
+        }
+
+        String key() {
+            long a = mix(h1 ^ count);
+            long b = mix(h2 + a);
+            char[] chars = new char[LENGTH];
+            for (int i = 0; i < 16; i++) {
+                chars[i] = HEX[(int) (a >>> (60 - i * 4)) & 0xf];
+                chars[16 + i] = HEX[(int) (b >>> (60 - i * 4)) & 0xf];
+            }
+            return new String(chars);
+        }
+
+        private static long mix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
@@ -5,8 +5,11 @@ import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class CacheProxy implements Runnable{
@@ -16,15 +19,31 @@ public class CacheProxy implements Runnable{
     protected String host;
     protected int port;
     protected String version;
-    protected PrintWriter serverOutput = null;
-    protected PrintWriter clientOutput = null;
-    protected BufferedReader serverInput = null;
-    protected BufferedReader clientInput = null;
-    protected List<String> requestHeaders = new ArrayList<String>();
-    protected List<String> responseHeaders = new ArrayList<String>();
-    protected String responseBody;
-    protected final String CACHE_PATH = "src/main/resources/Cache/";
+    protected Socket serverSocket = null; // 当前使用的上游连接，重试时会被替换
+    protected HttpOutput serverOutput = null;
+    protected HttpOutput clientOutput = null;
+    protected HttpInput serverInput = null;
+    protected HttpInput clientInput = null;
+    protected boolean keepAlive; // 客户端连接是否可以继续使用
+    protected boolean upstreamReusable; // 上游连接是否可以归还连接池
+    protected boolean requestChunked; // 请求体是否使用分块编码
+    protected boolean responseChunked; // 上游的响应体是否使用分块编码
+    protected boolean clientChunked; // 是否以分块编码把响应体发送给客户端
+    protected final Timings timings = new Timings(); // 当前请求各阶段的耗时
+    protected int status; // 返回给客户端的状态码
+    protected long responseBytes; // 返回给客户端的响应体字节数
+    protected AccessLog.CacheResult cacheResult; // 缓存的处理结果
+    protected boolean traceHeaders; // 本次请求是否跟踪首部
+    protected boolean traceBody; // 本次请求是否跟踪报文体
+    protected String clientAddress;
+    protected final HeaderTable requestHeaders = new HeaderTable(); // 当前请求的首部，连接内复用
+    protected final HeaderTable responseHeaders = new HeaderTable(); // 当前响应的首部，连接内复用
+    protected String statusLine; // 当前响应的状态行
+    protected CacheFill cacheFill; // 转发响应体时同时写入的缓存副本
+    protected final String CACHE_PATH = CacheStore.CACHE_PATH;
     protected String cacheFile;
+    protected CachedResponse cached; // 查到的缓存，内存中或文件中
+    protected SingleFlight.Flight flight; // 作为领导者获取未缓存的 URL 时不为 null
     protected int TIMEOUT = 30000; // 超时时间为30秒
 
     public CacheProxy(Socket clientSocket) {
@@ -33,105 +52,42 @@ public class CacheProxy implements Runnable{
 
     @Override
     public void run() {
-        try (BufferedReader clientInput = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter clientOutput = new PrintWriter(clientSocket.getOutputStream(), true))
+        try (HttpInput clientInput = new HttpInput(clientSocket.getInputStream());
+             HttpOutput clientOutput = new HttpOutput(clientSocket.getOutputStream()))
         {
             this.clientInput = clientInput;
             this.clientOutput = clientOutput;
-            // 读取服务端信息
-            getServerInfo();
-            if(method == null || (!method.equals("GET") && !method.equals("POST")))
-            {
-                return;
-            }
-            if(host == null ||port!=80)
-            {
-                return;
-            }
-            // 连接到目标服务器
-            try (Socket serverSocket = new Socket(host, port);
-                 PrintWriter serverOutput = new PrintWriter(serverSocket.getOutputStream(), true);
-                 BufferedReader serverInput = new BufferedReader(new InputStreamReader(serverSocket.getInputStream(), StandardCharsets.UTF_8))) {
-
-                System.out.println("=====连接到目标服务器: " + host + ":" + port + " =====");
-                System.out.println("=====URL: " + url + " =====");
-                this.serverOutput = serverOutput;
-                this.serverInput = serverInput;
-                serverSocket.setSoTimeout(TIMEOUT); // 设置超时
-
-                if(method.equals("GET"))
-                {
-                    getRequestHeaders();// 读取请求头
-                    // 此时已经分析得到了服务器的信息，而且生成了缓存文件名
-                    // 先检查缓存
-                    if(checkCache())
-                    {
-                        System.out.println("!!!=====缓存命中: " + cacheFile + " =====!!!");
-                        // 缓存命中，需要向客户端发送请求，添加if-modified-since头
-                        sendIfModifiedSinceHeader();
-                        // 读取服务器响应
-                        // 若返回304 Not Modified 即返回值为-1，则缓存有效，将缓存发送给客户端
-                        // 若返回200 OK，即返回值大于0,则缓存无效，将服务器响应发送给客户端，并更新缓存
-                        int ResponseBodyLength = getServerResponseHeader();
-                        if(ResponseBodyLength==-1)
-                        {
-                            System.out.println("!!!=====缓存有效: " + cacheFile + " =====!!!");
-                            // 缓存有效，发送缓存给客户端
-                            // 但要注意缓存文件中Date需要更新
-                            sendCachedResponse();
-                            System.out.println("!!!=====缓存发送成功: " + cacheFile + " =====!!!");
-                        }
-                        else
-                        {
-                            System.out.println("!!!=====缓存无效: " + cacheFile + " =====!!!");
-                            // 缓存无效，需要将服务器响应发送给客户端，并更新缓存
-                            // 先发送响应头，即发送responseHeaders列表
-                            sendServerResponseHeader();
-                            // 然后再接收并发送响应体
-                            receiveAndSendServerResponseBody(ResponseBodyLength);
-                            // 此时响应头和响应体都在变量中，因此可以更新缓存
-                            updateCacheFile();
-                            System.out.println("!!!=====缓存更新: " + cacheFile + " =====!!!");
-
-                        }
-                    }
-                    else // 缓存未命中，则直接向服务器发送请求
-                    {
-                        System.out.println("=====缓存未命中: " + cacheFile + " =====");
-                        // 发送请求头 因为是GET请求，所以不需要发送请求体
-                        sendRequestHeaders();
-                        // 接下来接收服务器的响应头和响应体，发送并保存即可
-                        // 接收服务器响应头并保存
-                        int ResponseBodyLength = getServerResponseHeader();
-                        // 发送响应头
-                        sendServerResponseHeader();
-                        // 接收并发送服务器响应体并保存
-                        receiveAndSendServerResponseBody(ResponseBodyLength);
-                        // 更新缓存
-                        updateCacheFile();
-                        System.out.println("=====缓存更新: " + cacheFile + " =====");
-                    }
-
+            this.clientAddress = clientSocket.getInetAddress().getHostAddress();
+            int timeout = clientSocket.getSoTimeout();
+            // 循环处理同一连接上的请求，流水线请求按顺序处理，因此响应也按顺序返回
+            boolean first = true;
+            boolean next;
+            do {
+                // 等待下一个请求时使用空闲超时
+                if (!first) {
+                    clientSocket.setSoTimeout(KeepAlive.IDLE_TIMEOUT);
                 }
-                else // 处理POST请求
-                {
-                    // 发送请求头
-                    int requestBodyLength = sendRequestHeader();
-
-                    // 发送请求体（如果有的话）
-                    if (requestBodyLength > 0) {
-                        sendRequestBody(requestBodyLength);
+                resetRequest();
+                // 读取服务端信息
+                getServerInfo();
+                clientSocket.setSoTimeout(timeout);
+                first = false;
+                try {
+                    next = processRequest();
+                    // 一个响应结束，确保全部发送给客户端
+                    clientOutput.flush();
+                } finally {
+                    // 领导者没有正常结束时，让跟随者自己访问目标服务器
+                    if (flight != null) {
+                        flight.fail();
                     }
-
-                    // 读取目标服务器响应并转发给客户端
-                    int responseBodyLength = sendResponseHeader();
-
-                    // 发送响应体（如果有的话）
-                    if (responseBodyLength > 0) {
-                        sendResponseBody(responseBodyLength);
+                    // 没有写入缓存的副本删除临时文件
+                    if (cacheFill != null) {
+                        cacheFill.close();
                     }
+                    logRequest();
                 }
-            }
+            } while (next);
         }
         catch(IOException e) {
             e.printStackTrace();}
@@ -144,18 +100,388 @@ public class CacheProxy implements Runnable{
         }
     }
 
+    // 清除上一个请求的信息
+    // requestHeaders、responseHeaders 等只属于一个请求，不能跨请求保留
+    protected void resetRequest() {
+        method = null;
+        url = null;
+        host = null;
+        port = 0;
+        version = null;
+        cacheFile = null;
+        cached = null;
+        flight = null;
+        keepAlive = false;
+        upstreamReusable = false;
+        requestChunked = false;
+        responseChunked = false;
+        clientChunked = false;
+        timings.reset();
+        requestHeaders.clear();
+        responseHeaders.clear();
+        statusLine = null;
+        cacheFill = null;
+        status = 0;
+        responseBytes = 0;
+        cacheResult = AccessLog.CacheResult.NONE;
+        traceHeaders = AccessLog.sampleHeaders();
+        traceBody = AccessLog.sampleBody();
+    }
+
+    // 请求结束时写入访问日志
+    protected void logRequest() {
+        if (method == null) {
+            return;
+        }
+        AccessLog.shared().log(new AccessLog.Entry(clientAddress, method, host, url, status, responseBytes,
+                cacheResult, timings));
+    }
+
+    // 处理一个请求
+    // 返回客户端连接是否可以继续处理下一个请求
+    protected boolean processRequest() throws IOException {
+        if(method == null || (!method.equals("GET") && !method.equals("POST")))
+        {
+            return false;
+        }
+        if(host == null ||port!=80)
+        {
+            return false;
+        }
+        // GET请求先查缓存，缓存新鲜时不需要连接目标服务器
+        if(method.equals("GET"))
+        {
+            getRequestHeaders();// 读取请求头
+            if (serveFreshCache() || joinFlight()) {
+                return keepAlive;
+            }
+        }
+        // 从连接池获取到目标服务器的连接，目标服务器不可用但已经返回过期的缓存时为 null
+        serverSocket = connectUpstream();
+        if (serverSocket == null) {
+            return keepAlive;
+        }
+        boolean reusable = false;
+        try {
+            attachUpstream();
+
+            if(method.equals("GET"))
+            {
+                handleGetRequest();
+            }
+            else // 处理POST请求
+            {
+                // 发送请求头
+                long requestBodyLength = sendRequestHeader();
+
+                // 发送请求体（如果有的话）
+                if (requestBodyLength > 0 || requestChunked) {
+                    sendRequestBody(requestBodyLength);
+                }
+
+                // 读取目标服务器响应并转发给客户端
+                long responseBodyLength = sendResponseHeader();
+
+                // 发送响应体（如果有的话），-1 表示分块编码或以连接关闭结束
+                if (responseBodyLength != 0) {
+                    sendResponseBody(responseBodyLength);
+                }
+            }
+            // 响应已经完整读取且没有多余的数据时，连接才能复用
+            reusable = upstreamReusable && !serverInput.ready();
+        } finally {
+            releaseUpstream(reusable);
+        }
+        return keepAlive;
+    }
+
+    // 查找缓存，缓存新鲜时直接发送给客户端
+    // 缓存过期但在 stale-while-revalidate 时间窗口内时，同样直接发送，并在后台向目标服务器确认
+    // 返回是否已经发送；缓存过期或需要确认时 cached 中保存查到的缓存，由 handleGetRequest 向目标服务器确认
+    protected boolean serveFreshCache() {
+        // 带 Authorization 的请求不使用也不保存缓存
+        if (!Freshness.isCacheableRequest(requestHeaders)) {
+            cacheFile = null;
+            return false;
+        }
+        if (!checkCache()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (Freshness.canServeWithoutValidation(cached, requestHeaders, now)) {
+            cacheResult = AccessLog.CacheResult.HIT;
+        } else if (Freshness.canServeWhileRevalidating(cached, requestHeaders, now)) {
+            cacheResult = AccessLog.CacheResult.STALE;
+            // 请求首部在下一个请求开始时清空，后台确认使用副本
+            CacheRefresher.shared().refresh(cacheFile, cached, url, host, port, requestHeaders.copy());
+        } else {
+            return false;
+        }
+        sendCachedResponse();
+        return true;
+    }
+
+    // 从连接池获取到目标服务器的连接并设置超时，有可以返回的过期缓存时不必等待太久
+    // 连接失败时允许的话返回过期的缓存，此时返回 null
+    protected Socket connectUpstream() throws IOException {
+        Socket serverSocket;
+        try {
+            serverSocket = UpstreamPool.shared().acquire(host, port, timings);
+        } catch (IOException e) {
+            if (serveStaleOnError()) {
+                return null;
+            }
+            throw e;
+        }
+        setUpstreamTimeout(serverSocket);
+        return serverSocket;
+    }
+
+    private void setUpstreamTimeout(Socket serverSocket) throws IOException {
+        boolean fallback = cached != null && Freshness.canServeOnError(cached, System.currentTimeMillis());
+        serverSocket.setSoTimeout(fallback ? Math.min(TIMEOUT, Freshness.STALE_TIMEOUT) : TIMEOUT);
+    }
+
+    // 使用 serverSocket 的输入输出流，这里不关闭流，连接用完后归还连接池
+    protected void attachUpstream() throws IOException {
+        serverOutput = new HttpOutput(serverSocket.getOutputStream());
+        serverInput = new HttpInput(serverSocket.getInputStream());
+    }
+
+    // 归还当前的上游连接，重试时获取新连接失败则没有连接需要归还
+    protected void releaseUpstream(boolean reusable) {
+        if (serverSocket != null) {
+            UpstreamPool.shared().release(host, port, serverSocket, reusable);
+            serverSocket = null;
+        }
+    }
+
+    // 发送 GET 请求并读取响应头，有缓存时发送条件请求
+    // 上游在返回响应头之前关闭或重置连接时（通常是连接池中的空闲连接已经被目标服务器关闭），
+    // 在新建的连接上重试一次：GET 是幂等的，也没有请求体需要重发；超时不重试
+    private long exchangeGet() throws IOException {
+        boolean keepAlive = this.keepAlive;
+        try {
+            long length = sendGetAndReadHead();
+            if (statusLine != null) {
+                return length;
+            }
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException ignored) {
+            // 在新连接上重试
+        }
+        this.keepAlive = keepAlive;
+        releaseUpstream(false);
+        serverSocket = UpstreamPool.shared().acquire(host, port, timings, true);
+        setUpstreamTimeout(serverSocket);
+        attachUpstream();
+        return sendGetAndReadHead();
+    }
+
+    private long sendGetAndReadHead() throws IOException {
+        if (cached != null) {
+            sendIfModifiedSinceHeader();
+        } else {
+            sendRequestHeaders();
+        }
+        return getServerResponseHeader();
+    }
+
+    // 确认缓存时目标服务器不可用（连接失败、超时或 5xx），在 stale-if-error 时间窗口内返回过期的缓存
+    // 返回是否已经发送
+    protected boolean serveStaleOnError() {
+        if (cached == null || !Freshness.canServeOnError(cached, System.currentTimeMillis())) {
+            return false;
+        }
+        cacheResult = AccessLog.CacheResult.STALE;
+        sendCachedResponse();
+        return true;
+    }
+
+    // 缓存未命中时，同一 URL 正在被其他请求获取则跟随其响应，不再访问目标服务器
+    // 返回是否已经发送；没有正在进行的获取时成为领导者，跟随失败时自己访问目标服务器
+    // 范围请求的响应是部分内容，不参与合并
+    protected boolean joinFlight() throws IOException {
+        if (cached != null || cacheFile == null || requestHeaders.contains(HeaderName.RANGE)) {
+            return false;
+        }
+        flight = SingleFlight.shared().lead(cacheFile);
+        if (flight != null) {
+            return false;
+        }
+        SingleFlight.Flight leader = SingleFlight.shared().follow(cacheFile);
+        return leader != null && serveFromFlight(leader);
+    }
+
+    // 跟随领导者的响应：等待响应头，再随着数据到达转发响应体
+    // 领导者在发布响应头之前失败或等待超时时返回 false；发送响应体的途中失败时只能关闭客户端连接
+    protected boolean serveFromFlight(SingleFlight.Flight leader) throws IOException {
+        try {
+            if (!leader.awaitHeaders()) {
+                SingleFlight.shared().fallback();
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        cacheResult = AccessLog.CacheResult.COALESCED;
+        statusLine = leader.statusLine();
+        status = responseStatus();
+        long length = leader.contentLength();
+        if (length < 0) {
+            // 长度未知的响应体，HTTP/1.1 客户端以分块编码接收，HTTP/1.0 客户端只能以关闭连接结束
+            clientChunked = "HTTP/1.1".equals(version);
+            if (!clientChunked) {
+                keepAlive = false;
+            }
+        }
+        clientOutput.println(statusLine);
+        for (String line : leader.headers()) {
+            clientOutput.println(line);
+        }
+        if (length >= 0) {
+            clientOutput.println("Content-Length: " + length);
+        } else if (clientChunked) {
+            clientOutput.println("Transfer-Encoding: chunked");
+        }
+        clientOutput.println(KeepAlive.header(keepAlive));
+        clientOutput.println(); // 结束响应头
+
+        long start = System.nanoTime();
+        ChunkedOutput encoder = clientChunked ? new ChunkedOutput(clientOutput) : null;
+        OutputStream target = encoder != null ? encoder : clientOutput;
+        byte[] chunk = new byte[16 * 1024];
+        long offset = 0;
+        try {
+            int n;
+            while ((n = leader.read(offset, chunk)) > 0) {
+                target.write(chunk, 0, n);
+                offset += n;
+                clientOutput.flush();
+            }
+            if (encoder != null) {
+                encoder.finish(Collections.<String>emptyList());
+            }
+        } catch (IOException e) {
+            // 领导者失败，响应体不完整，客户端连接不能继续使用
+            keepAlive = false;
+        }
+        clientOutput.flush();
+        timings.add(Timings.Phase.TRANSFER, System.nanoTime() - start);
+        responseBytes = offset;
+        return true;
+    }
+
+    // 作为领导者时发布响应头，跟随者开始转发
+    // 不能共享的响应（不能缓存、有 Vary、超过缓存上限）让跟随者自己访问目标服务器
+    private void publishFlight(long ResponseBodyLength) {
+        if (flight == null) {
+            return;
+        }
+        if (statusLine == null || ResponseBodyLength > CacheStore.MAX_BODY || responseHeaders.contains(HeaderName.VARY)
+                || !Freshness.isStorable(responseStatus(), requestHeaders, responseHeaders)) {
+            flight.fail();
+            flight = null;
+            return;
+        }
+        List<String> headers = new ArrayList<String>();
+        for (int i = 0; i < responseHeaders.size(); i++) {
+            HeaderName name = responseHeaders.nameAt(i);
+            if (KeepAlive.isConnectionHeader(name) || name == HeaderName.CONTENT_LENGTH || name == HeaderName.TRANSFER_ENCODING) {
+                continue;
+            }
+            headers.add(responseHeaders.line(i));
+        }
+        flight.publish(statusLine, headers, ResponseBodyLength);
+    }
+
+    // 处理GET请求，优先使用缓存
+    // 调用前需要已经读取请求头、查找缓存并连接到目标服务器
+    protected void handleGetRequest() throws IOException {
+        // 此时已经分析得到了服务器的信息，而且生成了缓存键
+        if(cached != null)
+        {
+            long ResponseBodyLength;
+            try {
+                // 缓存已经过期，需要向服务器发送请求，添加if-modified-since头，然后读取服务器响应
+                // 若返回304 Not Modified，则缓存有效，将缓存发送给客户端
+                // 若返回200 OK等其他响应，则缓存无效，将服务器响应发送给客户端，并更新缓存
+                ResponseBodyLength = exchangeGet();
+            } catch (IOException e) {
+                // 连接中断或超时
+                upstreamReusable = false;
+                if (serveStaleOnError()) {
+                    return;
+                }
+                throw e;
+            }
+            // 目标服务器没有响应或出错时，允许的话返回过期的缓存，出错的响应不再读取
+            if ((statusLine == null || responseStatus() >= 500) && serveStaleOnError()) {
+                upstreamReusable = false;
+                return;
+            }
+            if(responseStatus()==304)
+            {
+                cacheResult = AccessLog.CacheResult.REVALIDATED;
+                // 缓存有效，用304响应的首部（Date、Cache-Control等）更新缓存，再发送给客户端
+                cached = CacheStore.freshen(cached, responseHeaders);
+                sendCachedResponse();
+            }
+            else
+            {
+                cacheResult = AccessLog.CacheResult.EXPIRED;
+                // 缓存无效，需要将服务器响应发送给客户端，并更新缓存
+                // 先发送响应头，即发送responseHeaders列表
+                sendServerResponseHeader();
+                // 然后再接收并发送响应体
+                receiveAndSendServerResponseBody(ResponseBodyLength);
+                // 此时响应头和响应体都在变量中，因此可以更新缓存
+                updateCacheFile();
+
+            }
+        }
+        else // 缓存未命中，则直接向服务器发送请求
+        {
+            if (cacheFile != null) {
+                cacheResult = AccessLog.CacheResult.MISS;
+            }
+            // 发送请求头 因为是GET请求，所以不需要发送请求体
+            // 接下来接收服务器的响应头和响应体，发送并保存即可
+            // 接收服务器响应头并保存
+            long ResponseBodyLength = exchangeGet();
+            // 作为领导者时，同时请求该 URL 的跟随者开始转发
+            publishFlight(ResponseBodyLength);
+            // 发送响应头
+            sendServerResponseHeader();
+            // 接收并发送服务器响应体并保存
+            receiveAndSendServerResponseBody(ResponseBodyLength);
+            // 更新缓存
+            updateCacheFile();
+            // 缓存写入后结束，之后的请求直接命中缓存
+            if (flight != null && responseBytes >= 0) {
+                flight.complete();
+            }
+        }
+    }
+
     public void getServerInfo() throws IOException {
         // 读取客户端请求
         String requestLine = null;
         try {
-            requestLine = clientInput.readLine();
-            System.out.println("第一行：" +requestLine);
+            // 跳过请求之间多余的空行
+            do {
+                requestLine = clientInput.readLine();
+            } while (requestLine != null && requestLine.isEmpty());
         } catch (SocketTimeoutException ignored) {}
         if (requestLine != null) {
+            timings.begin();
             String[] requestParts = requestLine.split(" ");
             method = requestParts[0]; // 请求方法
             url = requestParts[1]; // 请求 URL
             version = requestParts[2]; // HTTP 版本
+            keepAlive = KeepAlive.defaultFor(version);
 
             // 解析 URL
             // 这里只处理 http 和 https 协议，其他协议直接返回
@@ -164,8 +490,8 @@ public class CacheProxy implements Runnable{
                 url = "https://" + url;
             }
 
-            // 缓存文件名
-            cacheFile = CACHE_PATH + generateCacheFileName(url)+".txt";
+            // 缓存键
+            cacheFile = CacheStore.keyFor(method, url);
 
             // 将 URL 转换为 URL 对象
             URL targetUrl = null;
@@ -177,328 +503,427 @@ public class CacheProxy implements Runnable{
             }
             // 获取目标主机
             host = targetUrl.getHost();
-            System.out.println("目标主机：" + host);
             // 获取目标主机和端口
             port = targetUrl.getPort() == -1 ? (targetUrl.getProtocol().equals("https") ? 443 : 80) : targetUrl.getPort();
-            System.out.println("目标端口：" + port);
-        }
-    }
-
-    // 生成缓存文件名
-    public String generateCacheFileName(String url) {
-        if (url != null) {
-            // 去除前缀
-            String fileName = url.replaceAll("^(https?://)?", ""); // 移除 http:// 或 https://
-
-            // 替换非法字符
-            fileName = fileName.replaceAll("[^a-zA-Z0-9._-]", "_");
-
-            return fileName;
         }
-        return null;
     }
 
-    // 读取请求头到 requestHeaders 列表中
+    // 读取请求头到 requestHeaders 首部表中
     // GET请求使用
-    // 不包括空行，发送时需手动添加！
+    // 连接管理首部以及客户端的If-Modified-Since、If-None-Match在发送时跳过
     public void getRequestHeaders() throws IOException
     {
-        System.out.println("----------RequestHeader----------");
-        requestHeaders.add(method + " " + url + " " + version);
-        System.out.println(method + " " + url + " " + version);
+        // 请求头不完整时客户端连接不能继续使用
+        if (!clientInput.readHeaders(requestHeaders)) {
+            keepAlive = false;
+        }
+        keepAlive = KeepAlive.update(keepAlive, requestHeaders);
+        if (traceHeaders) {
+            AccessLog.shared().trace("request " + method + " " + url + " " + version + "\n" + requestHeaders);
+        }
+    }
 
-        String headerLine;
-        while ((headerLine = clientInput.readLine()) != null && !headerLine.isEmpty()) {
-            // 这里需要跳过If-Modified-Since头和If-None-Match头，因为它是由客户端添加的，不应该在缓存中查找
-            if (!headerLine.startsWith("If-Modified-Since") && !headerLine.startsWith("If-None-Match")) {
-                requestHeaders.add(headerLine);
-                System.out.println(headerLine);
-            }
+    // 请求头中的第 i 个首部是否转发给目标服务器
+    // 连接管理首部由代理处理；If-Modified-Since头和If-None-Match头是由客户端添加的，不应该在缓存中查找
+    // 确认缓存时不转发 Range 和 If-Range，取得完整的响应，范围由缓存返回
+    private boolean isForwardedRequestHeader(int i) {
+        HeaderName name = requestHeaders.nameAt(i);
+        if (cached != null && (name == HeaderName.RANGE || name == HeaderName.IF_RANGE)) {
+            return false;
         }
-        System.out.println("----------End----------");
+        return !KeepAlive.isConnectionHeader(name) && name != HeaderName.IF_MODIFIED_SINCE && name != HeaderName.IF_NONE_MATCH;
     }
 
-    // 检查缓存
+    // 检查缓存，先查内存再查文件，查到的缓存保存在 cached 中
     public boolean checkCache()
     {
-        File f = new File(cacheFile);
-        return f.exists();
+        cached = CacheStore.lookup(cacheFile, requestHeaders);
+        return cached != null;
     }
 
-    // 向客户端发送请求，添加if-modified-since头
+    // 向服务器发送条件请求，确认缓存是否仍然有效
+    // 转发客户端的请求首部，客户端自己的条件首部换成缓存的 ETag（If-None-Match）和 Last-Modified（If-Modified-Since）
     public void sendIfModifiedSinceHeader() throws IOException {
-        System.out.println("----------SendingIfModifiedSinceHeader----------");
-        serverOutput.println(requestHeaders.get(0));
-        System.out.println(requestHeaders.get(0));
-        serverOutput.println(requestHeaders.get(1));
-        System.out.println(requestHeaders.get(1));
+        serverOutput.println(method + " " + url + " " + version);
+        for (int i = 0; i < requestHeaders.size(); i++) {
+            if (isForwardedRequestHeader(i)) {
+                requestHeaders.writeLine(i, serverOutput);
+            }
+        }
 
+        // ETag 比修改时间更精确，服务器同时收到两者时优先比较 ETag
+        if (cached.etag() != null) {
+            serverOutput.println("If-None-Match: " + cached.etag());
+        }
         // 从cacheFile中读取If-Modified-Since头
         String ifModifiedSince = readIfModifiedSinceFromCacheFile();
         if (ifModifiedSince != null) {
-            serverOutput.println("If-modified-since: " + ifModifiedSince);
-            System.out.println("If-modified-since: " + ifModifiedSince);
-        } else {
-            System.out.println("No If-modified-since header found in cache file.");
+            serverOutput.println("If-Modified-Since: " + ifModifiedSince);
         }
 
+        // 与目标服务器保持连接，以便归还连接池
+        serverOutput.println(KeepAlive.header(true));
         serverOutput.println();// 结束请求头
-        System.out.println("----------End----------");
+        serverOutput.flush(); // 确保立即发送到目标服务器
     }
 
-    // 从cacheFile读取If-Modified-Since头
+    // 从缓存读取If-Modified-Since头，查找缓存时已经解析，不需要再读文件
     private String readIfModifiedSinceFromCacheFile() {
-        File cacheFileObj = new File(cacheFile);
-        if (!cacheFileObj.exists()) {
-            System.out.println("Cache file does not exist.");
-            return null;
-        }
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(cacheFileObj))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("Last-Modified")) {
-                    String[] headerParts = line.split(": ", 2); // 只分割成两个部分
-                    return headerParts[1];
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null; // 如果未找到返回null
+        return cached.lastModified();
     }
 
-    // 读取服务器请求的响应头
-    // 注意没有最后的空行，需手动添加！
-    // 返回-1表示Not Modified或者没有响应体，返回大于0的数为响应体长度
-    public int getServerResponseHeader() throws IOException {
-        String responseLine;
-        int ResponseBodyLength = -1;
+    // 读取服务器请求的响应头到 statusLine 和 responseHeaders 中
+    // 返回0表示没有响应体，返回-1表示分块编码或以连接关闭结束，返回大于0的数为响应体长度
+    public long getServerResponseHeader() throws IOException {
         // 读取响应头
-        System.out.println("----------ResponseHeader----------");
-        while ((responseLine = serverInput.readLine()) != null && !responseLine.isEmpty()) {
-            responseHeaders.add(responseLine);
-            System.out.println(responseLine);
-
-            String[] headerParts = responseLine.split(": ", 2); // 只分割成两个部分
-            if (headerParts[0].equalsIgnoreCase("Content-Length")) {
-                ResponseBodyLength = Integer.parseInt(headerParts[1]);
-            }
+        long start = System.nanoTime();
+        statusLine = serverInput.readLine();
+        boolean complete = statusLine != null && serverInput.readHeaders(responseHeaders);
+        timings.add(Timings.Phase.UPSTREAM, System.nanoTime() - start);
+        if (!complete) {
+            // 上游没有返回完整的响应头就关闭了连接
+            statusLine = null;
+            keepAlive = false;
+            upstreamReusable = false;
+            return 0;
+        }
+        if (traceHeaders) {
+            AccessLog.shared().trace("response " + url + "\n" + statusLine + "\n" + responseHeaders);
+        }
+        upstreamReusable = KeepAlive.update(KeepAlive.defaultFor(statusLine.split(" ", 2)[0]), responseHeaders);
+        responseChunked = responseHeaders.hasToken(HeaderName.TRANSFER_ENCODING, "chunked");
+        if (KeepAlive.isBodyless(method, statusLine)) {
+            responseChunked = false;
+            return 0; // 没有响应体
+        }
+        if (responseChunked) {
+            return -1; // 分块编码优先于 Content-Length
+        }
+        long ResponseBodyLength = responseHeaders.longValue(HeaderName.CONTENT_LENGTH);
+        // 没有 Content-Length 时响应体以连接关闭结束，上游连接不能复用
+        if (ResponseBodyLength < 0) {
+            upstreamReusable = false;
         }
-        System.out.println("----------End----------");
         return ResponseBodyLength;
     }
 
+    // 响应的状态码，没有响应时返回-1
+    protected int responseStatus() {
+        return KeepAlive.statusCode(statusLine);
+    }
+
     // 发送服务器的响应头
     // 只在缓存无效或者未命中时直接发送
     public void sendServerResponseHeader() throws IOException {
-        for (String headerLine : responseHeaders) {
-            clientOutput.println(headerLine);
+        if (statusLine == null) {
+            return; // 没有响应，客户端连接将被关闭
+        }
+        // 没有 Content-Length 的响应体以分块编码或连接关闭结束
+        boolean streaming = !KeepAlive.isBodyless(method, statusLine)
+                && (responseChunked || responseHeaders.longValue(HeaderName.CONTENT_LENGTH) < 0);
+        if (streaming) {
+            // HTTP/1.1 客户端以分块编码接收，客户端连接可以继续使用；HTTP/1.0 客户端只能以关闭连接结束
+            clientChunked = "HTTP/1.1".equals(version);
+            if (!clientChunked) {
+                keepAlive = false;
+            }
+        }
+        status = responseStatus();
+        clientOutput.println(statusLine);
+        for (int i = 0; i < responseHeaders.size(); i++) {
+            HeaderName name = responseHeaders.nameAt(i);
+            // 连接管理首部由代理处理，不转发
+            if (KeepAlive.isConnectionHeader(name)) {
+                continue;
+            }
+            if (streaming && (name == HeaderName.CONTENT_LENGTH || (!clientChunked && name == HeaderName.TRANSFER_ENCODING))) {
+                continue;
+            }
+            responseHeaders.writeLine(i, clientOutput);
+        }
+        if (clientChunked && !responseChunked) {
+            clientOutput.println("Transfer-Encoding: chunked");
         }
+        clientOutput.println(KeepAlive.header(keepAlive));
         clientOutput.println(); // 结束响应头
+        clientOutput.flush(); // 确保立即发送到客户端
     }
 
     // 接收并发送服务器的响应体
-    // 需要保存在responseBody变量中
-    public void receiveAndSendServerResponseBody(int ResponseBodyLength) throws IOException {
-        // 读取并转发响应体
-        if (ResponseBodyLength > 0) {
-            int totalBytesRead = 0; // 记录已读取的字节数
-            char[] buffer = new char[8192]; // 用于读取响应体的缓冲区
-            int bytesRead;
-            StringBuilder responseBodyBuilder = new StringBuilder();
-            System.out.println("----------ResponseBody----------");
-            System.out.println("长度为: " + ResponseBodyLength);
-
-            try {
-                // 继续读取，直到读取到的字节数大于或等于 Content-Length
-                while (totalBytesRead < ResponseBodyLength
-                        && (bytesRead = serverInput.read(buffer, 0, Math.min(buffer.length, ResponseBodyLength - totalBytesRead))) != 0) {
-                    clientOutput.print(new String(buffer, 0, bytesRead)); // 转发读取的内容
-                    clientOutput.flush(); // 确保立即发送到客户端
-                    System.out.print("读取字节数: " + bytesRead); // 打印每次读取的字节数
-
-                    // 记录到 StringBuilder 中
-                    responseBodyBuilder.append(new String(buffer, 0, bytesRead));
-                    totalBytesRead += bytesRead; // 更新已读取的字节数
-                    System.out.println(" 已读取总字节数: " + totalBytesRead); // 打印已读取的字节数
-                }
-            } catch (IOException e) {
-                System.out.println("读取的响应体中有中文字符......");
-            } finally {
-                System.out.println(".................EOF");
-                System.out.println("----------End----------");
-
-                // 记录响应体
-                responseBody = responseBodyBuilder.toString();
+    // 数据到达后立即转发，同时写入 cacheFill（固定大小的缓冲区加临时文件），超过缓存上限后只转发
+    public void receiveAndSendServerResponseBody(long ResponseBodyLength) throws IOException {
+        // 不能缓存的响应不保存副本
+        if (statusLine != null && cacheFile != null
+                && Freshness.isStorable(responseStatus(), requestHeaders, responseHeaders)) {
+            cacheFill = CacheStore.fill();
+        }
+        if (ResponseBodyLength == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        // 作为领导者时，响应体的副本同时转发给跟随者
+        OutputStream capture = flight == null ? cacheFill : BodyRelay.tee(flight, cacheFill);
+        AccessLog.BodySample sample = traceBody ? new AccessLog.BodySample(capture) : null;
+        long totalBytesRead = BodyRelay.relay(serverInput, clientOutput, ResponseBodyLength,
+                responseChunked, clientChunked, sample != null ? sample : capture);
+        timings.add(Timings.Phase.TRANSFER, System.nanoTime() - start);
+        responseBytes = totalBytesRead;
+        if (sample != null) {
+            AccessLog.shared().trace(sample.describe("response " + url));
+        }
+        // 响应体不完整时不能继续使用客户端连接和上游连接，也不能缓存
+        if (totalBytesRead < 0) {
+            keepAlive = false;
+            upstreamReusable = false;
+            if (cacheFill != null) {
+                cacheFill.abort();
             }
         }
     }
 
 
-    // 更新缓存，即将服务器的响应头和响应体写入缓存文件cacheFile中
+    // 更新缓存，即将服务器的响应头和 cacheFill 中的响应体写入缓存
+    // 没有完整读取响应体时不更新；不能缓存的响应（no-store、private等）不保存，并删除原有的缓存
+    // 范围请求未命中时收到的 206 不保存，在后台获取完整的响应，之后的范围请求直接从缓存返回
     public void updateCacheFile() {
-        File file = new File(cacheFile);
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            // 写入响应头
-            for (String header : responseHeaders) {
-                writer.write(header);
-                writer.newLine(); // 写入新行
+        if (statusLine == null || cacheFile == null || responseBytes < 0) {
+            return;
+        }
+        int status = responseStatus();
+        if (status == 206) {
+            if (cached == null && ByteRanges.shouldComplete(requestHeaders, responseHeaders)) {
+                CacheRefresher.shared().complete(cacheFile, url, host, port, requestHeaders.copy());
             }
-            // 写入空行以分隔头部和主体
-            writer.newLine();
-            // 写入响应体
-            if (responseBody != null) {
-                writer.write(responseBody);
+            return;
+        }
+        if (!Freshness.isStorable(status, requestHeaders, responseHeaders)) {
+            // 服务器错误不代表原有的缓存失效
+            if (cached != null && status < 500) {
+                CacheStore.remove(cacheFile, cached);
             }
-        } catch (IOException e) { System.out.println("未找到目录！！！！！"); }
+            return;
+        }
+        // 超过缓存上限或写入临时文件失败
+        if (cacheFill == null || cacheFill.aborted()) {
+            return;
+        }
+        // 连接管理首部不缓存；报文体的边界统一改为实际长度的 Content-Length
+        List<String> headers = new ArrayList<String>();
+        headers.add(statusLine);
+        for (int i = 0; i < responseHeaders.size(); i++) {
+            HeaderName name = responseHeaders.nameAt(i);
+            if (KeepAlive.isConnectionHeader(name)
+                    || name == HeaderName.TRANSFER_ENCODING || name == HeaderName.CONTENT_LENGTH) {
+                continue;
+            }
+            headers.add(responseHeaders.line(i));
+        }
+        CacheStore.write(cacheFile, requestHeaders, headers, cacheFill);
     }
 
     // 发送缓存的响应给客户端
+    // 客户端的条件请求与缓存匹配时只返回 304，不发送响应体；范围请求返回 206 或 416，见 ByteRanges
+    // 响应头使用查找缓存时预先生成的首部块，只更新 Date 和连接管理首部
+    // 响应体从内存直接写出，或由内核从缓存文件直接发送；客户端不接受 gzip 时边读边解压
     public void sendCachedResponse() {
-        File file = new File(cacheFile);
-
-        // 读取缓存文件并发送给客户端
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            boolean isResponseBody = false;
-
-            while ((line = reader.readLine()) != null) {
-                if (line.isEmpty()) {
-                    // 遇到空行后，表示响应头结束，发送一个空行
-                    clientOutput.println();
-                    isResponseBody = true; // 设置为读取响应体
-                    break;
-                }
-
-                // 更新 Date 首部
-                if (line.startsWith("Date:")) {
-                    String currentDate = new java.util.Date().toString();
-                    clientOutput.println("Date: " + currentDate); // 发送更新后的 Date
-                } else {
-                    clientOutput.println(line); // 发送其他响应头
-                }
+        try {
+            // 压缩保存的缓存：接受 gzip 的客户端直接收到保存的字节，其他客户端收到解压后的内容
+            boolean decode = cached.decodes(requestHeaders);
+            if (cached.notModified(requestHeaders)) {
+                status = 304;
+                clientOutput.write(cached.notModifiedHead(KeepAlive.header(keepAlive), decode));
+                return;
             }
-
-            // 发送响应体（如果有的话）
-            if (isResponseBody) {
-                while ((line = reader.readLine()) != null) {
-                    clientOutput.println(line); // 直接发送响应体
-                }
+            ByteRanges ranges = ByteRanges.of(requestHeaders, cached, decode);
+            if (ranges != null) {
+                sendCachedRanges(ranges);
+                return;
             }
-        } catch (IOException ignored) {}
+            status = KeepAlive.statusCode(cached.statusLine());
+            clientOutput.write(cached.head(KeepAlive.header(keepAlive), decode));
+            long start = System.nanoTime();
+            responseBytes = cached.transferBody(clientOutput, clientChannel(), decode);
+            timings.add(Timings.Phase.TRANSFER, System.nanoTime() - start);
+            // 缓存文件被截断，响应体与 Content-Length 不一致，客户端连接不能继续使用
+            if (responseBytes < cached.contentLength(decode)) {
+                keepAlive = false;
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+        }
+    }
+
+    // 发送缓存的一部分，片段与完整的响应体一样由内核从缓存文件直接发送
+    private void sendCachedRanges(ByteRanges ranges) throws IOException {
+        if (!ranges.satisfiable()) {
+            status = 416;
+            clientOutput.write(cached.unsatisfiableHead(KeepAlive.header(keepAlive)));
+            clientOutput.flush();
+            return;
+        }
+        status = 206;
+        clientOutput.write(cached.partialHead(KeepAlive.header(keepAlive), ranges));
+        long start = System.nanoTime();
+        responseBytes = ranges.transfer(cached, clientOutput, clientChannel());
+        timings.add(Timings.Phase.TRANSFER, System.nanoTime() - start);
+        if (responseBytes < ranges.contentLength()) {
+            keepAlive = false;
+        }
+    }
+
+    // 客户端连接的通道，用于从缓存文件直接发送
+    private WritableByteChannel clientChannel() {
+        SocketChannel channel = clientSocket.getChannel();
+        return channel != null ? channel : Channels.newChannel(clientOutput);
     }
 
     // 发送请求头
     // 在缓存未命中时使用
     public void sendRequestHeaders() throws IOException {
-        for (String headerLine : requestHeaders) {
-            serverOutput.println(headerLine);
+        serverOutput.println(method + " " + url + " " + version);
+        for (int i = 0; i < requestHeaders.size(); i++) {
+            if (isForwardedRequestHeader(i)) {
+                requestHeaders.writeLine(i, serverOutput);
+            }
         }
+        // 与目标服务器保持连接，以便归还连接池
+        serverOutput.println(KeepAlive.header(true));
         serverOutput.println(); // 结束请求头
+        serverOutput.flush(); // 确保立即发送到目标服务器
     }
 
     // 以下方法用于处理一般请求
 
     //用于发送请求头
     //返回请求体的长度
-    public int sendRequestHeader() throws IOException {
+    public long sendRequestHeader() throws IOException {
         // 转发请求到目标服务器
-        System.out.println("----------RequestHeader----------");
         serverOutput.println(method + " " + url + " " + version);
-        System.out.println(method + " " + url + " " + version);
 
-        // 读取并转发请求头
-        String headerLine;
-        int RequestBodyLength = -1; // 默认请求体长度为-1
-        while ((headerLine = clientInput.readLine()) != null) {
-            serverOutput.println(headerLine);
-            System.out.println(headerLine);
-            serverOutput.flush(); // 确保立即发送到目标服务器
-            // 当读到空行时，说明请求头已经结束，可以开始读取请求体
-            if (headerLine.isEmpty()) {
-                break;
-            }
-            // 检查是否有 Content-Length 头部
-            if (headerLine.toLowerCase().startsWith("content-length:")) {
-                RequestBodyLength = Integer.parseInt(headerLine.split(": ")[1]);
+        // 读取请求头到首部表中，请求头不完整时客户端连接不能继续使用
+        if (!clientInput.readHeaders(requestHeaders)) {
+            keepAlive = false;
+        }
+        keepAlive = KeepAlive.update(keepAlive, requestHeaders);
+        // 转发请求头，连接管理首部由代理处理，不转发
+        for (int i = 0; i < requestHeaders.size(); i++) {
+            if (!KeepAlive.isConnectionHeader(requestHeaders.nameAt(i))) {
+                requestHeaders.writeLine(i, serverOutput);
             }
         }
-        System.out.println("----------End----------");
-
-        return RequestBodyLength;
+        if (traceHeaders) {
+            AccessLog.shared().trace("request " + method + " " + url + " " + version + "\n" + requestHeaders);
+        }
+        // 与目标服务器保持连接，以便归还连接池
+        serverOutput.println(KeepAlive.header(true));
+        serverOutput.println();
+        serverOutput.flush(); // 确保立即发送到目标服务器
+
+        // 分块编码的请求体原样按块转发，否则由 Content-Length 决定请求体长度，默认为-1
+        requestChunked = requestHeaders.hasToken(HeaderName.TRANSFER_ENCODING, "chunked");
+        return requestChunked ? -1 : requestHeaders.longValue(HeaderName.CONTENT_LENGTH);
     }
 
     // 用于发送请求体
-    public void sendRequestBody(int RequestBodyLength) throws IOException {
+    public void sendRequestBody(long RequestBodyLength) throws IOException {
         // 读取并转发请求体
-        if (RequestBodyLength > 0) {
-            int totalBytesRead = 0; // 记录已读取的字节数
-            char[] buffer = new char[4096]; // 用于读取响应体的缓冲区
-            int bytesRead;
-
-            System.out.println("----------RequestBody----------");
-            // 继续读取，直到读取到的字节数大于或等于 Content-Length
-            while (totalBytesRead < RequestBodyLength
-                    && (bytesRead = clientInput.read(buffer, 0,
-                    Math.min(buffer.length, RequestBodyLength - totalBytesRead))) != -1)
-            {
-                serverOutput.print(new String(buffer, 0, bytesRead)); // 转发读取的内容
-                serverOutput.flush(); // 确保立即发送到服务端
-                System.out.print(new String(buffer, 0, bytesRead)); // 打印到控制台
-                totalBytesRead += bytesRead; // 更新已读取的字节数
+        if (RequestBodyLength > 0 || requestChunked) {
+            // 按字节原样转发，直到读取到 Content-Length 个字节或最后一个块
+            AccessLog.BodySample sample = traceBody ? new AccessLog.BodySample(null) : null;
+            long totalBytesRead = BodyRelay.relay(clientInput, serverOutput, requestChunked ? -1 : RequestBodyLength,
+                    requestChunked, requestChunked, sample);
+            if (sample != null) {
+                AccessLog.shared().trace(sample.describe("request " + url));
+            }
+            // 请求体不完整时不能继续使用客户端连接和上游连接
+            if (totalBytesRead < 0) {
+                keepAlive = false;
+                upstreamReusable = false;
             }
-            System.out.println("EOF");
-            System.out.println("----------End----------");
         }
     }
 
+
     //用于发送响应头
-    //返回响应体的长度
-    public int sendResponseHeader() throws IOException {
-        // 读取目标服务器响应并转发给客户端
-        String responseLine;
-        int ResponseBodyLength = -1; // 默认响应体长度为-1
-        System.out.println("----------ResponseHeader----------");
-        // 读取并转发响应头
-        while ((responseLine = serverInput.readLine()) != null) {
-            clientOutput.println(responseLine);
-            System.out.println(responseLine);
-            clientOutput.flush(); // 确保立即发送到客户端
-            // 当读到换行符时，说明响应头已经结束，可以开始读取响应体
-            if (responseLine.isEmpty()) {
-                break;
-            }
-            String[] headerParts = responseLine.split(": ", 2); // 只分割成两个部分
-            if (headerParts[0].equalsIgnoreCase("Content-Length")) {
-                ResponseBodyLength = Integer.parseInt(headerParts[1]);
-            }
-        }
-        System.out.println("----------End----------");
+    //返回响应体的长度，0 表示没有响应体，-1 表示分块编码或以连接关闭结束
+    public long sendResponseHeader() throws IOException {
+        // 读取目标服务器响应，先保存到首部表中，确定响应体的边界后再转发给客户端
+        long start = System.nanoTime();
+        statusLine = serverInput.readLine();
+        boolean complete = statusLine != null && serverInput.readHeaders(responseHeaders);
+        timings.add(Timings.Phase.UPSTREAM, System.nanoTime() - start);
+        if (!complete) {
+            // 上游没有返回完整的响应头就关闭了连接
+            keepAlive = false;
+            upstreamReusable = false;
+            return 0;
+        }
+        if (traceHeaders) {
+            AccessLog.shared().trace("response " + url + "\n" + statusLine + "\n" + responseHeaders);
+        }
+        status = KeepAlive.statusCode(statusLine);
+        upstreamReusable = KeepAlive.update(KeepAlive.defaultFor(statusLine.split(" ", 2)[0]), responseHeaders);
+        responseChunked = responseHeaders.hasToken(HeaderName.TRANSFER_ENCODING, "chunked");
+        long ResponseBodyLength = responseHeaders.longValue(HeaderName.CONTENT_LENGTH); // 默认响应体长度为-1
+
+        boolean bodyless = KeepAlive.isBodyless(method, statusLine);
+        if (bodyless) {
+            ResponseBodyLength = 0; // 没有响应体
+            responseChunked = false;
+        } else if (responseChunked) {
+            ResponseBodyLength = -1; // 分块编码优先于 Content-Length
+        }
+        // 没有 Content-Length 的响应体以分块编码或连接关闭结束
+        boolean streaming = !bodyless && ResponseBodyLength < 0;
+        if (streaming) {
+            if (!responseChunked) {
+                upstreamReusable = false; // 以连接关闭结束，上游连接不能复用
+            }
+            // HTTP/1.1 客户端以分块编码接收，客户端连接可以继续使用；HTTP/1.0 客户端只能以关闭连接结束
+            clientChunked = "HTTP/1.1".equals(version);
+            if (!clientChunked) {
+                keepAlive = false;
+            }
+        }
+        clientOutput.println(statusLine);
+        for (int i = 0; i < responseHeaders.size(); i++) {
+            HeaderName name = responseHeaders.nameAt(i);
+            // 连接管理首部由代理处理，不转发
+            if (KeepAlive.isConnectionHeader(name)) {
+                continue;
+            }
+            if (streaming && (name == HeaderName.CONTENT_LENGTH || (!clientChunked && name == HeaderName.TRANSFER_ENCODING))) {
+                continue;
+            }
+            responseHeaders.writeLine(i, clientOutput);
+        }
+        if (clientChunked && !responseChunked) {
+            clientOutput.println("Transfer-Encoding: chunked");
+        }
+        clientOutput.println(KeepAlive.header(keepAlive));
+        clientOutput.println();
+        clientOutput.flush(); // 确保立即发送到客户端
         return ResponseBodyLength;
     }
 
     //用于发送响应体
-    public void sendResponseBody(int ResponseBodyLength) throws IOException {
-        // 读取并转发响应体
-        if (ResponseBodyLength > 0) {
-            int totalBytesRead = 0; // 记录已读取的字节数
-            char[] buffer = new char[4096]; // 用于读取响应体的缓冲区
-            int bytesRead;
-
-            System.out.println("----------ResponseBody----------");
-            // 继续读取，直到读取到的字节数大于或等于 Content-Length
-            while (totalBytesRead < ResponseBodyLength
-                    && (bytesRead = serverInput.read(buffer, 0,
-                    Math.min(buffer.length, ResponseBodyLength - totalBytesRead))) != -1)
-            {
-                clientOutput.print(new String(buffer, 0, bytesRead)); // 转发读取的内容
-                clientOutput.flush(); // 确保立即发送到客户端
-                System.out.print(new String(buffer, 0, bytesRead)); // 打印到控制台
-                totalBytesRead += bytesRead; // 更新已读取的字节数
+    public void sendResponseBody(long ResponseBodyLength) throws IOException {
+        // 读取并转发响应体，数据到达后立即转发，不保存整个响应体
+        if (ResponseBodyLength != 0) {
+            long start = System.nanoTime();
+            AccessLog.BodySample sample = traceBody ? new AccessLog.BodySample(null) : null;
+            long totalBytesRead = BodyRelay.relay(serverInput, clientOutput, ResponseBodyLength,
+                    responseChunked, clientChunked, sample);
+            timings.add(Timings.Phase.TRANSFER, System.nanoTime() - start);
+            responseBytes = totalBytesRead;
+            if (sample != null) {
+                AccessLog.shared().trace(sample.describe("response " + url));
+            }
+            // 响应体不完整时不能继续使用客户端连接和上游连接
+            if (totalBytesRead < 0) {
+                keepAlive = false;
+                upstreamReusable = false;
             }
-            System.out.println("EOF");
-            System.out.println("----------End----------");
         }
     }
 }
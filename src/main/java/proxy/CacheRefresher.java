@@ -0,0 +1,258 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 过期缓存的后台确认（stale-while-revalidate）
+ * 请求线程先返回过期的缓存，再把确认任务交给这里：向目标服务器发送条件请求，
+ * 收到 304 时更新缓存的首部，收到新的响应时替换缓存，目标服务器出错时保留原来的缓存
+ * 范围请求未命中缓存时，也在这里获取完整的响应写入缓存（见 ByteRanges），之后的范围请求直接从缓存返回
+ * 线程数和等待队列都有上限，同一个缓存同时只有一个任务，队列已满时放弃（下一次请求会再次提交）
+ */
+public class CacheRefresher {
+    public static final int THREADS = Integer.getInteger("proxy.cache.refreshThreads", 2); // 后台确认的线程数
+    public static final int QUEUE = Integer.getInteger("proxy.cache.refreshQueue", 256); // 最多256个等待确认的缓存
+    public static final int TIMEOUT = 30000; // 等待目标服务器的超时时间为30秒
+
+    private static final CacheRefresher SHARED = new CacheRefresher(THREADS, QUEUE);
+
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet(); // 已经提交、尚未结束的缓存键
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * 构造函数
+     * @param threads 线程数
+     * @param queue 等待队列的长度
+     */
+    public CacheRefresher(int threads, int queue) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue), r -> {
+                    Thread thread = new Thread(r, "cache-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return 共享的实例
+     */
+    public static CacheRefresher shared() {
+        return SHARED;
+    }
+
+    /**
+     * 提交一个确认任务，不等待结果
+     * @param key 缓存键（主键）
+     * @param cached 过期的缓存
+     * @param url 请求 URL
+     * @param host 目标主机
+     * @param port 目标端口
+     * @param request 请求首部的副本，转发给目标服务器并用于计算变体的键
+     * @return 是否提交；同一个缓存正在确认或队列已满时返回 false
+     */
+    public boolean refresh(String key, CachedResponse cached, String url, String host, int port, HeaderTable request) {
+        if (!pending.add(cached.key())) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    revalidate(key, cached, url, host, port, request);
+                } finally {
+                    pending.remove(cached.key());
+                }
+            });
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(cached.key());
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * 提交一个获取完整响应的任务，不等待结果，用于范围请求未命中缓存时
+     * @param key 缓存键（主键）
+     * @param url 请求 URL
+     * @param host 目标主机
+     * @param port 目标端口
+     * @param request 请求首部的副本，Range 和 If-Range 不转发
+     * @return 是否提交；同一个缓存正在获取或队列已满时返回 false
+     */
+    public boolean complete(String key, String url, String host, int port, HeaderTable request) {
+        if (!pending.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    // 其他请求已经写入了缓存
+                    if (CacheStore.lookup(key, request) == null) {
+                        revalidate(key, null, url, host, port, request);
+                    }
+                } finally {
+                    pending.remove(key);
+                }
+            });
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            rejected.increment();
+            return false;
+        }
+    }
+
+    // 在后台线程中执行；cached 为 null 时不发送条件请求，只获取完整的响应
+    private void revalidate(String key, CachedResponse cached, String url, String host, int port, HeaderTable request) {
+        Socket socket;
+        try {
+            socket = UpstreamPool.shared().acquire(host, port);
+        } catch (IOException e) {
+            failed.increment();
+            return;
+        }
+        boolean reusable = false;
+        CacheFill body = null;
+        try {
+            socket.setSoTimeout(TIMEOUT);
+            HttpOutput out = new HttpOutput(socket.getOutputStream());
+            HttpInput in = new HttpInput(socket.getInputStream());
+            out.println("GET " + url + " HTTP/1.1");
+            for (int i = 0; i < request.size(); i++) {
+                HeaderName name = request.nameAt(i);
+                // 客户端自己的条件首部和范围请求换成对整个缓存的条件请求
+                if (KeepAlive.isConnectionHeader(name) || name == HeaderName.IF_MODIFIED_SINCE
+                        || name == HeaderName.IF_NONE_MATCH || name == HeaderName.RANGE || name == HeaderName.IF_RANGE) {
+                    continue;
+                }
+                request.writeLine(i, out);
+            }
+            if (cached != null && cached.etag() != null) {
+                out.println("If-None-Match: " + cached.etag());
+            }
+            if (cached != null && cached.lastModified() != null) {
+                out.println("If-Modified-Since: " + cached.lastModified());
+            }
+            out.println(KeepAlive.header(true));
+            out.println();
+            out.flush();
+
+            String statusLine = in.readLine();
+            HeaderTable response = new HeaderTable();
+            if (statusLine == null || !in.readHeaders(response)) {
+                failed.increment();
+                return;
+            }
+            int status = KeepAlive.statusCode(statusLine);
+            reusable = KeepAlive.update(KeepAlive.defaultFor(statusLine.split(" ", 2)[0]), response);
+            if (status == 304 && cached != null) {
+                CacheStore.freshen(cached, response);
+                notModified.increment();
+                return;
+            }
+            // 读取新的响应体
+            boolean chunked = response.hasToken(HeaderName.TRANSFER_ENCODING, "chunked");
+            long length = KeepAlive.isBodyless("GET", statusLine) ? 0
+                    : chunked ? -1 : response.longValue(HeaderName.CONTENT_LENGTH);
+            body = CacheStore.fill();
+            if (length != 0 && BodyRelay.relay(in, OutputStream.nullOutputStream(), length, chunked, false, body) < 0) {
+                reusable = false;
+                failed.increment();
+                return;
+            }
+            if (length < 0 && !chunked) {
+                reusable = false; // 以连接关闭结束
+            }
+            if (status >= 500 || status == 206 || status == 304) {
+                // 目标服务器出错不代表缓存失效；部分内容不缓存
+                failed.increment();
+                return;
+            }
+            if (!Freshness.isStorable(status, request, response) || body.aborted()) {
+                if (cached != null) {
+                    CacheStore.remove(key, cached);
+                }
+            } else {
+                CacheStore.write(key, request, storedHeaders(statusLine, response), body);
+            }
+            replaced.increment();
+        } catch (IOException e) {
+            reusable = false;
+            failed.increment();
+        } finally {
+            if (body != null) {
+                body.close();
+            }
+            UpstreamPool.shared().release(host, port, socket, reusable);
+        }
+    }
+
+    // 缓存的响应头：去掉连接管理首部，报文体的边界由 CacheStore.write 统一改为 Content-Length
+    private static List<String> storedHeaders(String statusLine, HeaderTable response) {
+        List<String> headers = new ArrayList<String>(response.size() + 1);
+        headers.add(statusLine);
+        for (int i = 0; i < response.size(); i++) {
+            HeaderName name = response.nameAt(i);
+            if (KeepAlive.isConnectionHeader(name) || name == HeaderName.TRANSFER_ENCODING
+                    || name == HeaderName.CONTENT_LENGTH) {
+                continue;
+            }
+            headers.add(response.line(i));
+        }
+        return headers;
+    }
+
+    /**
+     * @return 统计信息
+     */
+    public Stats stats() {
+        return new Stats(submitted.sum(), notModified.sum(), replaced.sum(), failed.sum(), rejected.sum(),
+                executor.getQueue().size());
+    }
+
+    /**
+     * 后台确认的统计信息
+     */
+    public static class Stats {
+        public final long submitted;   // 提交的任务数（确认过期的缓存、获取范围请求的完整响应）
+        public final long notModified; // 目标服务器返回 304 的次数
+        public final long replaced;    // 写入新的响应（或删除缓存）的次数
+        public final long failed;      // 目标服务器不可用或出错的次数
+        public final long rejected;    // 队列已满而放弃的次数
+        public final int queued;       // 正在等待的任务数
+
+        Stats(long submitted, long notModified, long replaced, long failed, long rejected, int queued) {
+            this.submitted = submitted;
+            this.notModified = notModified;
+            this.replaced = replaced;
+            this.failed = failed;
+            this.rejected = rejected;
+            this.queued = queued;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("submitted=%d notModified=%d replaced=%d failed=%d rejected=%d queued=%d",
+                    submitted, notModified, replaced, failed, rejected, queued);
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package proxy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存的读写
+ * CacheProxy 与 NIO 引擎共用，保证两种引擎使用相同的缓存格式：
+ * 响应头逐行写入，空行之后为响应体
+ * 缓存以记录的形式追加写入段文件（SegmentStore），以请求方法和 URL 的哈希（CacheKey）为键
+ * 段文件之上有一层内存缓存（MemoryCache），经常访问的小响应直接从内存返回，不需要访问文件
+ * 所有缓存的元数据保存在索引（CacheIndex）中，索引中没有的响应直接判定为未命中，不访问文件系统
+ * 文本响应压缩后保存（Compression）
+ * 转发中的响应体先写入 CacheFill（固定大小的内存缓冲区加临时文件），完整之后才写入段文件
+ */
+public class CacheStore {
+    public static final String CACHE_PATH = "src/main/resources/Cache/";
+    public static final int MAX_BODY = Integer.getInteger("proxy.cache.maxBody", 8 * 1024 * 1024); // 在内存中转发给合并的请求的响应体上限
+    public static final long MAX_OBJECT = Long.getLong("proxy.cache.maxObject", 64L * 1024 * 1024); // 超过该大小的响应只转发，不缓存
+    public static final long STATS_INTERVAL = Long.getLong("proxy.cache.statsInterval", 60000); // 每60秒在访问日志中记录一次统计信息，0表示不记录
+
+    private static final MemoryCache MEMORY = new MemoryCache(MemoryCache.MAX_BYTES);
+    private static final SegmentStore STORE = new SegmentStore(CACHE_PATH);
+    private static final CacheEvictor EVICTOR = new CacheEvictor(STORE);
+    // 文件缓存的统计信息，只统计内存未命中后的查找
+    private static final LongAdder DISK_HITS = new LongAdder();
+    private static final LongAdder DISK_MISSES = new LongAdder();
+    private static final LongAdder DISK_BYTES_READ = new LongAdder();
+    // 压缩保存的响应数以及压缩节省的字节数
+    private static final LongAdder COMPRESSED = new LongAdder();
+    private static final LongAdder COMPRESS_SAVED = new LongAdder();
+    // 变体标记的状态行：带 Vary 的响应按变体保存，主键下只保存 Vary 首部
+    static final String VARIANTS = "VARIANTS";
+
+    static {
+        // 旧版本以转换后的 URL 为键，无法对应到新的键，直接删除
+        List<String> legacy = new ArrayList<String>();
+        STORE.forEach((key, entry) -> {
+            if (!CacheKey.isKey(key)) {
+                legacy.add(key);
+            }
+        });
+        for (String key : legacy) {
+            STORE.remove(key);
+        }
+        if (STATS_INTERVAL > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "cache-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleWithFixedDelay(() -> AccessLog.shared().info("cache " + stats()
+                            + " evict[" + EVICTOR.stats() + "] coalesce[" + SingleFlight.shared().stats() + "]"
+                            + " refresh[" + CacheRefresher.shared().stats() + "]"
+                            + " upstream[" + UpstreamPool.shared().stats() + "] dns[" + DnsCache.shared().stats() + "]"),
+                    STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 计算请求的缓存键
+     * @param method 请求方法
+     * @param url 请求 URL
+     * @return 缓存键，见 CacheKey
+     */
+    public static String keyFor(String method, String url) {
+        return CacheKey.of(method, url);
+    }
+
+    /**
+     * 查找缓存的响应，先查内存，再查段文件
+     * 从段文件读到的小响应放入内存，之后的查找不再访问文件
+     * 主键下是变体标记时，按标记中的 Vary 和请求首部找到对应的变体
+     * @param key 缓存键
+     * @param request 请求首部
+     * @return 缓存的响应，没有缓存时返回 null
+     */
+    public static CachedResponse lookup(String key, HeaderTable request) {
+        CachedResponse response = find(key);
+        if (response != null && response.variants()) {
+            response = find(CacheKey.variant(key, response.vary(), request));
+        }
+        return response;
+    }
+
+    private static CachedResponse find(String key) {
+        CachedResponse response = MEMORY.get(key);
+        if (response != null) {
+            EVICTOR.touch(key);
+            return response;
+        }
+        CacheIndex.Entry entry = STORE.get(key);
+        if (entry == null || entry.size == 0) {
+            DISK_MISSES.increment();
+            return null;
+        }
+        try {
+            if (entry.size <= MemoryCache.MAX_ENTRY) {
+                byte[] data = STORE.read(entry);
+                DISK_BYTES_READ.add(data.length);
+                response = CachedResponse.of(key, data, entry.storedAt);
+                if (response != null) {
+                    MEMORY.put(key, response);
+                }
+            } else {
+                // 只读取响应头，响应体发送时再从段文件读取
+                response = STORE.open(key, entry);
+            }
+            if (response == null) {
+                STORE.invalidate(key, entry); // 缓存内容不完整
+                DISK_MISSES.increment();
+                return null;
+            }
+            DISK_HITS.increment();
+            EVICTOR.touch(key);
+            return response;
+        } catch (IOException e) {
+            // 段文件已被删除或截断，索引随之更新
+            STORE.invalidate(key, entry);
+            DISK_MISSES.increment();
+            return null;
+        }
+    }
+
+    /**
+     * 创建转发响应体时同时写入的缓存副本，超过 MAX_OBJECT 或单个响应的磁盘上限后放弃保存
+     * @return 新的 CacheFill，由调用者关闭
+     */
+    public static CacheFill fill() {
+        return new CacheFill(Math.min(MAX_OBJECT, CacheEvictor.DISK_BUDGET / CacheEvictor.MAX_OBJECT_FRACTION));
+    }
+
+    /**
+     * 将响应头和响应体写入缓存
+     * 带 Vary 的响应保存在变体的键下，主键下保存变体标记；文本响应压缩后保存
+     * @param key 缓存键
+     * @param request 请求首部，用于计算变体的键
+     * @param headers 响应头（包括状态行，不包括空行）
+     * @param body 响应体
+     * @param length 响应体长度
+     */
+    public static void write(String key, HeaderTable request, List<String> headers, byte[] body, int length) {
+        long now = System.currentTimeMillis();
+        key = variantKey(key, request, headers, now);
+        if (body != null && Compression.eligible(headers, length)) {
+            byte[] encoded = Compression.gzip(body, length);
+            if (encoded.length < length * Compression.MIN_RATIO) {
+                COMPRESSED.increment();
+                COMPRESS_SAVED.add(length - encoded.length);
+                headers = Compression.encodedHeaders(headers, length, encoded.length);
+                body = encoded;
+                length = encoded.length;
+            }
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream(length + 512);
+        // 响应头，空行以分隔头部和主体
+        data.writeBytes(head(headers));
+        // 响应体
+        if (body != null) {
+            data.write(body, 0, length);
+        }
+        if (store(key, data.toByteArray(), now) == null) {
+            MEMORY.remove(key);
+        }
+    }
+
+    /**
+     * 将转发时写入 CacheFill 的完整响应体写入缓存，之后关闭 CacheFill（删除临时文件）
+     * 不超过内存缓存单项上限的响应体读入内存，与上面的 write 相同；
+     * 更大的响应体由临时文件直接复制到段文件，需要压缩时边读边压缩到另一个临时文件，都不在内存中保存整个响应体
+     * @param key 缓存键
+     * @param request 请求首部，用于计算变体的键
+     * @param headers 响应头（包括状态行），其中的 Content-Length 和 Transfer-Encoding 被忽略，按实际长度重新生成
+     * @param body 响应体，已经放弃保存时不写入
+     */
+    public static void write(String key, HeaderTable request, List<String> headers, CacheFill body) {
+        CacheFill encoded = null;
+        try {
+            if (body.aborted()) {
+                return;
+            }
+            long length = body.length();
+            List<String> lines = new ArrayList<String>(headers.size() + 1);
+            for (String line : headers) {
+                if (!line.regionMatches(true, 0, "Content-Length:", 0, 15) && !BodyRelay.isTransferEncoding(line)) {
+                    lines.add(line);
+                }
+            }
+            lines.add("Content-Length: " + length);
+            if (length <= MemoryCache.MAX_ENTRY) {
+                byte[] data = body.toByteArray();
+                write(key, request, lines, data, data.length);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            key = variantKey(key, request, lines, now);
+            CacheFill stored = body;
+            if (Compression.eligible(lines, length)) {
+                // 压缩后达到原来的 MIN_RATIO 时压缩的副本放弃保存，仍然保存原始内容
+                encoded = new CacheFill((long) (length * Compression.MIN_RATIO));
+                try (InputStream in = body.input()) {
+                    Compression.gzip(in, encoded);
+                }
+                if (!encoded.aborted()) {
+                    COMPRESSED.increment();
+                    COMPRESS_SAVED.add(length - encoded.length());
+                    lines = Compression.encodedHeaders(lines, length, encoded.length());
+                    stored = encoded;
+                }
+            }
+            byte[] head = head(lines);
+            FileChannel channel = stored.channel();
+            if (channel == null) {
+                // 压缩后很小，仍在内存缓冲区中
+                ByteArrayOutputStream data = new ByteArrayOutputStream(head.length + (int) stored.length());
+                data.writeBytes(head);
+                data.writeBytes(stored.toByteArray());
+                if (store(key, data.toByteArray(), now) == null) {
+                    MEMORY.remove(key);
+                }
+            } else if (!EVICTOR.admits(head.length + stored.length())) {
+                STORE.remove(key);
+                MEMORY.remove(key);
+            } else {
+                STORE.put(key, head, channel, 0, stored.length(), now);
+                EVICTOR.written(key);
+                MEMORY.remove(key);
+            }
+        } catch (IOException e) {
+            System.err.println("写入缓存失败: " + e.getMessage());
+            EVICTOR.wake(); // 磁盘可能已满
+        } finally {
+            body.close();
+            if (encoded != null) {
+                encoded.close();
+            }
+        }
+    }
+
+    // 带 Vary 的响应：主键下没有相同 Vary 的变体标记时写入标记，返回变体的键；否则返回原来的键
+    private static String variantKey(String key, HeaderTable request, List<String> headers, long now) {
+        String vary = varyOf(headers);
+        if (vary == null) {
+            return key;
+        }
+        CacheIndex.Entry marker = STORE.get(key);
+        if (marker == null || !vary.equals(marker.vary)) {
+            List<String> lines = new ArrayList<String>();
+            lines.add(VARIANTS);
+            lines.add("Vary: " + vary);
+            lines.add("Cache-Control: max-age=" + Integer.MAX_VALUE); // 标记本身不过期，不会被优先淘汰
+            store(key, head(lines), now);
+        }
+        return CacheKey.variant(key, vary, request);
+    }
+
+    // 响应头中所有 Vary 首部的值，没有时返回 null
+    private static String varyOf(List<String> headers) {
+        String vary = null;
+        for (int i = 1; i < headers.size(); i++) {
+            String line = headers.get(i);
+            if (line.regionMatches(true, 0, "Vary:", 0, 5)) {
+                String value = line.substring(5).trim();
+                vary = vary == null ? value : vary + ", " + value;
+            }
+        }
+        return vary;
+    }
+
+    /**
+     * 确认缓存有效（304 Not Modified）后更新缓存的首部
+     * 304 响应中的首部替换缓存中的同名首部，响应体不变；更新后的缓存作为新记录追加写入
+     * @param cached 缓存的响应
+     * @param update 304 响应的首部
+     * @return 更新后的缓存，更新失败时返回原来的缓存
+     */
+    public static CachedResponse freshen(CachedResponse cached, HeaderTable update) {
+        Set<String> replaced = new HashSet<String>();
+        for (int i = 0; i < update.size(); i++) {
+            replaced.add(update.name(i).toLowerCase());
+        }
+        List<String> headers = new ArrayList<String>();
+        headers.add(cached.statusLine());
+        for (String line : cached.headerLines()) {
+            int colon = line.indexOf(':');
+            String name = (colon < 0 ? line : line.substring(0, colon)).trim().toLowerCase();
+            if (!replaced.contains(name)) {
+                headers.add(line);
+            }
+        }
+        for (int i = 0; i < update.size(); i++) {
+            HeaderName name = update.nameAt(i);
+            if (KeepAlive.isConnectionHeader(name) || name == HeaderName.CONTENT_LENGTH
+                    || name == HeaderName.TRANSFER_ENCODING) {
+                continue;
+            }
+            headers.add(update.line(i));
+        }
+        if (!update.contains(HeaderName.DATE)) {
+            headers.add("Date: " + httpDate());
+        }
+        if (cached.encoded()) {
+            headers.add(Compression.IDENTITY_LENGTH + ": " + cached.identityLength());
+        }
+        headers.add("Content-Length: " + cached.bodyLength());
+
+        try {
+            if (cached.channel() != null) {
+                // 段文件中的响应体直接复制到新记录
+                CachedResponse response = STORE.put(cached.key(), head(headers), cached.channel(),
+                        cached.bodyPosition(), cached.bodyLength(), System.currentTimeMillis());
+                EVICTOR.written(cached.key());
+                MEMORY.remove(cached.key());
+                return response;
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream((int) cached.bodyLength() + 512);
+            data.writeBytes(head(headers));
+            ByteBuffer body = cached.body();
+            if (body.remaining() < cached.bodyLength()) {
+                throw new IOException("缓存被截断");
+            }
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            data.writeBytes(bytes);
+            CachedResponse response = store(cached.key(), data.toByteArray(), System.currentTimeMillis());
+            return response == null ? cached : response;
+        } catch (IOException e) {
+            System.err.println("更新缓存失败: " + e.getMessage());
+            return cached;
+        }
+    }
+
+    // 追加写入段文件并更新索引，新写入的小响应同时放入内存，由内存缓存决定是否接纳；失败时返回 null
+    private static CachedResponse store(String key, byte[] content, long storedAt) {
+        if (!EVICTOR.admits(content.length)) {
+            // 超过单个响应的上限，旧版本也不再保留
+            STORE.remove(key);
+            return null;
+        }
+        try {
+            CachedResponse response = CachedResponse.of(key, content, storedAt);
+            if (response == null) {
+                return null;
+            }
+            STORE.put(key, content, response, storedAt);
+            EVICTOR.written(key);
+            if (content.length <= MemoryCache.MAX_ENTRY) {
+                MEMORY.put(key, response);
+            } else {
+                MEMORY.remove(key);
+            }
+            return response;
+        } catch (IOException e) {
+            System.err.println("写入缓存失败: " + e.getMessage());
+            EVICTOR.wake(); // 磁盘可能已满
+            return null;
+        }
+    }
+
+    // 缓存内容中的响应头，每行以换行结尾，最后是空行
+    private static byte[] head(List<String> headers) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(512);
+        for (String header : headers) {
+            data.writeBytes(header.getBytes(StandardCharsets.ISO_8859_1));
+            data.write('\n');
+        }
+        data.write('\n');
+        return data.toByteArray();
+    }
+
+    /**
+     * 删除缓存的响应，同时从内存中移除
+     * 主键下是变体标记时删除标记，所有变体随之失效，由淘汰回收
+     * @param key 缓存键
+     * @param cached 查到的缓存（可能是变体），一并删除；没有时为 null
+     */
+    public static void remove(String key, CachedResponse cached) {
+        MEMORY.remove(key);
+        STORE.remove(key);
+        if (cached != null && !cached.key().equals(key)) {
+            MEMORY.remove(cached.key());
+            STORE.remove(cached.key());
+        }
+    }
+
+    /**
+     * 淘汰指定版本的缓存，已经被重新写入时保留，由 CacheEvictor 调用
+     * @param key 缓存键
+     * @param entry 选中淘汰时的索引条目
+     * @return 是否淘汰
+     */
+    static boolean evict(String key, CacheIndex.Entry entry) {
+        if (!STORE.invalidate(key, entry)) {
+            return false;
+        }
+        MEMORY.remove(key);
+        return true;
+    }
+
+    /**
+     * @return 内存和文件两级缓存的统计信息
+     */
+    public static Stats stats() {
+        return new Stats(MEMORY.stats(), DISK_HITS.sum(), DISK_MISSES.sum(), DISK_BYTES_READ.sum(),
+                COMPRESSED.sum(), COMPRESS_SAVED.sum(), STORE.stats());
+    }
+
+    /**
+     * 两级缓存的统计信息
+     */
+    public static class Stats {
+        public final MemoryCache.Stats memory; // 内存缓存
+        public final long diskHits;            // 内存未命中、文件命中的次数
+        public final long diskMisses;          // 内存和文件都未命中的次数
+        public final long diskBytesRead;       // 从文件读入内存的字节数
+        public final long compressed;          // 压缩保存的响应数
+        public final long compressSaved;       // 压缩节省的字节数
+        public final SegmentStore.Stats store; // 段文件
+
+        Stats(MemoryCache.Stats memory, long diskHits, long diskMisses, long diskBytesRead,
+              long compressed, long compressSaved, SegmentStore.Stats store) {
+            this.memory = memory;
+            this.diskHits = diskHits;
+            this.diskMisses = diskMisses;
+            this.diskBytesRead = diskBytesRead;
+            this.compressed = compressed;
+            this.compressSaved = compressSaved;
+            this.store = store;
+        }
+
+        /**
+         * @return 文件缓存的命中率（只统计内存未命中的查找）
+         */
+        public double diskHitRate() {
+            long total = diskHits + diskMisses;
+            return total == 0 ? 0 : (double) diskHits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("memory[%s] disk[hits=%d misses=%d hitRate=%.2f bytesRead=%d] "
+                            + "compress[count=%d saved=%d] store[%s]",
+                    memory, diskHits, diskMisses, diskHitRate(), diskBytesRead, compressed, compressSaved, store);
+        }
+    }
+
+    /**
+     * @return 当前时间的 HTTP 日期格式
+     */
+    public static String httpDate() {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    /**
+     * 解析 HTTP 日期
+     * @param value 首部的值，例如 "Sun, 06 Nov 1994 08:49:37 GMT"
+     * @return 对应的时间（毫秒），为 null 或格式不正确时返回-1
+     */
+    public static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,631 @@
+package proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个缓存的响应
+ * 内容与段文件中的缓存记录相同：响应头逐行排列，空行之后为响应体
+ * 查找时预先解析好状态行、发送给客户端的首部块以及响应体的偏移，
+ * 命中时只需要补上 Date、Content-Length 和连接管理首部，响应体直接从内存或段文件发送，不再逐行处理
+ * 较小的响应整个保存在内存中；超过内存缓存单项上限的响应只保存首部信息，响应体由内核从段文件直接发送
+ * 压缩保存的响应（见 Compression）预先生成两个首部块：接受 gzip 的客户端直接收到保存的字节，其他客户端收到解压后的内容
+ * 对象创建后不再修改，可以被多个线程同时使用
+ */
+public class CachedResponse {
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final String key;
+    private final byte[] data; // 只在段文件中时为 null
+    private final FileChannel channel; // 段文件，只在内存中时为 null
+    private final long base;   // 缓存内容在段文件中的偏移
+    private final long size;
+    private final String statusLine;
+    private final byte[] headerBlock; // 保存的首部行，每行以 CRLF 结尾
+    private final byte[] encodedBlock;  // 发送保存的内容时的首部行，没有压缩时与 headerBlock 相同
+    private final byte[] identityBlock; // 发送解压后的内容时的首部行，没有压缩时与 headerBlock 相同
+    private final long bodyOffset;
+    private final long identityLength; // 压缩前的响应体长度，没有压缩时为-1
+    private final String lastModified;
+    private final String etag;
+    private final long date;        // Date 首部的时间（毫秒），没有时为-1
+    private final long storedAt;    // 收到响应的时间（毫秒）
+    private final long initialAge;  // 收到响应时的年龄（毫秒）
+    private final long lifetime;    // 新鲜期（毫秒）
+    private final boolean noCache;  // 每次使用前都要确认
+    private final boolean mustRevalidate; // 过期后必须确认才能使用
+    private final long staleWhileRevalidate; // 过期后可以先返回、再在后台确认的时间（毫秒）
+    private final long staleIfError; // 目标服务器不可用时过期后仍可以返回的时间（毫秒），没有时为-1
+    private final String vary;
+
+    private CachedResponse(String key, byte[] data, FileChannel channel, long base, long size, String statusLine,
+                           byte[] headerBlock, byte[] encodedBlock, byte[] identityBlock, long bodyOffset,
+                           long identityLength, HeaderTable headers, long date, long storedAt) {
+        this.key = key;
+        this.data = data;
+        this.channel = channel;
+        this.base = base;
+        this.size = size;
+        this.statusLine = statusLine;
+        this.headerBlock = headerBlock;
+        this.encodedBlock = encodedBlock;
+        this.identityBlock = identityBlock;
+        this.bodyOffset = bodyOffset;
+        this.identityLength = identityLength;
+        this.lastModified = headers.value(HeaderName.LAST_MODIFIED);
+        this.etag = headers.value(HeaderName.ETAG);
+        this.date = date;
+        this.storedAt = storedAt;
+        this.initialAge = Freshness.initialAge(headers, date, storedAt);
+        this.lifetime = Freshness.lifetime(KeepAlive.statusCode(statusLine), headers, date);
+        this.noCache = Freshness.isNoCache(headers);
+        this.mustRevalidate = Freshness.isMustRevalidate(headers);
+        this.staleWhileRevalidate = Freshness.staleWhileRevalidate(headers);
+        this.staleIfError = Freshness.staleIfError(headers);
+        this.vary = headers.value(HeaderName.VARY);
+    }
+
+    /**
+     * 从内存中的缓存内容创建
+     * @param key 缓存键
+     * @param data 缓存的完整内容
+     * @param storedAt 收到响应的时间（毫秒），用于计算年龄
+     * @return 缓存的响应，内容不完整时返回 null
+     */
+    public static CachedResponse of(String key, byte[] data, long storedAt) throws IOException {
+        return parse(key, data, null, 0, data.length, storedAt, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * 只读取段文件中的响应头，响应体发送时再从段文件读取
+     * @param key 缓存键
+     * @param channel 段文件，由 SegmentStore 打开并共享，这里不关闭
+     * @param base 缓存内容在段文件中的偏移
+     * @param size 缓存内容的字节数
+     * @param storedAt 收到响应的时间（毫秒）
+     * @return 缓存的响应，内容不完整时返回 null
+     */
+    public static CachedResponse ofSegment(String key, FileChannel channel, long base, long size, long storedAt)
+            throws IOException {
+        return parse(key, null, channel, base, size, storedAt, new RegionInput(channel, base, size));
+    }
+
+    // 解析响应头，连接管理首部、Date、Age、Content-Length 和 Transfer-Encoding 在发送时重新生成
+    // 压缩保存的响应：发送保存的内容时 ETag 改为弱 ETag（两种表示的字节不同），发送解压后的内容时去掉 Content-Encoding，
+    // 两种情况都加上 Vary: Accept-Encoding，下游的缓存按客户端是否接受 gzip 分别保存
+    private static CachedResponse parse(String key, byte[] data, FileChannel channel, long base, long size,
+                                        long storedAt, InputStream in) throws IOException {
+        try (HttpInput reader = new HttpInput(in)) {
+            String statusLine = reader.readLine();
+            HeaderTable headers = new HeaderTable();
+            if (statusLine == null || !reader.readHeaders(headers)) {
+                return null;
+            }
+            int internal = identityLengthIndex(headers);
+            long identityLength = internal < 0 ? -1 : parseLength(headers.value(internal));
+            boolean encoded = identityLength >= 0;
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            ByteArrayOutputStream encodedBlock = encoded ? new ByteArrayOutputStream(256) : null;
+            ByteArrayOutputStream identityBlock = encoded ? new ByteArrayOutputStream(256) : null;
+            for (int i = 0; i < headers.size(); i++) {
+                HeaderName name = headers.nameAt(i);
+                if (KeepAlive.isConnectionHeader(name) || name == HeaderName.DATE || name == HeaderName.AGE
+                        || name == HeaderName.CONTENT_LENGTH || name == HeaderName.TRANSFER_ENCODING || i == internal) {
+                    continue;
+                }
+                headers.writeLine(i, block);
+                if (!encoded) {
+                    continue;
+                }
+                if (name == HeaderName.ETAG) {
+                    String etag = headers.value(i);
+                    writeAscii(encodedBlock, "ETag: " + (etag.startsWith("W/") ? etag : "W/" + etag));
+                } else {
+                    headers.writeLine(i, encodedBlock);
+                }
+                if (name != HeaderName.CONTENT_ENCODING) {
+                    headers.writeLine(i, identityBlock);
+                }
+            }
+            byte[] stored = block.toByteArray();
+            byte[] sent = stored;
+            byte[] identity = stored;
+            if (encoded) {
+                if (!headers.hasToken(HeaderName.VARY, "accept-encoding") && !headers.hasToken(HeaderName.VARY, "*")) {
+                    writeAscii(encodedBlock, "Vary: Accept-Encoding");
+                    writeAscii(identityBlock, "Vary: Accept-Encoding");
+                }
+                sent = encodedBlock.toByteArray();
+                identity = identityBlock.toByteArray();
+            }
+            long date = CacheStore.parseHttpDate(headers.value(HeaderName.DATE));
+            return new CachedResponse(key, data, channel, base, size, statusLine, stored, sent, identity,
+                    reader.position(), identityLength, headers, date, storedAt);
+        }
+    }
+
+    // 记录原始长度的内部首部的位置，没有压缩时返回-1
+    private static int identityLengthIndex(HeaderTable headers) {
+        if (!headers.contains(HeaderName.CONTENT_ENCODING)) {
+            return -1;
+        }
+        for (int i = headers.size() - 1; i >= 0; i--) {
+            if (headers.nameAt(i) == null && headers.name(i).equalsIgnoreCase(Compression.IDENTITY_LENGTH)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 按位置读取段文件的一部分，多个线程共用同一个 FileChannel 时互不影响
+     */
+    private static class RegionInput extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RegionInput(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // 段文件由 SegmentStore 管理
+        }
+    }
+
+    /**
+     * @return 缓存键
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * @return 缓存内容（响应头和响应体）的字节数
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return 内容是否保存在内存中
+     */
+    public boolean inMemory() {
+        return data != null;
+    }
+
+    /**
+     * @return 状态行
+     */
+    public String statusLine() {
+        return statusLine;
+    }
+
+    /**
+     * @return 保存的响应体的字节数，压缩保存时为压缩后的长度
+     */
+    public long bodyLength() {
+        return size - bodyOffset;
+    }
+
+    /**
+     * @return 响应体是否压缩保存
+     */
+    public boolean encoded() {
+        return identityLength >= 0;
+    }
+
+    /**
+     * @return 压缩前的响应体长度，没有压缩时返回-1
+     */
+    public long identityLength() {
+        return identityLength;
+    }
+
+    /**
+     * 判断发送给客户端前是否需要解压：压缩保存且客户端不接受 gzip
+     * @param request 客户端的请求首部
+     * @return 是否需要解压
+     */
+    public boolean decodes(HeaderTable request) {
+        return identityLength >= 0 && !Compression.acceptsGzip(request);
+    }
+
+    /**
+     * @param decode 是否解压后发送
+     * @return 发送给客户端的响应体长度
+     */
+    public long contentLength(boolean decode) {
+        return decode ? identityLength : bodyLength();
+    }
+
+    /**
+     * @return Last-Modified 首部的值，没有时返回 null
+     */
+    public String lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return ETag 首部的值，没有时返回 null
+     */
+    public String etag() {
+        return etag;
+    }
+
+    /**
+     * @return Date 首部的时间（毫秒），没有时返回-1
+     */
+    public long date() {
+        return date;
+    }
+
+    /**
+     * @return 过期时间（毫秒），即收到响应的时间加上剩余的新鲜期
+     */
+    public long expires() {
+        return storedAt - initialAge + lifetime;
+    }
+
+    /**
+     * @return 新鲜期（毫秒）
+     */
+    public long lifetime() {
+        return lifetime;
+    }
+
+    /**
+     * 当前年龄，即收到响应时的年龄加上在缓存中停留的时间
+     * @param now 当前时间（毫秒）
+     * @return 年龄（毫秒）
+     */
+    public long age(long now) {
+        return initialAge + Math.max(0, now - storedAt);
+    }
+
+    /**
+     * @return 是否每次使用前都要确认（no-cache）
+     */
+    public boolean noCache() {
+        return noCache;
+    }
+
+    /**
+     * @return 过期后是否必须确认才能使用（must-revalidate）
+     */
+    public boolean mustRevalidate() {
+        return mustRevalidate;
+    }
+
+    /**
+     * @return 过期后可以先返回、再在后台确认的时间（毫秒），没有 stale-while-revalidate 时返回0
+     */
+    public long staleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @return 目标服务器不可用时过期后仍可以返回的时间（毫秒），没有 stale-if-error 时返回-1
+     */
+    public long staleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * @return 是否是变体标记（带 Vary 的响应保存在各自变体的键下，主键下只有标记）
+     */
+    public boolean variants() {
+        return CacheStore.VARIANTS.equals(statusLine);
+    }
+
+    /**
+     * @return Vary 首部的值，没有时返回 null
+     */
+    public String vary() {
+        return vary;
+    }
+
+    /**
+     * @return 响应体相对缓存内容开头的偏移
+     */
+    public long bodyOffset() {
+        return bodyOffset;
+    }
+
+    /**
+     * @return 保存响应体的段文件，只在内存中时返回 null
+     */
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * @return 响应体在段文件中的位置
+     */
+    long bodyPosition() {
+        return base + bodyOffset;
+    }
+
+    /**
+     * @return 保存的首部行，不包括 Date、Age、Content-Length 等发送时重新生成的首部以及记录原始长度的内部首部
+     */
+    public List<String> headerLines() {
+        return lines(headerBlock);
+    }
+
+    private static List<String> lines(byte[] block) {
+        List<String> lines = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i + 1 < block.length; i++) {
+            if (block[i] == '\r' && block[i + 1] == '\n') {
+                lines.add(new String(block, start, i - start, StandardCharsets.ISO_8859_1));
+                start = i + 2;
+                i++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 生成发送给客户端的响应头：预先生成的首部块加上当前的 Date、Age、实际的 Content-Length 和连接管理首部
+     * @param connection 连接管理首部，例如 KeepAlive.header(true)
+     * @param decode 是否解压后发送，见 decodes
+     * @return 以空行结尾的响应头
+     */
+    public byte[] head(String connection, boolean decode) {
+        byte[] block = decode ? identityBlock : encodedBlock;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(block.length + statusLine.length() + 128);
+        writeAscii(out, statusLine);
+        out.writeBytes(block);
+        long now = System.currentTimeMillis();
+        writeAscii(out, "Date: " + CacheStore.httpDate());
+        writeAscii(out, "Age: " + age(now) / 1000);
+        writeAscii(out, "Content-Length: " + contentLength(decode));
+        writeAscii(out, connection);
+        out.writeBytes(CRLF);
+        return out.toByteArray();
+    }
+
+    /**
+     * 判断客户端的条件请求能否用 304 Not Modified 回答
+     * 有 If-None-Match 时按弱比较匹配 ETag（"*" 匹配任何缓存），否则比较 If-Modified-Since 与 Last-Modified
+     * @param request 客户端的请求首部
+     * @return 客户端的副本与缓存相同时返回 true
+     */
+    public boolean notModified(HeaderTable request) {
+        String ifNoneMatch = request.value(HeaderName.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return etag != null && etagMatches(ifNoneMatch, etag);
+        }
+        long since = CacheStore.parseHttpDate(request.value(HeaderName.IF_MODIFIED_SINCE));
+        long modified = CacheStore.parseHttpDate(lastModified);
+        return since > 0 && modified > 0 && modified <= since;
+    }
+
+    // 在逗号分隔的 ETag 列表中按弱比较查找，忽略 W/ 前缀
+    private static boolean etagMatches(String list, String etag) {
+        String target = weak(etag);
+        int p = 0;
+        int length = list.length();
+        while (p < length) {
+            while (p < length && (list.charAt(p) == ',' || list.charAt(p) == ' ' || list.charAt(p) == '\t')) {
+                p++;
+            }
+            int start = p;
+            if (list.startsWith("W/", p)) {
+                p += 2;
+            }
+            if (p < length && list.charAt(p) == '"') {
+                // 带引号的 ETag 中可能有逗号
+                int close = list.indexOf('"', p + 1);
+                p = close < 0 ? length : close + 1;
+            } else {
+                while (p < length && list.charAt(p) != ',') {
+                    p++;
+                }
+            }
+            String candidate = list.substring(start, p).trim();
+            if (candidate.equals("*") || (!candidate.isEmpty() && weak(candidate).equals(target))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String weak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /**
+     * 生成 304 Not Modified 响应头，只包含描述缓存的首部（Cache-Control、ETag、Expires、Last-Modified、Vary 等）
+     * @param connection 连接管理首部
+     * @param decode 客户端是否收到解压后的内容，决定 ETag 是否为弱 ETag
+     * @return 以空行结尾的响应头
+     */
+    public byte[] notModifiedHead(String connection, boolean decode) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        writeAscii(out, statusLine.startsWith("HTTP/1.0") ? "HTTP/1.0 304 Not Modified" : "HTTP/1.1 304 Not Modified");
+        for (String line : lines(decode ? identityBlock : encodedBlock)) {
+            int colon = line.indexOf(':');
+            String name = colon < 0 ? line : line.substring(0, colon).trim();
+            if (name.equalsIgnoreCase("Cache-Control") || name.equalsIgnoreCase("Content-Location")
+                    || name.equalsIgnoreCase("ETag") || name.equalsIgnoreCase("Expires")
+                    || name.equalsIgnoreCase("Last-Modified") || name.equalsIgnoreCase("Vary")) {
+                writeAscii(out, line);
+            }
+        }
+        writeAscii(out, "Date: " + CacheStore.httpDate());
+        writeAscii(out, "Age: " + age(System.currentTimeMillis()) / 1000);
+        writeAscii(out, connection);
+        out.writeBytes(CRLF);
+        return out.toByteArray();
+    }
+
+    /**
+     * 生成 206 Partial Content 响应头，见 ByteRanges；只用于不需要解压的缓存
+     * 多个范围时 Content-Type 换成 multipart/byteranges，原来的 Content-Type 写在每一部分中
+     * @param connection 连接管理首部
+     * @param ranges 要返回的范围
+     * @return 以空行结尾的响应头
+     */
+    public byte[] partialHead(String connection, ByteRanges ranges) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(encodedBlock.length + 256);
+        writeAscii(out, statusLine.startsWith("HTTP/1.0") ? "HTTP/1.0 206 Partial Content" : "HTTP/1.1 206 Partial Content");
+        for (String line : lines(encodedBlock)) {
+            if (ranges.multipart() && line.regionMatches(true, 0, "Content-Type:", 0, 13)) {
+                continue;
+            }
+            writeAscii(out, line);
+        }
+        writeAscii(out, "Date: " + CacheStore.httpDate());
+        writeAscii(out, "Age: " + age(System.currentTimeMillis()) / 1000);
+        if (ranges.multipart()) {
+            writeAscii(out, "Content-Type: " + ranges.multipartType());
+        } else {
+            writeAscii(out, "Content-Range: " + ranges.contentRange());
+        }
+        writeAscii(out, "Content-Length: " + ranges.contentLength());
+        writeAscii(out, connection);
+        out.writeBytes(CRLF);
+        return out.toByteArray();
+    }
+
+    /**
+     * 生成 416 Range Not Satisfiable 响应头，Content-Range 给出完整的长度
+     * @param connection 连接管理首部
+     * @return 以空行结尾的响应头，没有响应体
+     */
+    public byte[] unsatisfiableHead(String connection) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        writeAscii(out, statusLine.startsWith("HTTP/1.0") ? "HTTP/1.0 416 Range Not Satisfiable"
+                : "HTTP/1.1 416 Range Not Satisfiable");
+        writeAscii(out, "Date: " + CacheStore.httpDate());
+        writeAscii(out, "Content-Range: bytes */" + bodyLength());
+        writeAscii(out, "Content-Length: 0");
+        writeAscii(out, connection);
+        out.writeBytes(CRLF);
+        return out.toByteArray();
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String line) {
+        out.writeBytes(line.getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(CRLF);
+    }
+
+    /**
+     * 发送响应体
+     * 内存中的响应体写入 out，与之前写入的响应头一起发送；
+     * 段文件中的响应体先把 out 中的响应头发送出去，再通过 FileChannel.transferTo 由内核直接发送到 target，不经过 Java 堆
+     * 需要解压时边读边解压写入 out
+     * @param out 客户端的输出流
+     * @param target 客户端的通道，阻塞模式，与 out 写入同一个连接
+     * @param decode 是否解压后发送，见 decodes
+     * @return 发送的响应体字节数，小于 contentLength 说明段文件被截断
+     */
+    public long transferBody(OutputStream out, WritableByteChannel target, boolean decode) throws IOException {
+        long length = bodyLength();
+        if (decode) {
+            long sent = Compression.gunzip(storedBody(), out);
+            out.flush();
+            return sent;
+        }
+        return transferRange(out, target, 0, length);
+    }
+
+    /**
+     * 发送响应体的一部分，用于范围请求，与 transferBody 一样由内核直接从段文件发送
+     * @param out 客户端的输出流
+     * @param target 客户端的通道
+     * @param offset 相对响应体开头的偏移
+     * @param length 字节数
+     * @return 发送的字节数，小于 length 说明段文件被截断
+     */
+    public long transferRange(OutputStream out, WritableByteChannel target, long offset, long length) throws IOException {
+        if (data != null) {
+            out.write(data, (int) (bodyOffset + offset), (int) length);
+            out.flush();
+            return length;
+        }
+        out.flush();
+        long start = base + bodyOffset + offset;
+        long sent = 0;
+        while (sent < length) {
+            long n = channel.transferTo(start + sent, length - sent, target);
+            if (n <= 0) {
+                break; // 段文件被截断
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    // 保存的响应体的输入流
+    private InputStream storedBody() {
+        if (data != null) {
+            return new ByteArrayInputStream(data, (int) bodyOffset, (int) bodyLength());
+        }
+        return new RegionInput(channel, base + bodyOffset, bodyLength());
+    }
+
+    /**
+     * 边读边解压的响应体，用于 NIO 引擎向不接受 gzip 的客户端分块发送，不在内存中保存整个解压后的响应体
+     * @return 解压后的内容，读取时可能阻塞（读段文件）
+     */
+    public InputStream decodedBody() throws IOException {
+        return Compression.gunzip(storedBody());
+    }
+
+    /**
+     * 保存的响应体的只读缓冲区，用于非阻塞发送
+     * 内存中的响应体直接包装，段文件中的响应体映射到内存（mmap），都不复制；需要解压时使用 decodedBody
+     * @return 只读缓冲区
+     */
+    public ByteBuffer body() throws IOException {
+        long length = bodyLength();
+        if (data != null) {
+            return ByteBuffer.wrap(data, (int) bodyOffset, (int) length).slice().asReadOnlyBuffer();
+        }
+        // 映射在段文件关闭（压缩后退役）后仍然有效
+        long start = base + bodyOffset;
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, Math.min(length, channel.size() - start)));
+    }
+}
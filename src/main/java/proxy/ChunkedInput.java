@@ -0,0 +1,112 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分块编码（Transfer-Encoding: chunked）的增量解码
+ * 每次读取只返回当前块中已经到达的数据，不需要等待整个报文
+ * 最后一个块之后的尾部首部（trailer）保存在 trailers 中
+ */
+public class ChunkedInput extends InputStream {
+    private final HttpInput in;
+    private long remaining;        // 当前块还未读取的字节数
+    private boolean first = true;  // 是否还没有读取第一个块
+    private boolean done;          // 是否已经读完最后一个块和尾部首部
+    private final List<String> trailers = new ArrayList<String>();
+
+    /**
+     * 构造函数
+     * @param in 报文头之后的输入
+     */
+    public ChunkedInput(HttpInput in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    /**
+     * 读取解码后的数据
+     * @return 读取的字节数，报文结束或输入提前结束时返回-1，可用 isDone 区分
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (done) {
+            return -1;
+        }
+        if (remaining == 0 && !nextChunk()) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            return -1; // 输入提前结束
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return done ? 0 : (int) Math.min(remaining, in.available());
+    }
+
+    /**
+     * @return 是否已经完整读取整个分块报文体
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return 尾部首部，只有 isDone 之后才完整
+     */
+    public List<String> trailers() {
+        return trailers;
+    }
+
+    // 读取下一个块的大小行，遇到最后一个块时读取尾部首部
+    // 返回是否还有数据，输入提前结束时返回 false
+    private boolean nextChunk() throws IOException {
+        if (!first) {
+            // 上一个块数据之后的 CRLF
+            String end = in.readLine();
+            if (end == null) {
+                return false;
+            }
+            if (!end.isEmpty()) {
+                throw new IOException("分块格式错误");
+            }
+        }
+        first = false;
+        String sizeLine = in.readLine();
+        if (sizeLine == null) {
+            return false;
+        }
+        int extension = sizeLine.indexOf(';'); // 忽略块扩展
+        String size = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+        try {
+            remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("分块大小错误: " + sizeLine);
+        }
+        if (remaining < 0) {
+            throw new IOException("分块大小错误: " + sizeLine);
+        }
+        if (remaining > 0) {
+            return true;
+        }
+        // 最后一个块，读取尾部首部直到空行
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            trailers.add(line);
+        }
+        done = line != null;
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+package proxy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 分块编码（Transfer-Encoding: chunked）的增量编码
+ * 每次写入作为一个块立即写出，最后调用 finish 写出结束块和尾部首部
+ * finish 不会关闭底层输出流，连接可以继续使用
+ */
+public class ChunkedOutput extends FilterOutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * 构造函数
+     * @param out 报文头之后的输出
+     */
+    public ChunkedOutput(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return; // 长度为0的块表示结束，不能写出
+        }
+        out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    /**
+     * 写出结束块和尾部首部
+     * @param trailers 尾部首部，可以为空
+     */
+    public void finish(List<String> trailers) throws IOException {
+        out.write('0');
+        out.write(CRLF);
+        for (String trailer : trailers) {
+            out.write(trailer.getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+        }
+        out.write(CRLF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush(); // 不关闭底层的连接
+    }
+}
@@ -0,0 +1,135 @@
+package proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 查找分块编码（Transfer-Encoding: chunked）报文体的结束位置
+ * 用于 NIO 引擎转发分块编码的请求体：报文体原样转发给上游，只需要知道在哪里结束，
+ * 之后的字节属于流水线中的下一个请求；数据可以分多次到达，状态在两次扫描之间保留
+ * 转发分块编码的响应体时同时解码：块数据交给 Data 回调，用于写入缓存、发给跟随者，
+ * 或者去掉分块格式后发给 HTTP/1.0 客户端
+ */
+class ChunkedScanner {
+    private static final int SIZE = 0;         // 块大小
+    private static final int EXTENSION = 1;    // 块大小之后的扩展，直到行尾
+    private static final int DATA = 2;         // 块数据
+    private static final int DATA_END = 3;     // 块数据之后的 CRLF
+    private static final int TRAILER = 4;      // 尾部首部的行首，空行表示报文体结束
+    private static final int TRAILER_LINE = 5; // 尾部首部的其余部分
+    private static final int DONE = 6;
+
+    private int state = SIZE;
+    private long remaining; // 当前块的大小或剩余的字节数
+    private boolean digits; // 当前块大小是否已经有数字
+
+    /**
+     * 接收解码后的块数据
+     */
+    interface Data {
+        /**
+         * @param data 块数据，只在调用期间有效
+         */
+        void accept(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * 扫描缓冲区中 [position, limit) 的数据，不改变缓冲区的位置
+     * @param buffer 收到的数据
+     * @return 其中属于报文体的字节数，报文体结束后其余的字节不属于报文体
+     * @throws IOException 分块格式错误
+     */
+    int scan(ByteBuffer buffer) throws IOException {
+        return scan(buffer, null);
+    }
+
+    /**
+     * 扫描缓冲区中 [position, limit) 的数据，不改变缓冲区的位置，其中的块数据依次交给 data
+     * @param buffer 收到的数据
+     * @param data 接收块数据，为 null 时不解码
+     * @return 其中属于报文体的字节数，报文体结束后其余的字节不属于报文体
+     * @throws IOException 分块格式错误
+     */
+    int scan(ByteBuffer buffer, Data data) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int p = start;
+        while (p < limit && state != DONE) {
+            if (state == DATA) {
+                int n = (int) Math.min(remaining, limit - p);
+                if (data != null) {
+                    data.accept(buffer.slice(p, n));
+                }
+                p += n;
+                remaining -= n;
+                if (remaining == 0) {
+                    state = DATA_END;
+                }
+                continue;
+            }
+            byte b = buffer.get(p++);
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (remaining > (Long.MAX_VALUE >> 4)) {
+                            throw new IOException("块大小过大");
+                        }
+                        remaining = (remaining << 4) | digit;
+                        digits = true;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        state = EXTENSION;
+                    } else if (b == '\n') {
+                        sizeLineEnd();
+                    } else if (b != '\r') {
+                        throw new IOException("块大小格式错误");
+                    }
+                    break;
+                case EXTENSION:
+                    if (b == '\n') {
+                        sizeLineEnd();
+                    }
+                    break;
+                case DATA_END:
+                    if (b == '\n') {
+                        state = SIZE;
+                        remaining = 0;
+                        digits = false;
+                    } else if (b != '\r') {
+                        throw new IOException("块数据之后缺少换行");
+                    }
+                    break;
+                case TRAILER:
+                    if (b == '\n') {
+                        state = DONE;
+                    } else if (b != '\r') {
+                        state = TRAILER_LINE;
+                    }
+                    break;
+                case TRAILER_LINE:
+                    if (b == '\n') {
+                        state = TRAILER;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return p - start;
+    }
+
+    private void sizeLineEnd() throws IOException {
+        if (!digits) {
+            throw new IOException("缺少块大小");
+        }
+        // 大小为0的块是最后一个块，之后是尾部首部
+        state = remaining == 0 ? TRAILER : DATA;
+    }
+
+    /**
+     * @return 报文体是否已经结束
+     */
+    boolean done() {
+        return state == DONE;
+    }
+}
@@ -0,0 +1,230 @@
+package proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 缓存内容的压缩
+ * HTML、JS、CSS、JSON 等文本响应写入缓存前用 gzip 压缩，减少磁盘和内存缓存的占用；
+ * 命中时接受 gzip 的客户端直接收到压缩后的字节（不再压缩），其他客户端收到边读边解压的原始内容
+ * 压缩后的缓存记录带 Content-Encoding: gzip，另有一个内部首部记录原始长度，发送给客户端时去掉
+ */
+public class Compression {
+    public static final int LEVEL = Integer.getInteger("proxy.cache.compressLevel", 6); // 压缩级别1-9，0表示不压缩
+    public static final int MIN_LENGTH = 1024; // 小于1KB的响应体压缩后收益很小
+    public static final double MIN_RATIO = 0.9; // 压缩后不小于原来的90%时保存原始内容
+    static final String IDENTITY_LENGTH = "X-Identity-Length"; // 内部首部，压缩前的响应体长度
+
+    private static final String[] TYPES = {
+            "text/", "application/json", "application/javascript", "application/x-javascript",
+            "application/ecmascript", "application/xml", "application/xhtml+xml", "application/rss+xml",
+            "application/atom+xml", "application/manifest+json", "image/svg+xml"
+    };
+
+    /**
+     * 判断响应体是否值得压缩后保存
+     * 只压缩 200 响应中没有内容编码的文本类型；带 Cache-Control: no-transform 的响应不能修改
+     * @param headers 响应头（包括状态行）
+     * @param length 响应体长度
+     * @return 是否压缩
+     */
+    public static boolean eligible(List<String> headers, long length) {
+        if (LEVEL <= 0 || length < MIN_LENGTH || KeepAlive.statusCode(headers.get(0)) != 200) {
+            return false;
+        }
+        boolean text = false;
+        for (int i = 1; i < headers.size(); i++) {
+            String line = headers.get(i);
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim().toLowerCase();
+            if (name.equalsIgnoreCase("Content-Encoding")) {
+                if (!value.isEmpty() && !value.equals("identity")) {
+                    return false;
+                }
+            } else if (name.equalsIgnoreCase("Content-Range")) {
+                return false;
+            } else if (name.equalsIgnoreCase("Cache-Control")) {
+                if (value.contains("no-transform")) {
+                    return false;
+                }
+            } else if (name.equalsIgnoreCase("Content-Type")) {
+                text = isText(value);
+            }
+        }
+        return text;
+    }
+
+    // 文本类型，包括 application/ld+json 等结构化语法后缀
+    private static boolean isText(String type) {
+        int semicolon = type.indexOf(';');
+        String mime = (semicolon < 0 ? type : type.substring(0, semicolon)).trim();
+        if (mime.endsWith("+json") || mime.endsWith("+xml")) {
+            return true;
+        }
+        for (String prefix : TYPES) {
+            if (mime.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 压缩响应体
+     * @param body 响应体
+     * @param length 响应体长度
+     * @return gzip 格式的内容
+     */
+    public static byte[] gzip(byte[] body, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192) {
+            {
+                def.setLevel(LEVEL);
+            }
+        }) {
+            gzip.write(body, 0, length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // 写入内存不会出错
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 边读边压缩，用于不在内存中保存的较大响应体
+     * @param in 原始内容
+     * @param out 输出流，写入 gzip 格式的内容，不关闭
+     * @throws IOException 读取或写入失败
+     */
+    public static void gzip(InputStream in, OutputStream out) throws IOException {
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192) {
+            {
+                def.setLevel(LEVEL);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // 只结束压缩，不关闭 out
+                try {
+                    finish();
+                } finally {
+                    def.end();
+                }
+            }
+        }) {
+            in.transferTo(gzip);
+        }
+    }
+
+    /**
+     * 压缩后保存的响应头：去掉 Content-Length 和 Content-Encoding: identity，
+     * 加上 Content-Encoding: gzip、原始长度和压缩后的 Content-Length
+     * @param headers 响应头（包括状态行）
+     * @param identityLength 原始响应体长度
+     * @param length 压缩后的长度
+     * @return 新的响应头
+     */
+    public static List<String> encodedHeaders(List<String> headers, long identityLength, long length) {
+        List<String> result = new ArrayList<String>(headers.size() + 2);
+        result.add(headers.get(0));
+        for (int i = 1; i < headers.size(); i++) {
+            String line = headers.get(i);
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)
+                    || line.regionMatches(true, 0, "Content-Encoding:", 0, 17)) {
+                continue;
+            }
+            result.add(line);
+        }
+        result.add("Content-Encoding: gzip");
+        result.add(IDENTITY_LENGTH + ": " + identityLength);
+        result.add("Content-Length: " + length);
+        return result;
+    }
+
+    /**
+     * 判断客户端是否接受 gzip，q=0 表示不接受；明确列出的 gzip 优先于 "*"
+     * @param request 请求首部
+     * @return 是否接受
+     */
+    public static boolean acceptsGzip(HeaderTable request) {
+        String value = request.value(HeaderName.ACCEPT_ENCODING);
+        if (value == null) {
+            return false;
+        }
+        boolean any = false;
+        int p = 0;
+        int length = value.length();
+        while (p < length) {
+            int end = value.indexOf(',', p);
+            if (end < 0) {
+                end = length;
+            }
+            int semicolon = value.indexOf(';', p);
+            int tokenEnd = semicolon >= 0 && semicolon < end ? semicolon : end;
+            String token = value.substring(p, tokenEnd).trim();
+            if (token.equalsIgnoreCase("gzip") || token.equalsIgnoreCase("x-gzip")) {
+                return !zeroQuality(value, tokenEnd, end);
+            }
+            if (token.equals("*")) {
+                any = !zeroQuality(value, tokenEnd, end);
+            }
+            p = end + 1;
+        }
+        return any;
+    }
+
+    // 参数中是否有 q=0（包括 0.0、0.00 等）
+    private static boolean zeroQuality(String value, int start, int end) {
+        String params = value.substring(start, end).replace(" ", "").toLowerCase();
+        int q = params.indexOf(";q=");
+        if (q < 0) {
+            return false;
+        }
+        for (int i = q + 3; i < params.length() && params.charAt(i) != ';'; i++) {
+            char c = params.charAt(i);
+            if (c != '0' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 边读边解压
+     * @param in gzip 格式的内容
+     * @return 解压后的内容
+     * @throws IOException gzip 头格式错误
+     */
+    public static InputStream gunzip(InputStream in) throws IOException {
+        return new GZIPInputStream(in, 8192);
+    }
+
+    /**
+     * 边读边解压，写入输出流
+     * @param in gzip 格式的内容
+     * @param out 输出流
+     * @return 解压后的字节数
+     * @throws IOException 内容不完整或格式错误
+     */
+    public static long gunzip(InputStream in, OutputStream out) throws IOException {
+        try (InputStream gzip = gunzip(in)) {
+            byte[] buffer = new byte[16 * 1024];
+            long total = 0;
+            int n;
+            while ((n = gzip.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                total += n;
+            }
+            return total;
+        }
+    }
+}
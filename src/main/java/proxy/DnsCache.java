@@ -0,0 +1,242 @@
+package proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 域名解析缓存
+ * 成功的解析结果保留 TTL 时间，解析失败的结果也短暂保留，避免对不存在的域名反复解析
+ * 经常访问的域名在过期之前由后台线程提前刷新，请求不必等待解析
+ * 同一域名同时未命中时只解析一次，其余请求等待同一个结果
+ */
+public class DnsCache {
+    public static final long TTL = Long.getLong("proxy.dns.ttl", 60000); // 解析结果保留60秒
+    public static final long NEGATIVE_TTL = Long.getLong("proxy.dns.negativeTtl", 5000); // 解析失败的结果保留5秒
+    public static final int MAX_ENTRIES = Integer.getInteger("proxy.dns.maxEntries", 10000); // 最多缓存的域名数
+    private static final double REFRESH_AHEAD = 0.8; // 超过 TTL 的80%后提前刷新
+    private static final int POPULAR_HITS = 2; // 上次解析后命中至少2次才提前刷新
+
+    private static final DnsCache SHARED = new DnsCache(Resolver.SYSTEM);
+
+    private volatile Resolver resolver;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> pending = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+    private final ExecutorService refresher = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "dns-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 统计信息
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder resolveNanos = new LongAdder();
+
+    // 一个域名的解析结果
+    private static class Entry {
+        final InetAddress[] addresses;       // 解析失败时为 null
+        final String failure;                // 解析失败的原因
+        final long resolvedAt;
+        final long expiresAt;
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, String failure, long resolvedAt, long ttl) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.resolvedAt = resolvedAt;
+            this.expiresAt = resolvedAt + ttl;
+        }
+    }
+
+    /**
+     * 构造函数
+     * @param resolver 实际执行解析的解析器
+     */
+    public DnsCache(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return 所有代理共用的解析缓存
+     */
+    public static DnsCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * 替换解析器并清空缓存，例如测试时使用本地解析
+     * @param resolver 新的解析器
+     */
+    public void setResolver(Resolver resolver) {
+        this.resolver = resolver;
+        entries.clear();
+    }
+
+    /**
+     * 解析域名，优先使用缓存
+     * @param host 主机名
+     * @return 主机的所有地址
+     * @throws UnknownHostException 域名不存在（可能来自缓存的失败结果）
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        return resolve(host, null);
+    }
+
+    /**
+     * 解析域名，优先使用缓存，并把实际解析花费的时间记入 DNS 阶段
+     * @param host 主机名
+     * @param timings 请求的耗时记录，可以为 null
+     * @return 主机的所有地址
+     * @throws UnknownHostException 域名不存在（可能来自缓存的失败结果）
+     */
+    public InetAddress[] resolve(String host, Timings timings) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(host);
+        if (entry != null && now < entry.expiresAt) {
+            if (entry.addresses == null) {
+                negativeHits.increment();
+                throw new UnknownHostException(entry.failure);
+            }
+            hits.increment();
+            int count = entry.hits.incrementAndGet();
+            if (count >= POPULAR_HITS && now - entry.resolvedAt >= TTL * REFRESH_AHEAD
+                    && entry.refreshing.compareAndSet(false, true)) {
+                refresher.execute(() -> refresh(host));
+            }
+            return entry.addresses;
+        }
+        misses.increment();
+        long start = System.nanoTime();
+        try {
+            entry = load(host);
+        } finally {
+            if (timings != null) {
+                timings.add(Timings.Phase.DNS, System.nanoTime() - start);
+            }
+        }
+        if (entry.addresses == null) {
+            throw new UnknownHostException(entry.failure);
+        }
+        return entry.addresses;
+    }
+
+    /**
+     * @return 当前的统计信息
+     */
+    public Stats stats() {
+        return new Stats(hits.sum(), negativeHits.sum(), misses.sum(), refreshes.sum(), resolveNanos.sum(), entries.size());
+    }
+
+    // 解析并放入缓存，同一域名同时只有一个线程真正解析
+    private Entry load(String host) {
+        CompletableFuture<Entry> future = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> existing = pending.putIfAbsent(host, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                return new Entry(null, host, System.currentTimeMillis(), 0);
+            }
+        }
+        try {
+            Entry entry = lookup(host);
+            store(host, entry);
+            future.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(host, future);
+        }
+    }
+
+    // 后台提前刷新；刷新失败时保留旧的结果直到过期
+    private void refresh(String host) {
+        refreshes.increment();
+        Entry entry = lookup(host);
+        if (entry.addresses != null) {
+            store(host, entry);
+        } else {
+            Entry old = entries.get(host);
+            if (old != null) {
+                old.refreshing.set(false);
+            }
+        }
+    }
+
+    // 调用解析器解析域名
+    private Entry lookup(String host) {
+        long start = System.nanoTime();
+        try {
+            InetAddress[] addresses = resolver.resolve(host);
+            return new Entry(addresses, null, System.currentTimeMillis(), TTL);
+        } catch (UnknownHostException e) {
+            String message = e.getMessage() != null ? e.getMessage() : host;
+            return new Entry(null, message, System.currentTimeMillis(), NEGATIVE_TTL);
+        } finally {
+            resolveNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    // 放入缓存，超过上限时先清理过期的结果，仍然超过则随意移除一个
+    private void store(String host, Entry entry) {
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(host)) {
+            long now = System.currentTimeMillis();
+            entries.values().removeIf(e -> now >= e.expiresAt);
+            Iterator<String> iterator = entries.keySet().iterator();
+            while (entries.size() >= MAX_ENTRIES && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        entries.put(host, entry);
+    }
+
+    /**
+     * 解析缓存的统计信息
+     */
+    public static class Stats {
+        public final long hits;          // 命中成功结果的次数
+        public final long negativeHits;  // 命中失败结果的次数
+        public final long misses;        // 未命中、需要解析的次数
+        public final long refreshes;     // 后台提前刷新的次数
+        public final long resolveNanos;  // 实际解析的总时间
+        public final int size;           // 缓存的域名数
+
+        Stats(long hits, long negativeHits, long misses, long refreshes, long resolveNanos, int size) {
+            this.hits = hits;
+            this.negativeHits = negativeHits;
+            this.misses = misses;
+            this.refreshes = refreshes;
+            this.resolveNanos = resolveNanos;
+            this.size = size;
+        }
+
+        /**
+         * @return 命中率（包括命中失败结果）
+         */
+        public double hitRate() {
+            long total = hits + negativeHits + misses;
+            return total == 0 ? 0 : (double) (hits + negativeHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d negativeHits=%d misses=%d hitRate=%.2f refreshes=%d resolve=%.1fms size=%d",
+                    hits, negativeHits, misses, hitRate(), refreshes, resolveNanos / 1e6, size);
+        }
+    }
+}
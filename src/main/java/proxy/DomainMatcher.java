@@ -0,0 +1,194 @@
+package proxy;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * 域名匹配
+ * 用于允许访问的网站和钓鱼网站列表，支持四种规则：
+ * example.com 只匹配 example.com（精确匹配，与之前的配置含义相同）；*.example.com 只匹配子域名（不包括 example.com 本身）；
+ * .example.com 匹配 example.com 及其所有子域名（后缀匹配）；单独的 * 匹配所有主机
+ * 规则按标签从右到左建成字典树（com → example → www），查找时从主机名末尾逐个标签向下走，
+ * 时间只与主机名的标签数有关，与规则数量无关；查找时直接比较主机名中的字符，不创建子字符串
+ * 构造后不再修改，可以被多个线程同时使用；忽略 ASCII 字母的大小写和末尾的点
+ */
+public class DomainMatcher {
+    private static final int EXACT = 1;      // 匹配该域名本身
+    private static final int SUBDOMAINS = 2; // 匹配该域名的所有子域名
+
+    private final Node root = new Node();
+    private final int size;
+
+    /**
+     * 一个标签对应的节点，子节点保存在开放寻址的哈希表中
+     */
+    private static final class Node {
+        String[] labels;
+        int[] hashes;
+        Node[] children;
+        int count;
+        int flags;
+
+        // 在子节点中查找 host 的 [start, end) 部分
+        Node child(String host, int start, int end, int hash) {
+            if (labels == null) {
+                return null;
+            }
+            int mask = labels.length - 1;
+            int length = end - start;
+            for (int i = hash & mask; labels[i] != null; i = (i + 1) & mask) {
+                if (hashes[i] == hash && labels[i].length() == length
+                        && labels[i].regionMatches(true, 0, host, start, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        // 构造时使用，标签已经是小写
+        Node add(String label) {
+            int hash = hash(label, 0, label.length());
+            Node child = child(label, 0, label.length(), hash);
+            if (child != null) {
+                return child;
+            }
+            if (labels == null || (count + 1) * 4 > labels.length * 3) {
+                grow();
+            }
+            int mask = labels.length - 1;
+            int i = hash & mask;
+            while (labels[i] != null) {
+                i = (i + 1) & mask;
+            }
+            child = new Node();
+            labels[i] = label;
+            hashes[i] = hash;
+            children[i] = child;
+            count++;
+            return child;
+        }
+
+        private void grow() {
+            String[] oldLabels = labels;
+            int[] oldHashes = hashes;
+            Node[] oldChildren = children;
+            int capacity = oldLabels == null ? 2 : oldLabels.length * 2;
+            labels = new String[capacity];
+            hashes = new int[capacity];
+            children = new Node[capacity];
+            if (oldLabels == null) {
+                return;
+            }
+            for (int j = 0; j < oldLabels.length; j++) {
+                if (oldLabels[j] != null) {
+                    int i = oldHashes[j] & (capacity - 1);
+                    while (labels[i] != null) {
+                        i = (i + 1) & (capacity - 1);
+                    }
+                    labels[i] = oldLabels[j];
+                    hashes[i] = oldHashes[j];
+                    children[i] = oldChildren[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * 构造函数，编译所有规则
+     * @param rules 规则，空白的规则被忽略
+     */
+    public DomainMatcher(Collection<String> rules) {
+        int size = 0;
+        for (String rule : rules) {
+            if (add(rule.trim().toLowerCase(Locale.ROOT))) {
+                size++;
+            }
+        }
+        this.size = size;
+    }
+
+    private boolean add(String rule) {
+        int flags = EXACT;
+        if (rule.startsWith("*.")) {
+            rule = rule.substring(2);
+            flags = SUBDOMAINS;
+        } else if (rule.startsWith(".")) {
+            rule = rule.substring(1);
+            flags = EXACT | SUBDOMAINS;
+        } else if (rule.equals("*")) {
+            root.flags |= SUBDOMAINS;
+            return true;
+        }
+        if (rule.endsWith(".")) {
+            rule = rule.substring(0, rule.length() - 1);
+        }
+        if (rule.isEmpty()) {
+            return false;
+        }
+        Node node = root;
+        int end = rule.length();
+        while (end > 0) {
+            int dot = rule.lastIndexOf('.', end - 1);
+            node = node.add(rule.substring(dot + 1, end));
+            end = dot;
+        }
+        node.flags |= flags;
+        return true;
+    }
+
+    /**
+     * 判断主机是否匹配任意一条规则
+     * @param host 主机名
+     * @return 是否匹配
+     */
+    public boolean matches(String host) {
+        if (host == null) {
+            return false;
+        }
+        if ((root.flags & SUBDOMAINS) != 0) {
+            return true;
+        }
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        Node node = root;
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            int start = dot + 1;
+            node = node.child(host, start, end, hash(host, start, end));
+            if (node == null) {
+                return false;
+            }
+            if (dot < 0) {
+                return (node.flags & EXACT) != 0;
+            }
+            // 还有更左边的标签，说明是该节点的子域名
+            if ((node.flags & SUBDOMAINS) != 0) {
+                return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+    /**
+     * @return 规则的数量
+     */
+    public int size() {
+        return size;
+    }
+
+    // 忽略大小写的哈希，只转换 ASCII 字母
+    private static int hash(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = 31 * hash + c;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
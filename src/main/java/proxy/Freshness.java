@@ -0,0 +1,246 @@
+package proxy;
+
+/**
+ * 缓存的新鲜度判断（RFC 9111）
+ * 新鲜期依次由 s-maxage、max-age、Expires 决定，都没有时按 Last-Modified 启发式估计；
+ * 当前年龄由 Age 首部、Date 与收到响应的时间计算。新鲜的缓存直接返回给客户端，不需要连接目标服务器，
+ * 过期的缓存先向目标服务器确认（条件请求）
+ * 代理是共享缓存：带 no-store、private 的响应不缓存，带 no-cache 的响应每次使用前都要确认
+ * 过期的缓存在两种情况下可以不经确认返回（RFC 5861）：
+ * 在响应的 stale-while-revalidate 时间窗口内先返回缓存，同时由 CacheRefresher 在后台确认；
+ * 确认时目标服务器不可用（连接失败、超时或 5xx），在 stale-if-error 时间窗口内返回过期的缓存
+ */
+public class Freshness {
+    public static final double HEURISTIC_FRACTION = 0.1; // 启发式新鲜期为 Date 与 Last-Modified 之差的10%
+    public static final long HEURISTIC_MAX = Long.getLong("proxy.cache.heuristicMax", 24 * 3600 * 1000L); // 启发式新鲜期最长1天
+    public static final long STALE_IF_ERROR = Long.getLong("proxy.cache.staleIfError", 300000); // 响应没有 stale-if-error 时，目标服务器不可用时最多返回过期5分钟的缓存，0表示不返回
+    public static final int STALE_TIMEOUT = Integer.getInteger("proxy.cache.staleTimeout", 5000); // 有可以返回的过期缓存时，等待目标服务器最多5秒
+
+    /**
+     * 默认可以缓存的状态码，没有明确新鲜期时也可以启发式估计
+     * @param status 状态码
+     * @return 是否默认可以缓存
+     */
+    public static boolean isHeuristicallyCacheable(int status) {
+        switch (status) {
+            case 200: case 203: case 204: case 300: case 301: case 308:
+            case 404: case 405: case 410: case 414: case 501:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 请求能否使用缓存
+     * 带 Authorization 的请求的响应因用户而异，共享缓存不使用也不保存
+     * @param request 请求首部
+     * @return 能否使用缓存
+     */
+    public static boolean isCacheableRequest(HeaderTable request) {
+        return !request.contains(HeaderName.AUTHORIZATION);
+    }
+
+    /**
+     * 响应能否保存到共享缓存
+     * @param status 状态码
+     * @param request 请求首部
+     * @param response 响应首部
+     * @return 能否保存
+     */
+    public static boolean isStorable(int status, HeaderTable request, HeaderTable response) {
+        // 只保存完整的响应，部分内容（206）不能覆盖完整的缓存，范围请求由 ByteRanges 从完整的缓存返回
+        if (status == 206) {
+            return false;
+        }
+        if (request.hasToken(HeaderName.CACHE_CONTROL, "no-store")
+                || response.hasToken(HeaderName.CACHE_CONTROL, "no-store")
+                || response.hasToken(HeaderName.CACHE_CONTROL, "private")) {
+            return false;
+        }
+        // Vary: * 表示响应不能用于之后的任何请求
+        if (response.hasToken(HeaderName.VARY, "*")) {
+            return false;
+        }
+        return isHeuristicallyCacheable(status) || hasExplicitLifetime(response)
+                || response.hasToken(HeaderName.CACHE_CONTROL, "public");
+    }
+
+    private static boolean hasExplicitLifetime(HeaderTable response) {
+        return response.tokenValue(HeaderName.CACHE_CONTROL, "s-maxage") != null
+                || response.tokenValue(HeaderName.CACHE_CONTROL, "max-age") != null
+                || response.contains(HeaderName.EXPIRES);
+    }
+
+    /**
+     * 计算新鲜期
+     * @param status 状态码
+     * @param headers 响应首部
+     * @param date Date 首部的时间（毫秒），没有时为-1
+     * @return 新鲜期（毫秒），0 表示收到后立即过期
+     */
+    public static long lifetime(int status, HeaderTable headers, long date) {
+        // 共享缓存优先使用 s-maxage
+        String maxAge = headers.tokenValue(HeaderName.CACHE_CONTROL, "s-maxage");
+        if (maxAge == null) {
+            maxAge = headers.tokenValue(HeaderName.CACHE_CONTROL, "max-age");
+        }
+        if (maxAge != null) {
+            // 无效的 max-age 视为已经过期
+            return Math.max(0, seconds(maxAge)) * 1000;
+        }
+        String expires = headers.value(HeaderName.EXPIRES);
+        if (expires != null) {
+            // 无效的 Expires（例如 "0"）表示已经过期
+            long time = CacheStore.parseHttpDate(expires);
+            return time < 0 || date < 0 ? 0 : Math.max(0, time - date);
+        }
+        // 启发式新鲜期
+        long lastModified = CacheStore.parseHttpDate(headers.value(HeaderName.LAST_MODIFIED));
+        if (isHeuristicallyCacheable(status) && lastModified > 0 && date > lastModified) {
+            return Math.min(HEURISTIC_MAX, (long) ((date - lastModified) * HEURISTIC_FRACTION));
+        }
+        return 0;
+    }
+
+    /**
+     * 计算收到响应时的年龄（RFC 9111 4.2.3 的 corrected_initial_age）
+     * @param headers 响应首部
+     * @param date Date 首部的时间（毫秒），没有时为-1
+     * @param responseTime 收到响应的时间（毫秒）
+     * @return 年龄（毫秒）
+     */
+    public static long initialAge(HeaderTable headers, long date, long responseTime) {
+        long apparentAge = date > 0 ? Math.max(0, responseTime - date) : 0;
+        long ageValue = Math.max(0, seconds(headers.value(HeaderName.AGE))) * 1000;
+        return Math.max(apparentAge, ageValue);
+    }
+
+    /**
+     * 缓存是否需要每次使用前确认
+     * @param headers 响应首部
+     * @return 带 no-cache（或只有 Pragma: no-cache）时返回 true
+     */
+    public static boolean isNoCache(HeaderTable headers) {
+        if (headers.contains(HeaderName.CACHE_CONTROL)) {
+            return headers.hasToken(HeaderName.CACHE_CONTROL, "no-cache");
+        }
+        return headers.hasToken(HeaderName.PRAGMA, "no-cache");
+    }
+
+    /**
+     * 缓存过期后是否必须确认才能使用
+     * @param headers 响应首部
+     * @return 带 must-revalidate、proxy-revalidate 或 s-maxage 时返回 true
+     */
+    public static boolean isMustRevalidate(HeaderTable headers) {
+        return headers.hasToken(HeaderName.CACHE_CONTROL, "must-revalidate")
+                || headers.hasToken(HeaderName.CACHE_CONTROL, "proxy-revalidate")
+                || headers.tokenValue(HeaderName.CACHE_CONTROL, "s-maxage") != null;
+    }
+
+    /**
+     * 响应的 stale-while-revalidate
+     * @param headers 响应首部
+     * @return 过期后仍可以先返回、再在后台确认的时间（毫秒），没有时返回0
+     */
+    public static long staleWhileRevalidate(HeaderTable headers) {
+        return Math.max(0, seconds(headers.tokenValue(HeaderName.CACHE_CONTROL, "stale-while-revalidate"))) * 1000;
+    }
+
+    /**
+     * 响应的 stale-if-error
+     * @param headers 响应首部
+     * @return 目标服务器不可用时过期后仍可以返回的时间（毫秒），没有时返回-1
+     */
+    public static long staleIfError(HeaderTable headers) {
+        long seconds = seconds(headers.tokenValue(HeaderName.CACHE_CONTROL, "stale-if-error"));
+        return seconds < 0 ? -1 : seconds * 1000;
+    }
+
+    /**
+     * 判断缓存能否不经确认直接返回给客户端
+     * 同时考虑请求中的 no-cache、max-age、min-fresh 和 max-stale
+     * @param cached 缓存的响应
+     * @param request 请求首部
+     * @param now 当前时间（毫秒）
+     * @return 能否直接返回
+     */
+    public static boolean canServeWithoutValidation(CachedResponse cached, HeaderTable request, long now) {
+        if (cached.noCache() || requiresValidation(cached, request, now)) {
+            return false;
+        }
+        long age = cached.age(now);
+        long remaining = cached.lifetime() - age; // 剩余的新鲜期，小于0表示已经过期
+        long minFresh = seconds(request.tokenValue(HeaderName.CACHE_CONTROL, "min-fresh"));
+        if (minFresh > 0) {
+            remaining -= minFresh * 1000;
+        }
+        if (remaining > 0) {
+            return true;
+        }
+        // 客户端愿意接受过期的缓存，但 must-revalidate 的缓存过期后必须确认
+        if (cached.mustRevalidate() || !request.hasToken(HeaderName.CACHE_CONTROL, "max-stale")) {
+            return false;
+        }
+        long maxStale = seconds(request.tokenValue(HeaderName.CACHE_CONTROL, "max-stale"));
+        return maxStale < 0 || -remaining <= maxStale * 1000;
+    }
+
+    // 客户端要求确认（no-cache），或者缓存的年龄超过了客户端的 max-age
+    private static boolean requiresValidation(CachedResponse cached, HeaderTable request, long now) {
+        if (request.hasToken(HeaderName.CACHE_CONTROL, "no-cache")
+                || (!request.contains(HeaderName.CACHE_CONTROL) && request.hasToken(HeaderName.PRAGMA, "no-cache"))) {
+            return true;
+        }
+        long maxAge = seconds(request.tokenValue(HeaderName.CACHE_CONTROL, "max-age"));
+        return maxAge >= 0 && cached.age(now) > maxAge * 1000;
+    }
+
+    /**
+     * 判断过期的缓存能否先返回给客户端，再在后台确认（stale-while-revalidate）
+     * 客户端要求确认时、no-cache 以及 must-revalidate 的缓存不能先返回
+     * @param cached 缓存的响应
+     * @param request 请求首部
+     * @param now 当前时间（毫秒）
+     * @return 能否先返回
+     */
+    public static boolean canServeWhileRevalidating(CachedResponse cached, HeaderTable request, long now) {
+        if (cached.staleWhileRevalidate() <= 0 || cached.noCache() || cached.mustRevalidate()
+                || requiresValidation(cached, request, now)) {
+            return false;
+        }
+        return cached.age(now) - cached.lifetime() <= cached.staleWhileRevalidate();
+    }
+
+    /**
+     * 判断确认缓存时目标服务器不可用（连接失败、超时或 5xx）时能否返回过期的缓存（stale-if-error）
+     * 响应没有 stale-if-error 时使用 STALE_IF_ERROR，此时 no-cache 和 must-revalidate 的缓存不能返回
+     * @param cached 缓存的响应
+     * @param now 当前时间（毫秒）
+     * @return 能否返回
+     */
+    public static boolean canServeOnError(CachedResponse cached, long now) {
+        long window = cached.staleIfError();
+        if (window < 0) {
+            if (cached.noCache() || cached.mustRevalidate()) {
+                return false;
+            }
+            window = STALE_IF_ERROR;
+        }
+        return window > 0 && cached.age(now) - cached.lifetime() <= window;
+    }
+
+    // 解析秒数，为 null 或格式不正确时返回-1，过大的值按 2^31 秒处理
+    private static long seconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? -1 : Math.min(seconds, Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            return value.trim().matches("\\d+") ? Integer.MAX_VALUE : -1;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package proxy;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 代理需要识别的常用首部
+ * 首部名预先转为小写字节，解析时直接与原始字节比较（忽略大小写），不需要创建字符串
+ */
+public enum HeaderName {
+    HOST("Host"),
+    CONTENT_LENGTH("Content-Length"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
+    CONNECTION("Connection"),
+    PROXY_CONNECTION("Proxy-Connection"),
+    KEEP_ALIVE("Keep-Alive"),
+    CACHE_CONTROL("Cache-Control"),
+    PRAGMA("Pragma"),
+    EXPIRES("Expires"),
+    AGE("Age"),
+    DATE("Date"),
+    ETAG("ETag"),
+    LAST_MODIFIED("Last-Modified"),
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    IF_NONE_MATCH("If-None-Match"),
+    VARY("Vary"),
+    CONTENT_TYPE("Content-Type"),
+    CONTENT_ENCODING("Content-Encoding"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    RANGE("Range"),
+    IF_RANGE("If-Range"),
+    CONTENT_RANGE("Content-Range"),
+    AUTHORIZATION("Authorization");
+
+    private static final int MAX_LENGTH = 32;
+    // 按长度分组，查找时只比较长度相同的首部名
+    private static final HeaderName[][] BY_LENGTH = new HeaderName[MAX_LENGTH + 1][];
+
+    static {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            int count = 0;
+            for (HeaderName name : values()) {
+                if (name.lower.length == length) {
+                    count++;
+                }
+            }
+            BY_LENGTH[length] = new HeaderName[count];
+            count = 0;
+            for (HeaderName name : values()) {
+                if (name.lower.length == length) {
+                    BY_LENGTH[length][count++] = name;
+                }
+            }
+        }
+    }
+
+    private final String text;
+    private final byte[] lower;
+
+    HeaderName(String text) {
+        this.text = text;
+        this.lower = text.toLowerCase().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return 首部名的标准写法
+     */
+    public String text() {
+        return text;
+    }
+
+    /**
+     * 根据原始字节查找常用首部，忽略大小写
+     * @param data 字节数组
+     * @param offset 首部名的起始位置
+     * @param length 首部名的长度
+     * @return 对应的常用首部，不是常用首部时返回 null
+     */
+    public static HeaderName lookup(byte[] data, int offset, int length) {
+        if (length > MAX_LENGTH) {
+            return null;
+        }
+        for (HeaderName name : BY_LENGTH[length]) {
+            if (name.matches(data, offset)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 根据字符串查找常用首部，忽略大小写
+     * @param name 首部名
+     * @return 对应的常用首部，不是常用首部时返回 null
+     */
+    public static HeaderName lookup(String name) {
+        byte[] data = name.getBytes(StandardCharsets.ISO_8859_1);
+        return lookup(data, 0, data.length);
+    }
+
+    private boolean matches(byte[] data, int offset) {
+        for (int i = 0; i < lower.length; i++) {
+            if (toLower(data[offset + i]) != lower[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
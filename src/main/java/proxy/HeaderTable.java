@@ -0,0 +1,399 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一个报文的首部表
+ * 首部的原始字节保存在表自己的缓冲区中，每个首部只记录首部名和值在缓冲区中的偏移，
+ * 常用首部（HeaderName）在解析时直接建立索引，查询长度、判断 Connection 等都不需要创建字符串
+ * 每个连接复用同一个表，clear 之后缓冲区和偏移数组继续使用
+ */
+public class HeaderTable {
+    public static final int MAX_HEADERS = 256; // 最多256个首部
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private byte[] data = new byte[2048];
+    private int length;
+    private int count;
+    private int[] lineStart = new int[32];
+    private int[] nameEnd = new int[32];
+    private int[] valueStart = new int[32];
+    private int[] lineEnd = new int[32];
+    private HeaderName[] names = new HeaderName[32];
+    private final int[] first = new int[HeaderName.values().length]; // 每个常用首部第一次出现的位置
+
+    public HeaderTable() {
+        Arrays.fill(first, -1);
+    }
+
+    /**
+     * 清空所有首部
+     */
+    public void clear() {
+        length = 0;
+        count = 0;
+        Arrays.fill(first, -1);
+    }
+
+    /**
+     * 复制首部表，请求结束、表被下一个请求复用之后仍然可以使用，例如在后台线程中写入或确认缓存
+     * @return 新的首部表
+     */
+    public HeaderTable copy() {
+        HeaderTable copy = new HeaderTable();
+        copy.data = Arrays.copyOf(data, Math.max(length, 1));
+        copy.length = length;
+        copy.count = count;
+        copy.lineStart = lineStart.clone();
+        copy.nameEnd = nameEnd.clone();
+        copy.valueStart = valueStart.clone();
+        copy.lineEnd = lineEnd.clone();
+        copy.names = names.clone();
+        System.arraycopy(first, 0, copy.first, 0, first.length);
+        return copy;
+    }
+
+    /**
+     * 添加一个首部行，字节被复制到表的缓冲区中
+     * @param src 字节数组
+     * @param offset 首部行的起始位置
+     * @param len 首部行的长度（不含换行）
+     * @throws IOException 首部过多
+     */
+    public void add(byte[] src, int offset, int len) throws IOException {
+        if (count == MAX_HEADERS) {
+            throw new IOException("首部过多");
+        }
+        if (length + len > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + len));
+        }
+        if (count == lineStart.length) {
+            int size = count * 2;
+            lineStart = Arrays.copyOf(lineStart, size);
+            nameEnd = Arrays.copyOf(nameEnd, size);
+            valueStart = Arrays.copyOf(valueStart, size);
+            lineEnd = Arrays.copyOf(lineEnd, size);
+            names = Arrays.copyOf(names, size);
+        }
+        System.arraycopy(src, offset, data, length, len);
+        int start = length;
+        int end = length + len;
+        length = end;
+
+        // 首部名到冒号为止，值去掉两端的空白；没有冒号时整行作为首部名
+        int colon = start;
+        while (colon < end && data[colon] != ':') {
+            colon++;
+        }
+        int nEnd = colon;
+        while (nEnd > start && isSpace(data[nEnd - 1])) {
+            nEnd--;
+        }
+        int vStart = Math.min(colon + 1, end);
+        while (vStart < end && isSpace(data[vStart])) {
+            vStart++;
+        }
+        int vEnd = end;
+        while (vEnd > vStart && isSpace(data[vEnd - 1])) {
+            vEnd--;
+        }
+        HeaderName name = HeaderName.lookup(data, start, nEnd - start);
+        lineStart[count] = start;
+        nameEnd[count] = nEnd;
+        valueStart[count] = vStart;
+        lineEnd[count] = vEnd;
+        names[count] = name;
+        if (name != null && first[name.ordinal()] < 0) {
+            first[name.ordinal()] = count;
+        }
+        count++;
+    }
+
+    /**
+     * 添加一个完整的首部行，例如 NIO 引擎中已经拆分好的首部行
+     * @param line 首部行（不含换行）
+     */
+    public void add(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 添加一个首部，用于代理自己生成的首部
+     * @param name 首部名
+     * @param value 首部值
+     */
+    public void add(String name, String value) throws IOException {
+        byte[] line = (name + ": " + value).getBytes(StandardCharsets.ISO_8859_1);
+        add(line, 0, line.length);
+    }
+
+    /**
+     * @return 首部的数量
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param i 首部的位置
+     * @return 常用首部，不是常用首部时返回 null
+     */
+    public HeaderName nameAt(int i) {
+        return names[i];
+    }
+
+    /**
+     * @param i 首部的位置
+     * @param name 常用首部
+     * @return 该位置是否是指定的常用首部
+     */
+    public boolean is(int i, HeaderName name) {
+        return names[i] == name;
+    }
+
+    /**
+     * @param name 常用首部
+     * @return 是否包含该首部
+     */
+    public boolean contains(HeaderName name) {
+        return first[name.ordinal()] >= 0;
+    }
+
+    /**
+     * @param name 常用首部
+     * @return 该首部第一次出现的位置，不存在时返回-1
+     */
+    public int indexOf(HeaderName name) {
+        return first[name.ordinal()];
+    }
+
+    /**
+     * 把首部值解析为非负整数，例如 Content-Length，允许冒号后没有空格
+     * @param name 常用首部
+     * @return 解析得到的值，首部不存在或不是合法的非负整数时返回-1
+     */
+    public long longValue(HeaderName name) {
+        int i = first[name.ordinal()];
+        if (i < 0 || valueStart[i] == lineEnd[i]) {
+            return -1;
+        }
+        long value = 0;
+        for (int p = valueStart[i]; p < lineEnd[i]; p++) {
+            byte b = data[p];
+            if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * 判断首部值中是否包含指定的逗号分隔的标记，忽略大小写，检查该首部的所有出现
+     * 例如 Connection: close、Transfer-Encoding: chunked、Cache-Control: no-store
+     * @param name 常用首部
+     * @param token 小写的标记
+     * @return 是否包含
+     */
+    public boolean hasToken(HeaderName name, String token) {
+        int i = first[name.ordinal()];
+        if (i < 0) {
+            return false;
+        }
+        for (; i < count; i++) {
+            if (names[i] == name && tokenIn(valueStart[i], lineEnd[i], token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 查找逗号分隔的标记的参数值，忽略大小写，检查该首部的所有出现
+     * 例如 Cache-Control: max-age=60 中 max-age 的值为 60，带引号的值去掉引号
+     * @param name 常用首部
+     * @param token 小写的标记
+     * @return 参数值，标记不存在或没有参数值时返回 null
+     */
+    public String tokenValue(HeaderName name, String token) {
+        int i = first[name.ordinal()];
+        if (i < 0) {
+            return null;
+        }
+        for (; i < count; i++) {
+            if (names[i] != name) {
+                continue;
+            }
+            int end = lineEnd[i];
+            int p = valueStart[i];
+            while (p < end) {
+                while (p < end && (isSpace(data[p]) || data[p] == ',')) {
+                    p++;
+                }
+                int tokenStart = p;
+                while (p < end && data[p] != ',' && data[p] != '=' && !isSpace(data[p])) {
+                    p++;
+                }
+                boolean matched = p - tokenStart == token.length() && equalsIgnoreCase(tokenStart, token);
+                while (p < end && isSpace(data[p])) {
+                    p++;
+                }
+                if (p < end && data[p] == '=') {
+                    p++;
+                    while (p < end && isSpace(data[p])) {
+                        p++;
+                    }
+                    int valueStart = p;
+                    int valueEnd;
+                    if (p < end && data[p] == '"') {
+                        valueStart = ++p;
+                        while (p < end && data[p] != '"') {
+                            p++;
+                        }
+                        valueEnd = p;
+                    } else {
+                        while (p < end && data[p] != ',' && !isSpace(data[p])) {
+                            p++;
+                        }
+                        valueEnd = p;
+                    }
+                    if (matched) {
+                        return new String(data, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+                    }
+                }
+                // 跳过剩余部分，直到下一个逗号
+                while (p < end && data[p] != ',') {
+                    p++;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param name 常用首部
+     * @return 首部值，不存在时返回 null
+     */
+    public String value(HeaderName name) {
+        int i = first[name.ordinal()];
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * @param i 首部的位置
+     * @return 首部名
+     */
+    public String name(int i) {
+        return new String(data, lineStart[i], nameEnd[i] - lineStart[i], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param i 首部的位置
+     * @return 首部值
+     */
+    public String value(int i) {
+        return new String(data, valueStart[i], lineEnd[i] - valueStart[i], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param i 首部的位置
+     * @return 首部行（原始字节，不含换行）
+     */
+    public String line(int i) {
+        return new String(data, lineStart[i], lineEnd[i] - lineStart[i], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 把首部行的原始字节加上 CRLF 写出
+     * @param i 首部的位置
+     * @param out 输出流
+     */
+    public void writeLine(int i, OutputStream out) throws IOException {
+        out.write(data, lineStart[i], lineEnd[i] - lineStart[i]);
+        out.write(CRLF);
+    }
+
+    /**
+     * @return 所有首部行
+     */
+    public List<String> lines() {
+        List<String> lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(line(i));
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(line(i)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    // 在 [start, end) 中查找逗号分隔的标记
+    private boolean tokenIn(int start, int end, String token) {
+        int p = start;
+        while (p < end) {
+            while (p < end && (isSpace(data[p]) || data[p] == ',')) {
+                p++;
+            }
+            int tokenStart = p;
+            while (p < end && data[p] != ',' && data[p] != ';' && data[p] != '=' && !isSpace(data[p])) {
+                p++;
+            }
+            if (p - tokenStart == token.length() && equalsIgnoreCase(tokenStart, token)) {
+                return true;
+            }
+            // 跳过参数，直到下一个逗号
+            while (p < end && data[p] != ',') {
+                p++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把指定首部（忽略大小写）所有出现的值加入哈希，用于按 Vary 区分缓存的变体，不创建字符串
+     * 值中的空白被忽略，"gzip, deflate" 与 "gzip,deflate" 相同；没有该首部与值为空不同
+     * @param name 小写的首部名
+     * @param hasher 哈希
+     */
+    void hashValues(String name, CacheKey.Hasher hasher) {
+        boolean found = false;
+        for (int i = 0; i < count; i++) {
+            if (nameEnd[i] - lineStart[i] != name.length() || !equalsIgnoreCase(lineStart[i], name)) {
+                continue;
+            }
+            hasher.update(found ? ',' : '=');
+            found = true;
+            for (int p = valueStart[i]; p < lineEnd[i]; p++) {
+                if (!isSpace(data[p])) {
+                    hasher.update(data[p] & 0xff);
+                }
+            }
+        }
+        hasher.update(found ? 1 : 0);
+    }
+
+    private boolean equalsIgnoreCase(int offset, String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (HeaderName.toLower(data[offset + i]) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,202 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HTTP 报文的字节输入
+ * 在自己的字节缓冲区上逐行解析请求头和响应头，报文体按字节原样读取，
+ * 不经过字符解码，图片、视频等二进制内容不会被破坏，长度也按字节计算
+ * 首部行按 ISO-8859-1 转为字符串，与原始字节一一对应
+ */
+public class HttpInput extends InputStream {
+    public static final int MAX_LINE = 64 * 1024; // 单个首部行最长64KB
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private long filled; // 从底层输入流读入的总字节数
+
+    /**
+     * 构造函数
+     * @param in 底层输入流，通常为 Socket 的输入流
+     */
+    public HttpInput(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 读取一行，去掉结尾的 CRLF 或 LF
+     * @return 读取的行，输入结束时返回 null
+     * @throws IOException 读取出错或行超过 MAX_LINE
+     */
+    public String readLine() throws IOException {
+        int newline = findLineEnd();
+        if (newline < 0) {
+            // 输入结束，返回最后不完整的一行
+            if (limit == pos) {
+                return null;
+            }
+            String line = new String(buffer, pos, limit - pos, StandardCharsets.ISO_8859_1);
+            pos = limit;
+            return line;
+        }
+        String line = new String(buffer, pos, contentEnd(newline) - pos, StandardCharsets.ISO_8859_1);
+        pos = newline + 1;
+        return line;
+    }
+
+    /**
+     * 读取首部行直到空行，直接从缓冲区复制到首部表中，不创建字符串
+     * @param table 首部表，读取前会被清空
+     * @return 是否读到了结束首部的空行，输入提前结束时返回 false
+     * @throws IOException 读取出错、首部行过长或首部过多
+     */
+    public boolean readHeaders(HeaderTable table) throws IOException {
+        table.clear();
+        while (true) {
+            int newline = findLineEnd();
+            if (newline < 0) {
+                pos = limit;
+                return false;
+            }
+            int start = pos;
+            int end = contentEnd(newline);
+            pos = newline + 1;
+            if (end == start) {
+                return true;
+            }
+            table.add(buffer, start, end - start);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && fill() < 0) {
+            return -1;
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < limit) {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        // 缓冲区为空时直接读入调用者的数组，避免多一次复制
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            filled += n;
+        }
+        return n;
+    }
+
+    /**
+     * 把接下来的 length 个字节原样写入输出流
+     * 只在输入暂时没有更多数据时 flush，避免每读一次就发送一个小包
+     * @param out 输出流
+     * @param length 要转发的字节数
+     * @return 实际转发的字节数，小于 length 说明输入提前结束
+     */
+    public long transferTo(OutputStream out, long length) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(Math.max(length, 1), 16 * 1024)];
+        long total = 0;
+        int n;
+        while (total < length && (n = read(chunk, 0, (int) Math.min(chunk.length, length - total))) != -1) {
+            out.write(chunk, 0, n);
+            total += n;
+            if (available() == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+        return total;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    /**
+     * @return 已经处理的字节数，即下一个字节在输入中的位置
+     */
+    public long position() {
+        return filled - (limit - pos);
+    }
+
+    /**
+     * @return 缓冲区中是否还有已经读入但未处理的数据
+     */
+    public boolean ready() {
+        return pos < limit;
+    }
+
+    /**
+     * 取出缓冲区中已经读入但未处理的数据，例如 CONNECT 请求头之后客户端提前发送的数据
+     * @return 未处理的数据，可能为空数组
+     */
+    public byte[] takeBuffered() {
+        byte[] rest = Arrays.copyOfRange(buffer, pos, limit);
+        pos = limit;
+        return rest;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // 查找当前行结尾的 LF，必要时读入更多数据，输入结束时返回-1
+    private int findLineEnd() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = pos + scanned; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            scanned = limit - pos;
+            if (scanned >= MAX_LINE) {
+                throw new IOException("首部行过长");
+            }
+            if (fill() < 0) {
+                return -1;
+            }
+        }
+    }
+
+    // 行内容的结尾，去掉 LF 之前的 CR
+    private int contentEnd(int newline) {
+        return newline > pos && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+    }
+
+    // 读入更多数据，缓冲区满时先移动未处理的数据，仍然不够则扩大
+    private int fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_LINE + BUFFER_SIZE));
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n > 0) {
+            limit += n;
+            filled += n;
+        }
+        return n;
+    }
+}
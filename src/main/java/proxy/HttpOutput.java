@@ -0,0 +1,99 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP 报文的字节输出
+ * 首部行按 ISO-8859-1 编码并以 CRLF 结尾，报文体按字节原样写出
+ * 不会自动 flush，调用者在报文头或报文结束、需要对方立即收到时调用 flush
+ * 与 HttpInput 一样在自己的字节缓冲区上工作，不继承 BufferedOutputStream：
+ * 它的子类在 write 和 flush 中使用 synchronized，虚拟线程在阻塞的 Socket 写入期间会固定载体线程
+ * 每个连接只由一个线程使用，不需要加锁
+ */
+public class HttpOutput extends OutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+
+    /**
+     * 构造函数
+     * @param out 底层输出流，通常为 Socket 的输出流
+     */
+    public HttpOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            // 大块数据直接写出，不经过缓冲区
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * 写出一行并添加 CRLF
+     * @param line 首部行或状态行
+     */
+    public void println(String line) throws IOException {
+        print(line);
+        write(CRLF);
+    }
+
+    /**
+     * 写出空行，表示报文头结束
+     */
+    public void println() throws IOException {
+        write(CRLF);
+    }
+
+    /**
+     * 写出字符串，不添加换行
+     * @param text 字符串
+     */
+    public void print(String text) throws IOException {
+        write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
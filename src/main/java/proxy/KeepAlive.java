@@ -0,0 +1,122 @@
+package proxy;
+
+/**
+ * 客户端持久连接（keep-alive）的判断
+ * 代理自己管理与客户端、上游之间的连接，Connection 等逐跳首部不转发，
+ * 而是根据请求版本、请求首部和响应是否有明确的边界重新生成
+ */
+public class KeepAlive {
+    public static final int IDLE_TIMEOUT = 10000; // 等待同一连接上下一个请求的超时时间为10秒
+
+    /**
+     * 判断是否是逐跳的连接管理首部（Connection、Proxy-Connection、Keep-Alive）
+     * @param headerLine 首部行或首部名
+     * @return 是否是连接管理首部
+     */
+    public static boolean isConnectionHeader(String headerLine) {
+        return startsWithName(headerLine, "Connection") || startsWithName(headerLine, "Proxy-Connection")
+                || startsWithName(headerLine, "Keep-Alive");
+    }
+
+    /**
+     * 判断是否是逐跳的连接管理首部（Connection、Proxy-Connection、Keep-Alive）
+     * @param name 首部表中的常用首部，可以为 null
+     * @return 是否是连接管理首部
+     */
+    public static boolean isConnectionHeader(HeaderName name) {
+        return name == HeaderName.CONNECTION || name == HeaderName.PROXY_CONNECTION || name == HeaderName.KEEP_ALIVE;
+    }
+
+    /**
+     * HTTP/1.1 默认保持连接，HTTP/1.0 默认关闭连接
+     * @param version HTTP 版本
+     * @return 默认是否保持连接
+     */
+    public static boolean defaultFor(String version) {
+        return "HTTP/1.1".equals(version);
+    }
+
+    /**
+     * 根据请求中的 Connection 或 Proxy-Connection 首部更新是否保持连接
+     * @param keepAlive 当前的判断
+     * @param headerLine 首部行
+     * @return 更新后的判断
+     */
+    public static boolean update(boolean keepAlive, String headerLine) {
+        if (!startsWithName(headerLine, "Connection") && !startsWithName(headerLine, "Proxy-Connection")) {
+            return keepAlive;
+        }
+        String value = headerLine.toLowerCase();
+        if (value.contains("close")) {
+            return false;
+        }
+        if (value.contains("keep-alive")) {
+            return true;
+        }
+        return keepAlive;
+    }
+
+    /**
+     * 根据首部表中的 Connection 和 Proxy-Connection 首部更新是否保持连接
+     * @param keepAlive 当前的判断
+     * @param headers 首部表
+     * @return 更新后的判断
+     */
+    public static boolean update(boolean keepAlive, HeaderTable headers) {
+        if (headers.hasToken(HeaderName.CONNECTION, "close") || headers.hasToken(HeaderName.PROXY_CONNECTION, "close")) {
+            return false;
+        }
+        if (headers.hasToken(HeaderName.CONNECTION, "keep-alive") || headers.hasToken(HeaderName.PROXY_CONNECTION, "keep-alive")) {
+            return true;
+        }
+        return keepAlive;
+    }
+
+    /**
+     * 判断响应是否没有响应体（HEAD 请求、1xx、204、304）
+     * @param method 请求方法
+     * @param statusLine 响应状态行
+     * @return 是否没有响应体
+     */
+    public static boolean isBodyless(String method, String statusLine) {
+        if ("HEAD".equals(method)) {
+            return true;
+        }
+        int status = statusCode(statusLine);
+        return (status >= 100 && status < 200) || status == 204 || status == 304;
+    }
+
+    /**
+     * 从状态行中取出状态码
+     * @param statusLine 响应状态行
+     * @return 状态码，无法解析时返回-1
+     */
+    public static int statusCode(String statusLine) {
+        if (statusLine == null) {
+            return -1;
+        }
+        String[] parts = statusLine.split(" ", 3);
+        try {
+            return parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param keepAlive 是否保持连接
+     * @return 代理发出的 Connection 首部
+     */
+    public static String header(boolean keepAlive) {
+        return keepAlive ? "Connection: keep-alive" : "Connection: close";
+    }
+
+    // 判断首部行是否以指定的首部名开头，忽略大小写
+    private static boolean startsWithName(String headerLine, String name) {
+        if (!headerLine.regionMatches(true, 0, name, 0, name.length())) {
+            return false;
+        }
+        return headerLine.length() == name.length() || headerLine.charAt(name.length()) == ':'
+                || headerLine.charAt(name.length()) == ' ';
+    }
+}
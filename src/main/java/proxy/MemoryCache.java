@@ -0,0 +1,275 @@
+package proxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 缓存文件之上的内存缓存（一级缓存）
+ * 以占用的总字节数而不是条目数为上限，超过单项上限的响应不放入内存
+ * 使用分段 LRU：新条目先进入试用段，再次命中后升入保护段，保护段满时最久未用的条目降回试用段
+ * 内存已满时用 TinyLFU 频率估计决定是否接纳新条目：新条目的访问频率不高于将被淘汰的条目时不接纳，
+ * 一次性扫描大量 URL 不会把经常访问的响应挤出内存
+ */
+public class MemoryCache {
+    public static final long MAX_BYTES = Long.getLong("proxy.cache.memory", 64 * 1024 * 1024); // 内存缓存最多64MB
+    public static final long MAX_ENTRY = Long.getLong("proxy.cache.memoryMaxEntry", 1024 * 1024); // 单个响应最大1MB
+    private static final double PROTECTED_RATIO = 0.8; // 保护段最多占80%
+    private static final int ENTRY_OVERHEAD = 96; // 每个条目除内容外的估计开销
+    private static final int AVERAGE_ENTRY = 16 * 1024; // 用于估计条目数，决定频率表的大小
+
+    private final long maxBytes;
+    private final long maxProtected;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 按访问顺序排列，第一个为最久未用
+    private final LinkedHashMap<String, CachedResponse> probation = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedResponse> protectedSegment = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    private final FrequencySketch sketch;
+
+    // 统计信息
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * 构造函数
+     * @param maxBytes 最多占用的字节数
+     */
+    public MemoryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxProtected = (long) (maxBytes * PROTECTED_RATIO);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / AVERAGE_ENTRY)));
+    }
+
+    /**
+     * 查找缓存的响应，同时记录访问频率
+     * @param key 缓存键
+     * @return 缓存的响应，不在内存中时返回 null
+     */
+    public CachedResponse get(String key) {
+        lock.lock();
+        try {
+            sketch.increment(key);
+            CachedResponse response = protectedSegment.get(key);
+            if (response == null) {
+                response = probation.remove(key);
+                if (response != null) {
+                    // 再次命中，升入保护段
+                    probationBytes -= weight(key, response);
+                    protectedSegment.put(key, response);
+                    protectedBytes += weight(key, response);
+                    demote();
+                }
+            }
+            if (response != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 放入内存，超过单项上限或未被接纳时不放入
+     * 已有的同名条目总是被替换
+     * @param key 缓存键
+     * @param response 缓存的响应，必须保存在内存中
+     * @return 是否放入
+     */
+    public boolean put(String key, CachedResponse response) {
+        long weight = weight(key, response);
+        lock.lock();
+        try {
+            boolean replacing = removeLocked(key);
+            if (!response.inMemory() || response.size() > MAX_ENTRY || weight > maxBytes) {
+                return false;
+            }
+            while (probationBytes + protectedBytes + weight > maxBytes) {
+                Map.Entry<String, CachedResponse> victim = eldest(probation.isEmpty() ? protectedSegment : probation);
+                // 更新已有条目时总是接纳，否则只接纳访问频率更高的新条目
+                if (!replacing && sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+                    rejections.increment();
+                    return false;
+                }
+                removeLocked(victim.getKey());
+                evictions.increment();
+            }
+            probation.put(key, response);
+            probationBytes += weight;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从内存中移除，例如缓存文件被删除时
+     * @param key 缓存键
+     */
+    public void remove(String key) {
+        lock.lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 保护段超过上限时，最久未用的条目降回试用段
+    private void demote() {
+        while (protectedBytes > maxProtected) {
+            Map.Entry<String, CachedResponse> eldest = eldest(protectedSegment);
+            long weight = weight(eldest.getKey(), eldest.getValue());
+            protectedSegment.remove(eldest.getKey());
+            protectedBytes -= weight;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += weight;
+        }
+    }
+
+    private boolean removeLocked(String key) {
+        CachedResponse old = probation.remove(key);
+        if (old != null) {
+            probationBytes -= weight(key, old);
+            return true;
+        }
+        old = protectedSegment.remove(key);
+        if (old != null) {
+            protectedBytes -= weight(key, old);
+            return true;
+        }
+        return false;
+    }
+
+    private static Map.Entry<String, CachedResponse> eldest(LinkedHashMap<String, CachedResponse> segment) {
+        Iterator<Map.Entry<String, CachedResponse>> iterator = segment.entrySet().iterator();
+        return iterator.next();
+    }
+
+    private static long weight(String key, CachedResponse response) {
+        return response.size() + key.length() * 2L + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * @return 当前的统计信息
+     */
+    public Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(),
+                    probation.size() + protectedSegment.size(), probationBytes + protectedBytes, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 内存缓存的统计信息
+     */
+    public static class Stats {
+        public final long hits;        // 命中次数
+        public final long misses;      // 未命中次数
+        public final long evictions;   // 因空间不足而淘汰的条目数
+        public final long rejections;  // 因访问频率不够而未接纳的条目数
+        public final int entries;      // 条目数
+        public final long bytes;       // 占用的字节数
+        public final long maxBytes;    // 字节数上限
+
+        Stats(long hits, long misses, long evictions, long rejections, int entries, long bytes, long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return 命中率
+         */
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRate=%.2f entries=%d bytes=%d/%d evictions=%d rejections=%d",
+                    hits, misses, hitRate(), entries, bytes, maxBytes, evictions, rejections);
+        }
+    }
+
+    /**
+     * 访问频率的近似计数（Count-Min Sketch）
+     * 每个键对应4个4位计数器，取最小值作为频率；计数总数达到表大小的10倍后所有计数减半，使频率随时间衰减
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int size;
+
+        FrequencySketch(int width) {
+            int capacity = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+            this.table = new byte[DEPTH][capacity];
+            this.mask = capacity - 1;
+            this.sampleSize = capacity * 10;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (table[i][index] < 15) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++size >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, table[i][index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        // 所有计数减半
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >> 1);
+                }
+            }
+            size /= 2;
+        }
+
+        private int index(int hash, int i) {
+            int h = (hash ^ SEEDS[i]) * SEEDS[(i + 1) % DEPTH];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x45d9f3b;
+            return h ^ (h >>> 16);
+        }
+    }
+}
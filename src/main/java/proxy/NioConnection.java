@@ -0,0 +1,1421 @@
+package proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * NIO 引擎中的一个客户端连接
+ * 通过非阻塞状态机完成请求头解析、连接上游、请求/响应转发、缓存以及 CONNECT 隧道
+ * 客户端连接支持 keep-alive 和流水线请求，上游连接每个请求一条
+ * 除 post 提交的任务外，所有方法都只在所属事件循环线程中调用
+ */
+class NioConnection {
+    // 连接状态
+    private static final int HEAD = 0;      // 等待客户端的请求头
+    private static final int PREPARING = 1; // 正在查询缓存、解析域名或连接上游
+    private static final int EXCHANGE = 2;  // 正在与上游交换请求和响应
+    private static final int SERVING = 3;   // 正在发送本地生成的响应（缓存、钓鱼）
+    private static final int TUNNEL = 4;    // CONNECT 隧道
+    private static final int CLOSED = 5;
+
+    private static final int TIMEOUT = 30000;          // 等待上游的超时时间为30秒
+    private static final int TUNNEL_TIMEOUT = 300000;  // 隧道空闲超时时间为5分钟
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int DECODE_CHUNK = 64 * 1024; // 为客户端解压缓存时每次解压的字节数
+
+    private final NioEventLoop loop;
+    private final NioProxyServer server;
+    private final SocketChannel client;
+    private SelectionKey clientKey;
+    private SocketChannel upstream;
+    private SelectionKey upstreamKey;
+    private boolean upstreamConnected;
+    // 未处理的输入，写模式，数据位于 [0, position)，空闲时释放
+    private ByteBuffer clientIn;
+    private ByteBuffer upstreamIn;
+    // 尚未写出的输出
+    private final ArrayDeque<ByteBuffer> toClient = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> toUpstream = new ArrayDeque<ByteBuffer>();
+    private int state = HEAD;
+    private long lastActive = System.currentTimeMillis();
+
+    // 当前请求
+    private String method;
+    private String url;
+    private String version;
+    private String host;
+    private int port;
+    private boolean keepAlive;
+    private long requestRemaining;
+    private ChunkedScanner requestChunks; // 分块编码的请求体，原样转发，只查找结束位置
+    private String cacheFile;
+    private CachedResponse cached; // 查到的缓存
+    private final HeaderTable requestHeaders = new HeaderTable(); // 当前请求的首部，连接内复用
+    private boolean revalidating;
+    private SingleFlight.Flight flight; // 作为领导者获取未缓存的 URL 时不为 null
+    private SingleFlight.Flight following; // 跟随其他请求的获取时不为 null
+    private Runnable followListener;
+    private long followStart; // 开始等待领导者响应头的时间
+    private long followOffset; // 已经转发的响应体字节数
+    private boolean followChunked; // 是否以分块编码转发给客户端
+    private InetAddress[] followAddresses; // 跟随失败时自己连接上游使用
+    private InputStream decoding; // 为不接受 gzip 的客户端边解压边发送的缓存响应体
+    private boolean decodePending; // 阻塞线程池正在读取下一块解压后的数据
+    private long decodeExpected; // 解压后的响应体长度，即发送给客户端的 Content-Length
+    private final Timings timings = new Timings(); // 当前请求各阶段的耗时
+    private long connectStart;
+    private InetAddress[] upstreamAddresses; // 目标服务器的所有地址，连接失败时依次尝试下一个
+    private int addressIndex; // 正在连接的地址
+    private long phaseStart; // 等待响应头或转发响应体开始的时间
+    private int status; // 返回给客户端的状态码
+    private long responseBytes; // 返回给客户端的响应体字节数
+    private AccessLog.CacheResult cacheResult = AccessLog.CacheResult.NONE;
+    private boolean traceHeaders; // 本次请求是否跟踪首部
+    private AccessLog.BodySample bodySample; // 本次请求跟踪报文体时不为 null
+    private boolean logged; // 本次请求是否已经写入访问日志
+    private String clientAddress;
+
+    // 当前响应
+    private final HeaderTable responseHeaders = new HeaderTable(); // 当前响应的首部，连接内复用
+    private String statusLine; // 当前响应的状态行
+    private boolean responseHeadDone;
+    private long responseRemaining; // -1 表示响应以连接关闭或分块编码结束
+    private ChunkedScanner responseChunks; // 分块编码的响应体，查找结束位置并解码
+    private boolean clientChunked; // 分块编码的响应体是否原样转发给客户端，HTTP/1.0 客户端接收解码后的数据
+    private final ChunkedScanner.Data chunkData = this::onChunkData;
+    private boolean exchangeDone;
+    private List<String> cacheHeaders;
+    private CacheFill cacheFill; // 转发响应体时同时写入的缓存副本
+
+    // 隧道两端的结束状态
+    private boolean clientEof;
+    private boolean upstreamEof;
+    private boolean clientShutdown;
+    private boolean upstreamShutdown;
+
+    // 可以抛出 IOException 的处理步骤
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    NioConnection(NioEventLoop loop, SocketChannel client) {
+        this.loop = loop;
+        this.server = loop.server();
+        this.client = client;
+    }
+
+    void start(SelectionKey key) {
+        this.clientKey = key;
+    }
+
+    /**
+     * 处理就绪事件
+     * @param key 客户端或上游的 SelectionKey
+     */
+    void handle(SelectionKey key) {
+        lastActive = System.currentTimeMillis();
+        try {
+            if (key == clientKey) {
+                if (key.isWritable()) {
+                    flushClient();
+                }
+                if (state != CLOSED && key.isValid() && key.isReadable()) {
+                    onClientReadable();
+                }
+            } else if (key == upstreamKey) {
+                if (key.isConnectable()) {
+                    try {
+                        // 连接还没有完成时继续等待 OP_CONNECT
+                        if (!upstream.finishConnect()) {
+                            return;
+                        }
+                        onConnected();
+                    } catch (IOException e) {
+                        // 连接目标服务器失败，还有其他地址时连接下一个，否则允许的话返回过期的缓存
+                        if (!connectNextAddress() && !serveStaleOnError()) {
+                            throw e;
+                        }
+                    }
+                } else {
+                    if (key.isWritable()) {
+                        flushUpstream();
+                    }
+                    if (state != CLOSED && key.isValid() && key.isReadable()) {
+                        onUpstreamReadable();
+                    }
+                }
+            }
+            if (state != CLOSED) {
+                updateInterest();
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    /**
+     * 超时检查，由事件循环定期调用
+     * @param now 当前时间
+     */
+    void checkTimeout(long now) {
+        // 等待领导者的响应头超时，自己访问目标服务器
+        if (following != null && !following.ready() && now - followStart > SingleFlight.WAIT) {
+            try {
+                stopFollowing(true);
+                updateInterest();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+            return;
+        }
+        // 连接当前地址超时，还有其他地址时连接下一个
+        if (upstream != null && !upstreamConnected && now - lastActive > UpstreamPool.CONNECT_TIMEOUT) {
+            try {
+                if (connectNextAddress()) {
+                    lastActive = now;
+                    updateInterest();
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                return;
+            }
+        }
+        int limit = state == HEAD ? KeepAlive.IDLE_TIMEOUT : (state == TUNNEL ? TUNNEL_TIMEOUT : TIMEOUT);
+        // 有可以返回的过期缓存时不必等待太久
+        boolean fallback = state == EXCHANGE && revalidating && !responseHeadDone
+                && Freshness.canServeOnError(cached, System.currentTimeMillis());
+        if (fallback) {
+            limit = Math.min(limit, Freshness.STALE_TIMEOUT);
+        }
+        if (now - lastActive > limit) {
+            try {
+                if (fallback && serveStaleOnError()) {
+                    updateInterest();
+                    return;
+                }
+            } catch (IOException | RuntimeException ignored) {}
+            close();
+        }
+    }
+
+    // 在事件循环线程中继续执行，用于阻塞操作完成之后
+    private void post(Step step) {
+        loop.execute(() -> {
+            if (state == CLOSED) {
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            try {
+                step.run();
+                if (state != CLOSED) {
+                    updateInterest();
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        });
+    }
+
+    // ---------- 请求 ----------
+
+    private void onClientReadable() throws IOException {
+        switch (state) {
+            case HEAD:
+                if (!ensureCapacity(true)) {
+                    close(); // 请求头过大
+                    return;
+                }
+                if (client.read(clientIn) < 0) {
+                    close();
+                    return;
+                }
+                processRequestHead();
+                break;
+            case EXCHANGE:
+                readRequestBody();
+                break;
+            case TUNNEL:
+                relay(true);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // 解析缓冲区中完整的请求头
+    private void processRequestHead() throws IOException {
+        int end = clientIn == null ? -1 : headEnd(clientIn.array(), clientIn.position());
+        if (end < 0) {
+            return; // 请求头还不完整
+        }
+        String requestLine = parseHead(clientIn.array(), end, requestHeaders);
+        clientIn = consume(clientIn, end);
+        if (requestLine == null) {
+            close();
+            return;
+        }
+        onRequest(requestLine);
+    }
+
+    private void onRequest(String requestLine) throws IOException {
+        String[] requestParts = requestLine.split(" ");
+        if (requestParts.length < 3) {
+            close();
+            return;
+        }
+        method = requestParts[0]; // 请求方法
+        url = requestParts[1]; // 请求 URL
+        version = requestParts[2]; // HTTP 版本
+        timings.begin();
+        traceHeaders = AccessLog.sampleHeaders();
+        bodySample = AccessLog.sampleBody() ? new AccessLog.BodySample(null) : null;
+        if (traceHeaders) {
+            AccessLog.shared().trace("request " + requestLine + "\n" + requestHeaders);
+        }
+
+        // 与 CacheProxy 相同，非 http:// 开头的 URL 按 https 处理
+        String target = url.startsWith("http://") ? url : "https://" + url;
+        host = null;
+        try {
+            URL targetUrl = URI.create(target).toURL();
+            host = targetUrl.getHost();
+            port = targetUrl.getPort() == -1 ? (targetUrl.getProtocol().equals("https") ? 443 : 80) : targetUrl.getPort();
+        } catch (IllegalArgumentException | MalformedURLException ignored) {}
+        if (host != null && host.isEmpty()) {
+            host = null;
+        }
+        keepAlive = KeepAlive.update(KeepAlive.defaultFor(version), requestHeaders);
+
+        // 访问策略重新加载时，正在处理的请求继续使用同一个快照
+        AccessPolicy policy = AccessPolicy.current();
+        // 判断是否允许访问
+        if (!server.isAllowed(policy, method, host, port) && host != null) {
+            System.err.println("!!!***** " + server.user() + " 不允许访问 " + host + " *****!!!");
+            close();
+            return;
+        }
+        if (host == null) {
+            close();
+            return;
+        }
+        // 判断是否是钓鱼网站
+        if (policy.isFishing(host)) {
+            state = SERVING;
+            keepAlive = false;
+            byte[] fish = server.fishResponse();
+            int lineEnd = 0;
+            while (lineEnd < fish.length && fish[lineEnd] != '\r' && fish[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            status = KeepAlive.statusCode(new String(fish, 0, lineEnd, StandardCharsets.ISO_8859_1));
+            writeToClient(ByteBuffer.wrap(fish));
+            exchangeDone = true;
+            maybeFinish();
+            return;
+        }
+        if (method.equals("GET")) {
+            // 带 Authorization 的请求不使用也不保存缓存
+            if (Freshness.isCacheableRequest(requestHeaders)) {
+                cacheFile = CacheStore.keyFor(method, target);
+            }
+        } else if (!method.equals("CONNECT")) {
+            if (requestHeaders.hasToken(HeaderName.TRANSFER_ENCODING, "chunked")) {
+                requestChunks = new ChunkedScanner();
+            } else {
+                requestRemaining = Math.max(0, requestHeaders.longValue(HeaderName.CONTENT_LENGTH));
+            }
+        }
+        resolve();
+    }
+
+    // 在阻塞线程池中查询缓存并解析域名，完成后连接上游
+    // 缓存新鲜时直接返回缓存，不解析域名也不连接上游；
+    // 缓存过期但在 stale-while-revalidate 时间窗口内时同样直接返回，并在后台向目标服务器确认
+    private void resolve() {
+        state = PREPARING;
+        final String targetHost = host;
+        final int targetPort = port;
+        final String target = url;
+        final String file = cacheFile;
+        server.blockingExecutor().execute(() -> {
+            CachedResponse entry = file != null ? CacheStore.lookup(file, requestHeaders) : null;
+            long now = System.currentTimeMillis();
+            if (entry != null && Freshness.canServeWithoutValidation(entry, requestHeaders, now)) {
+                post(() -> serveFresh(entry, AccessLog.CacheResult.HIT));
+                return;
+            }
+            if (entry != null && Freshness.canServeWhileRevalidating(entry, requestHeaders, now)) {
+                // 请求首部在下一个请求开始时清空，后台确认使用副本
+                CacheRefresher.shared().refresh(file, entry, target, targetHost, targetPort, requestHeaders.copy());
+                post(() -> serveFresh(entry, AccessLog.CacheResult.STALE));
+                return;
+            }
+            InetAddress[] addresses = null;
+            try {
+                addresses = DnsCache.shared().resolve(targetHost, timings);
+            } catch (UnknownHostException ignored) {}
+            InetAddress[] resolved = addresses;
+            post(() -> onResolved(resolved, entry));
+        });
+    }
+
+    private void serveFresh(CachedResponse entry, AccessLog.CacheResult result) throws IOException {
+        cached = entry;
+        cacheResult = result;
+        phaseStart = System.nanoTime();
+        serveCache(null);
+    }
+
+    // 确认缓存时目标服务器不可用（域名解析失败、连接失败、超时或 5xx），在 stale-if-error 时间窗口内返回过期的缓存
+    // 返回是否已经返回缓存；已经开始转发上游的响应时不能再返回
+    private boolean serveStaleOnError() throws IOException {
+        if (!revalidating || responseHeadDone || state == CLOSED
+                || !Freshness.canServeOnError(cached, System.currentTimeMillis())) {
+            return false;
+        }
+        closeUpstream();
+        revalidating = false;
+        cacheResult = AccessLog.CacheResult.STALE;
+        phaseStart = System.nanoTime();
+        serveCache(null);
+        return true;
+    }
+
+    private void onResolved(InetAddress[] addresses, CachedResponse entry) throws IOException {
+        if (addresses == null || addresses.length == 0) {
+            cached = entry;
+            revalidating = entry != null && !method.equals("CONNECT");
+            if (!serveStaleOnError()) {
+                close();
+            }
+            return;
+        }
+        // 缓存未命中时，同一 URL 正在被其他请求获取则跟随其响应，否则成为领导者；范围请求不参与合并
+        if (cacheFile != null && entry == null && !requestHeaders.contains(HeaderName.RANGE)) {
+            flight = SingleFlight.shared().lead(cacheFile);
+            if (flight == null) {
+                SingleFlight.Flight leader = SingleFlight.shared().follow(cacheFile);
+                if (leader != null) {
+                    follow(leader, addresses);
+                    return;
+                }
+            }
+        }
+        connectUpstream(addresses, entry);
+    }
+
+    private void connectUpstream(InetAddress[] addresses, CachedResponse entry) throws IOException {
+        if (!method.equals("CONNECT")) {
+            if (cacheFile != null) {
+                cached = entry;
+                revalidating = entry != null;
+                cacheResult = revalidating ? AccessLog.CacheResult.REVALIDATED : AccessLog.CacheResult.MISS;
+            }
+            writeToUpstream(ByteBuffer.wrap(requestHead(entry)));
+        }
+        upstreamAddresses = addresses;
+        addressIndex = 0;
+        connectStart = System.nanoTime();
+        openUpstream();
+    }
+
+    // 连接 upstreamAddresses 中的当前地址，立即失败时尝试下一个
+    private void openUpstream() throws IOException {
+        while (true) {
+            upstream = SocketChannel.open();
+            upstream.configureBlocking(false);
+            upstreamKey = upstream.register(loop.selector(), 0, this);
+            try {
+                if (upstream.connect(new InetSocketAddress(upstreamAddresses[addressIndex], port))) {
+                    onConnected();
+                }
+                return;
+            } catch (IOException e) {
+                if (addressIndex + 1 >= upstreamAddresses.length) {
+                    throw e;
+                }
+                abandonConnect();
+                addressIndex++;
+            }
+        }
+    }
+
+    // 当前地址连接失败或超时，还有其他地址时关闭这次连接并连接下一个
+    // 连接建立之前没有发送任何数据，发往上游的队列保持不变
+    private boolean connectNextAddress() throws IOException {
+        if (upstream == null || upstreamConnected || upstreamAddresses == null
+                || addressIndex + 1 >= upstreamAddresses.length) {
+            return false;
+        }
+        abandonConnect();
+        addressIndex++;
+        openUpstream();
+        return true;
+    }
+
+    private void abandonConnect() {
+        upstreamKey.cancel();
+        try {
+            upstream.close();
+        } catch (IOException ignored) {}
+        upstream = null;
+        upstreamKey = null;
+    }
+
+    // 生成发往上游的请求头
+    // 去掉逐跳首部并要求上游在响应后关闭连接，GET 请求去掉客户端的条件首部，确认缓存时去掉范围请求
+    private byte[] requestHead(CachedResponse entry) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        writeLine(head, method + " " + url + " " + version);
+        for (int i = 0; i < requestHeaders.size(); i++) {
+            HeaderName name = requestHeaders.nameAt(i);
+            if (KeepAlive.isConnectionHeader(name)) {
+                continue;
+            }
+            if (cacheFile != null && (name == HeaderName.IF_MODIFIED_SINCE || name == HeaderName.IF_NONE_MATCH)) {
+                continue;
+            }
+            if (revalidating && (name == HeaderName.RANGE || name == HeaderName.IF_RANGE)) {
+                continue;
+            }
+            requestHeaders.writeLine(i, head);
+        }
+        // 确认缓存时换成缓存的 ETag 和 Last-Modified
+        if (revalidating && entry.etag() != null) {
+            writeLine(head, "If-None-Match: " + entry.etag());
+        }
+        if (revalidating && entry.lastModified() != null) {
+            writeLine(head, "If-Modified-Since: " + entry.lastModified());
+        }
+        writeLine(head, KeepAlive.header(false));
+        writeLine(head, "");
+        return head.toByteArray();
+    }
+
+    private void onConnected() throws IOException {
+        upstreamConnected = true;
+        timings.add(Timings.Phase.CONNECT, System.nanoTime() - connectStart);
+        if (method.equals("CONNECT")) {
+            // 此时已经成功连接到目标服务器，返回 200 Connection Established 后直接转发
+            state = TUNNEL;
+            status = 200;
+            writeToClient(ByteBuffer.wrap("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            if (clientIn != null && clientIn.position() > 0) {
+                clientIn.flip();
+                writeToUpstream(clientIn);
+            }
+            clientIn = null;
+            return;
+        }
+        state = EXCHANGE;
+        phaseStart = System.nanoTime();
+        flushUpstream();
+        // 先发送已经读入缓冲区的请求体
+        if (requestBodyPending() && clientIn != null && clientIn.position() > 0) {
+            forwardBufferedBody();
+        }
+    }
+
+    // 是否还有请求体没有转发
+    private boolean requestBodyPending() {
+        return requestRemaining > 0 || (requestChunks != null && !requestChunks.done());
+    }
+
+    // 转发 clientIn 中属于请求体的部分，之后的字节留给流水线中的下一个请求
+    private void forwardBufferedBody() throws IOException {
+        int n;
+        if (requestChunks != null) {
+            n = requestChunks.scan(ByteBuffer.wrap(clientIn.array(), 0, clientIn.position()));
+        } else {
+            n = (int) Math.min(requestRemaining, clientIn.position());
+            requestRemaining -= n;
+        }
+        writeToUpstream(ByteBuffer.wrap(clientIn.array(), 0, n));
+        clientIn = consume(clientIn, n);
+    }
+
+    // 继续读取请求体并转发，最多读取到请求体结束，避免读入后续的流水线请求
+    // 分块编码的请求体事先不知道长度，读入 clientIn，结束之后多读的字节留在其中
+    private void readRequestBody() throws IOException {
+        if (requestChunks != null) {
+            if (clientIn == null) {
+                clientIn = ByteBuffer.allocate(16 * 1024);
+            }
+            if (client.read(clientIn) < 0) {
+                close();
+                return;
+            }
+            forwardBufferedBody();
+            return;
+        }
+        ByteBuffer buffer = loop.scratch();
+        buffer.limit((int) Math.min(buffer.capacity(), requestRemaining));
+        int n = client.read(buffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        requestRemaining -= n;
+        buffer.flip();
+        writeToUpstream(buffer);
+    }
+
+    // ---------- 响应 ----------
+
+    private void onUpstreamReadable() throws IOException {
+        if (state == TUNNEL) {
+            relay(false);
+            return;
+        }
+        if (!responseHeadDone) {
+            if (!ensureCapacity(false)) {
+                close(); // 响应头过大
+                return;
+            }
+            if (upstream.read(upstreamIn) < 0) {
+                if (!serveStaleOnError()) {
+                    close();
+                }
+                return;
+            }
+            processResponseHead();
+            return;
+        }
+        ByteBuffer buffer = loop.scratch();
+        if (responseRemaining >= 0) {
+            buffer.limit((int) Math.min(buffer.capacity(), responseRemaining));
+        }
+        int n = upstream.read(buffer);
+        if (n < 0) {
+            if (responseRemaining < 0 && responseChunks == null) {
+                responseComplete(); // 以连接关闭结束的响应
+            } else {
+                close();
+            }
+            return;
+        }
+        buffer.flip();
+        onResponseBody(buffer);
+    }
+
+    private void processResponseHead() throws IOException {
+        int end = headEnd(upstreamIn.array(), upstreamIn.position());
+        if (end < 0) {
+            return; // 响应头还不完整
+        }
+        statusLine = parseHead(upstreamIn.array(), end, responseHeaders);
+        if (statusLine == null) {
+            close();
+            return;
+        }
+        int status = KeepAlive.statusCode(statusLine);
+        if (status >= 100 && status < 200) {
+            // 1xx 临时响应原样转发，继续等待最终响应
+            writeToClient(ByteBuffer.wrap(Arrays.copyOf(upstreamIn.array(), end)));
+            upstreamIn = consume(upstreamIn, end);
+            if (upstreamIn != null) {
+                processResponseHead();
+            }
+            return;
+        }
+        upstreamIn = consume(upstreamIn, end);
+        long now = System.nanoTime();
+        timings.add(Timings.Phase.UPSTREAM, now - phaseStart);
+        phaseStart = now;
+        if (traceHeaders) {
+            AccessLog.shared().trace("response " + url + "\n" + statusLine + "\n" + responseHeaders);
+        }
+        if (revalidating) {
+            if (status >= 500 && serveStaleOnError()) {
+                return;
+            }
+            if (status == 304) {
+                closeUpstream();
+                // 用304响应的首部更新缓存
+                serveCache(responseHeaders.copy());
+                return;
+            }
+            cacheResult = AccessLog.CacheResult.EXPIRED;
+        }
+        responseHeadDone = true;
+        startResponse(status);
+        if (upstreamIn != null && !exchangeDone) {
+            ByteBuffer body = upstreamIn.flip();
+            if (responseRemaining >= 0 && body.remaining() > responseRemaining) {
+                body.limit((int) responseRemaining);
+            }
+            onResponseBody(body);
+        }
+        upstreamIn = null;
+    }
+
+    // 根据响应头确定响应体的边界，并把响应头发给客户端
+    private void startResponse(int status) throws IOException {
+        long length = responseHeaders.longValue(HeaderName.CONTENT_LENGTH);
+        if (method.equals("HEAD") || status == 204 || status == 304) {
+            responseRemaining = 0;
+        } else if (responseHeaders.hasToken(HeaderName.TRANSFER_ENCODING, "chunked")) {
+            // 分块编码优先于 Content-Length，扫描分块格式找到响应体的结尾，上游连接不需要关闭就能结束
+            // HTTP/1.1 客户端原样接收分块编码，连接可以继续使用；HTTP/1.0 客户端接收解码后的数据，只能以关闭连接结束
+            responseRemaining = -1;
+            responseChunks = new ChunkedScanner();
+            clientChunked = "HTTP/1.1".equals(version);
+            if (!clientChunked) {
+                keepAlive = false;
+            }
+        } else if (!responseHeaders.contains(HeaderName.TRANSFER_ENCODING) && length >= 0) {
+            responseRemaining = length;
+        } else {
+            // 没有 Content-Length 的响应只能以连接关闭结束，客户端连接也不能复用
+            responseRemaining = -1;
+            keepAlive = false;
+        }
+        this.status = status;
+        writeToClient(ByteBuffer.wrap(responseHead(-1)));
+
+        // 只缓存长度已知或分块编码的 200 响应，分块编码的响应体解码后保存；不能缓存的响应（no-store、private等）不保存，并删除原有的缓存
+        // 范围请求未命中时收到的 206 不保存，在后台获取完整的响应
+        boolean sharing = false;
+        if (cacheFile != null) {
+            if (status == 206) {
+                if (cached == null && ByteRanges.shouldComplete(requestHeaders, responseHeaders)) {
+                    CacheRefresher.shared().complete(cacheFile, url, host, port, requestHeaders.copy());
+                }
+            } else if (!Freshness.isStorable(status, requestHeaders, responseHeaders)) {
+                if (cached != null && status < 500) {
+                    final String file = cacheFile;
+                    final CachedResponse entry = cached;
+                    server.blockingExecutor().execute(() -> CacheStore.remove(file, entry));
+                }
+            } else if (status == 200 && (responseRemaining > 0 || responseChunks != null)) {
+                cacheHeaders = new ArrayList<String>(responseHeaders.size() + 1);
+                cacheHeaders.add(statusLine);
+                cacheHeaders.addAll(responseHeaders.lines());
+                cacheFill = CacheStore.fill();
+                if (flight != null && responseRemaining <= CacheStore.MAX_BODY
+                        && !responseHeaders.contains(HeaderName.VARY)) {
+                    // 作为领导者，响应体同时转发给跟随者；分块编码的响应体长度未知，以 -1 发布
+                    flight.publish(statusLine, entityHeaders(responseHeaders), responseRemaining);
+                    sharing = true;
+                }
+            }
+        }
+        // 不能共享的响应让跟随者自己访问目标服务器
+        if (flight != null && !sharing) {
+            flight.fail();
+            flight = null;
+        }
+        if (responseRemaining == 0) {
+            responseComplete();
+        }
+    }
+
+    private void onResponseBody(ByteBuffer buffer) throws IOException {
+        if (responseChunks != null) {
+            onChunkedBody(buffer);
+            return;
+        }
+        int n = buffer.remaining();
+        captureBody(buffer);
+        responseBytes += n;
+        writeToClient(buffer);
+        if (responseRemaining > 0) {
+            responseRemaining -= n;
+            if (responseRemaining == 0) {
+                responseComplete();
+            }
+        }
+    }
+
+    // 分块编码的响应体：块数据由 onChunkData 处理，HTTP/1.1 客户端接收原样的分块格式
+    // 最后一个块之后的字节不属于响应，上游连接随后关闭，直接丢弃
+    private void onChunkedBody(ByteBuffer buffer) throws IOException {
+        int n = responseChunks.scan(buffer, chunkData);
+        if (clientChunked) {
+            buffer.limit(buffer.position() + n);
+            writeToClient(buffer);
+        }
+        if (responseChunks.done()) {
+            responseComplete();
+        }
+    }
+
+    // 解码后的块数据写入缓存副本、转发给跟随者，HTTP/1.0 客户端直接接收
+    private void onChunkData(ByteBuffer data) throws IOException {
+        captureBody(data);
+        responseBytes += data.remaining();
+        if (!clientChunked) {
+            writeToClient(data);
+        }
+    }
+
+    // 响应体的副本写入缓存、跟随者和跟踪日志，不改变缓冲区的位置
+    private void captureBody(ByteBuffer buffer) throws IOException {
+        if (cacheFill == null && flight == null && bodySample == null) {
+            return;
+        }
+        int n = buffer.remaining();
+        byte[] copy = new byte[n];
+        buffer.duplicate().get(copy);
+        if (cacheFill != null) {
+            cacheFill.write(copy, 0, n);
+        }
+        if (flight != null) {
+            flight.write(copy, 0, n);
+        }
+        if (bodySample != null) {
+            bodySample.write(copy, 0, n);
+        }
+    }
+
+    // 响应体已经全部读取
+    private void responseComplete() throws IOException {
+        exchangeDone = true;
+        timings.add(Timings.Phase.TRANSFER, System.nanoTime() - phaseStart);
+        closeUpstream();
+        if (cacheFill != null) {
+            // 在阻塞线程池中更新缓存
+            final String file = cacheFile;
+            final List<String> headers = cacheHeaders;
+            final CacheFill body = cacheFill;
+            final SingleFlight.Flight leader = flight;
+            // 请求首部在下一个请求开始时清空，写入缓存时计算变体的键需要副本
+            final HeaderTable request = requestHeaders.copy();
+            server.blockingExecutor().execute(() -> {
+                CacheStore.write(file, request, headers, body);
+                // 缓存写入后结束，之后的请求直接命中缓存
+                if (leader != null) {
+                    leader.complete();
+                }
+            });
+            flight = null;
+            cacheFill = null;
+            cacheHeaders = null;
+        }
+        maybeFinish();
+    }
+
+    // ---------- 合并的请求 ----------
+
+    // 跟随领导者：注册回调，响应头发布和新数据到达时回到事件循环继续发送
+    private void follow(SingleFlight.Flight leader, InetAddress[] addresses) {
+        state = SERVING;
+        following = leader;
+        followStart = System.currentTimeMillis();
+        followAddresses = addresses;
+        followListener = () -> post(this::pumpFlight);
+        leader.listen(followListener);
+    }
+
+    // 发送领导者已经收到的响应头和响应体；客户端还有未发送的数据时等待，实现背压
+    private void pumpFlight() throws IOException {
+        SingleFlight.Flight leader = following;
+        if (leader == null) {
+            return;
+        }
+        if (followOffset == 0 && status == 0) {
+            if (leader.failed()) {
+                stopFollowing(true); // 领导者在发布响应头之前失败
+                return;
+            }
+            if (!leader.ready()) {
+                return;
+            }
+            sendFlightHead(leader);
+        }
+        try {
+            while (toClient.isEmpty()) {
+                byte[] chunk = new byte[64 * 1024];
+                int n = leader.poll(followOffset, chunk, 0, chunk.length);
+                if (n == 0) {
+                    return;
+                }
+                if (n < 0) {
+                    if (followChunked) {
+                        writeToClient(ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+                    }
+                    timings.add(Timings.Phase.TRANSFER, System.nanoTime() - phaseStart);
+                    stopFollowing(false);
+                    exchangeDone = true;
+                    maybeFinish();
+                    return;
+                }
+                if (followChunked) {
+                    writeToClient(ByteBuffer.wrap((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                    writeToClient(ByteBuffer.wrap(chunk, 0, n));
+                    writeToClient(ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+                } else {
+                    writeToClient(ByteBuffer.wrap(chunk, 0, n));
+                }
+                followOffset += n;
+                responseBytes = followOffset;
+            }
+        } catch (IOException e) {
+            // 领导者失败，响应体不完整，客户端连接不能继续使用
+            stopFollowing(false);
+            close();
+        }
+    }
+
+    private void sendFlightHead(SingleFlight.Flight leader) throws IOException {
+        cacheResult = AccessLog.CacheResult.COALESCED;
+        status = KeepAlive.statusCode(leader.statusLine());
+        phaseStart = System.nanoTime();
+        long length = leader.contentLength();
+        if (length < 0) {
+            // 长度未知的响应体，HTTP/1.1 客户端以分块编码接收，HTTP/1.0 客户端只能以关闭连接结束
+            followChunked = "HTTP/1.1".equals(version);
+            if (!followChunked) {
+                keepAlive = false;
+            }
+        }
+        StringBuilder head = new StringBuilder();
+        head.append(leader.statusLine()).append("\r\n");
+        for (String line : leader.headers()) {
+            head.append(line).append("\r\n");
+        }
+        if (length >= 0) {
+            head.append("Content-Length: ").append(length).append("\r\n");
+        } else if (followChunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append(KeepAlive.header(keepAlive)).append("\r\n\r\n");
+        writeToClient(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    // 停止跟随，fallback 为 true 时自己连接上游获取
+    private void stopFollowing(boolean fallback) throws IOException {
+        if (following == null) {
+            return;
+        }
+        following.unlisten(followListener);
+        following = null;
+        followListener = null;
+        if (fallback) {
+            SingleFlight.shared().fallback();
+            InetAddress[] addresses = followAddresses;
+            followAddresses = null;
+            connectUpstream(addresses, null);
+        }
+    }
+
+    // 共享给跟随者的首部，去掉连接管理首部和表示报文体边界的首部
+    private static List<String> entityHeaders(HeaderTable headers) {
+        List<String> result = new ArrayList<String>(headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            HeaderName name = headers.nameAt(i);
+            if (KeepAlive.isConnectionHeader(name) || name == HeaderName.CONTENT_LENGTH
+                    || name == HeaderName.TRANSFER_ENCODING) {
+                continue;
+            }
+            result.add(headers.line(i));
+        }
+        return result;
+    }
+
+    // 缓存有效，发送缓存的响应
+    // 内存中的响应直接发送；文件中的响应、需要解压的响应以及需要用304响应更新首部的缓存在阻塞线程池中处理后发送
+    // 需要解压的响应边解压边发送，每次只解压一块，见 pumpDecoded
+    private void serveCache(HeaderTable update) throws IOException {
+        state = SERVING;
+        final CachedResponse entry = cached;
+        final boolean decode = entry.decodes(requestHeaders);
+        if (update == null && ((entry.inMemory() && !decode) || entry.notModified(requestHeaders))) {
+            sendCached(entry, entry.inMemory() && !decode ? entry.body() : null);
+            return;
+        }
+        server.blockingExecutor().execute(() -> {
+            try {
+                CachedResponse response = update != null ? CacheStore.freshen(entry, update) : entry;
+                if (decode && !response.notModified(requestHeaders)) {
+                    InputStream in = response.decodedBody();
+                    post(() -> sendDecoded(response, in));
+                    return;
+                }
+                ByteBuffer body = response.notModified(requestHeaders) ? null : response.body();
+                post(() -> sendCached(response, body));
+            } catch (IOException e) {
+                post(this::close);
+            }
+        });
+    }
+
+    // 发送需要解压的缓存响应的响应头，响应体由 pumpDecoded 分块发送
+    private void sendDecoded(CachedResponse entry, InputStream in) throws IOException {
+        status = KeepAlive.statusCode(entry.statusLine());
+        writeToClient(ByteBuffer.wrap(entry.head(KeepAlive.header(keepAlive), true)));
+        decoding = in;
+        decodeExpected = entry.contentLength(true);
+        pumpDecoded();
+    }
+
+    // 客户端的数据发送完后，在阻塞线程池中解压下一块（读段文件可能阻塞），完成后回到事件循环发送
+    // 同时只有一块在内存中，响应体再大每个连接也只占用固定的内存
+    private void pumpDecoded() {
+        if (decoding == null || decodePending || !toClient.isEmpty()) {
+            return;
+        }
+        decodePending = true;
+        final InputStream in = decoding;
+        server.blockingExecutor().execute(() -> {
+            byte[] chunk = new byte[DECODE_CHUNK];
+            int n;
+            try {
+                n = in.readNBytes(chunk, 0, chunk.length);
+            } catch (IOException | RuntimeException e) {
+                n = -1; // 段文件被截断或内容损坏
+            }
+            int read = n;
+            post(() -> onDecoded(chunk, read));
+        });
+    }
+
+    private void onDecoded(byte[] chunk, int n) throws IOException {
+        decodePending = false;
+        if (decoding == null) {
+            return;
+        }
+        if (n > 0) {
+            responseBytes += n;
+            writeToClient(ByteBuffer.wrap(chunk, 0, n));
+        }
+        if (n == chunk.length) {
+            pumpDecoded();
+            return;
+        }
+        // 读到末尾或出错
+        closeDecoding();
+        if (n < 0 || responseBytes < decodeExpected) {
+            // 响应体与 Content-Length 不一致，客户端连接不能继续使用
+            keepAlive = false;
+        }
+        timings.add(Timings.Phase.TRANSFER, System.nanoTime() - phaseStart);
+        exchangeDone = true;
+        maybeFinish();
+    }
+
+    private void closeDecoding() {
+        if (decoding != null) {
+            try {
+                decoding.close();
+            } catch (IOException ignored) {}
+            decoding = null;
+        }
+    }
+
+    // 响应头使用预先生成的首部块，响应体是只读的缓冲区（内存中的内容或文件映射），直接放入发送队列，不复制
+    // 客户端的条件请求与缓存匹配时只返回 304；范围请求返回 206 或 416，片段是响应体缓冲区的视图
+    private void sendCached(CachedResponse entry, ByteBuffer body) throws IOException {
+        boolean decode = entry.decodes(requestHeaders);
+        if (entry.notModified(requestHeaders)) {
+            status = 304;
+            writeToClient(ByteBuffer.wrap(entry.notModifiedHead(KeepAlive.header(keepAlive), decode)));
+            timings.add(Timings.Phase.TRANSFER, System.nanoTime() - phaseStart);
+            exchangeDone = true;
+            maybeFinish();
+            return;
+        }
+        ByteRanges ranges = ByteRanges.of(requestHeaders, entry, decode);
+        if (ranges != null) {
+            sendRanges(entry, ranges, body);
+            return;
+        }
+        status = KeepAlive.statusCode(entry.statusLine());
+        responseBytes = body.remaining();
+        // 缓存文件被截断，响应体与 Content-Length 不一致，客户端连接不能继续使用
+        if (body.remaining() < entry.contentLength(decode)) {
+            keepAlive = false;
+        }
+        writeToClient(ByteBuffer.wrap(entry.head(KeepAlive.header(keepAlive), decode)));
+        if (toClient.isEmpty()) {
+            client.write(body);
+        }
+        if (body.hasRemaining()) {
+            toClient.add(body);
+        }
+        timings.add(Timings.Phase.TRANSFER, System.nanoTime() - phaseStart);
+        exchangeDone = true;
+        maybeFinish();
+    }
+
+    private void sendRanges(CachedResponse entry, ByteRanges ranges, ByteBuffer body) throws IOException {
+        if (!ranges.satisfiable()) {
+            status = 416;
+            writeToClient(ByteBuffer.wrap(entry.unsatisfiableHead(KeepAlive.header(keepAlive))));
+        } else {
+            status = 206;
+            // 缓存文件被截断，片段与 Content-Length 不一致，客户端连接不能继续使用
+            if (body.remaining() < ranges.length()) {
+                keepAlive = false;
+            }
+            writeToClient(ByteBuffer.wrap(entry.partialHead(KeepAlive.header(keepAlive), ranges)));
+            for (ByteBuffer part : ranges.buffers(body)) {
+                responseBytes += part.remaining();
+                if (toClient.isEmpty()) {
+                    client.write(part);
+                }
+                if (part.hasRemaining()) {
+                    toClient.add(part);
+                }
+            }
+        }
+        timings.add(Timings.Phase.TRANSFER, System.nanoTime() - phaseStart);
+        exchangeDone = true;
+        maybeFinish();
+    }
+
+    // 生成发给客户端的响应头，contentLength 不小于0时替换原有的 Content-Length
+    private byte[] responseHead(long contentLength) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        writeLine(head, statusLine);
+        for (int i = 0; i < responseHeaders.size(); i++) {
+            HeaderName name = responseHeaders.nameAt(i);
+            if (KeepAlive.isConnectionHeader(name) || (contentLength >= 0 && name == HeaderName.CONTENT_LENGTH)) {
+                continue;
+            }
+            // 分块编码的响应体不使用 Content-Length；发给 HTTP/1.0 客户端的是解码后的数据，去掉 Transfer-Encoding
+            if (responseChunks != null && (name == HeaderName.CONTENT_LENGTH
+                    || (!clientChunked && name == HeaderName.TRANSFER_ENCODING))) {
+                continue;
+            }
+            responseHeaders.writeLine(i, head);
+        }
+        if (contentLength >= 0) {
+            writeLine(head, "Content-Length: " + contentLength);
+        }
+        writeLine(head, KeepAlive.header(keepAlive));
+        writeLine(head, "");
+        return head.toByteArray();
+    }
+
+    // 响应已经全部交给客户端后，结束本次请求
+    private void maybeFinish() throws IOException {
+        if (!exchangeDone || !toClient.isEmpty()) {
+            return;
+        }
+        logRequest();
+        if (!keepAlive) {
+            close();
+            return;
+        }
+        // 复用客户端连接，处理下一个请求
+        method = null;
+        url = null;
+        version = null;
+        host = null;
+        cacheFile = null;
+        cached = null;
+        if (flight != null) {
+            flight.fail();
+            flight = null;
+        }
+        followOffset = 0;
+        followChunked = false;
+        followAddresses = null;
+        upstreamAddresses = null;
+        decodeExpected = 0;
+        requestHeaders.clear();
+        revalidating = false;
+        timings.reset();
+        status = 0;
+        responseBytes = 0;
+        cacheResult = AccessLog.CacheResult.NONE;
+        traceHeaders = false;
+        bodySample = null;
+        logged = false;
+        requestRemaining = 0;
+        requestChunks = null;
+        responseHeadDone = false;
+        responseRemaining = 0;
+        responseChunks = null;
+        clientChunked = false;
+        exchangeDone = false;
+        state = HEAD;
+        // 流水线中已经收到的下一个请求
+        processRequestHead();
+    }
+
+    // 请求结束或连接关闭时写入访问日志，每个请求只写一次
+    private void logRequest() {
+        if (method == null || logged) {
+            return;
+        }
+        logged = true;
+        if (bodySample != null) {
+            AccessLog.shared().trace(bodySample.describe("response " + url));
+        }
+        AccessLog.shared().log(new AccessLog.Entry(clientAddress(), method, host, url, status, responseBytes,
+                cacheResult, timings));
+    }
+
+    private String clientAddress() {
+        if (clientAddress == null) {
+            try {
+                clientAddress = ((InetSocketAddress) client.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (IOException | RuntimeException e) {
+                return "-";
+            }
+        }
+        return clientAddress;
+    }
+
+    // ---------- 隧道 ----------
+
+    private void relay(boolean fromClient) throws IOException {
+        ByteBuffer buffer = loop.scratch();
+        int n = (fromClient ? client : upstream).read(buffer);
+        if (n < 0) {
+            if (fromClient) {
+                clientEof = true;
+            } else {
+                upstreamEof = true;
+            }
+            tunnelShutdown();
+            return;
+        }
+        buffer.flip();
+        responseBytes += n;
+        if (fromClient) {
+            writeToUpstream(buffer);
+        } else {
+            writeToClient(buffer);
+        }
+    }
+
+    // 一端结束后，把剩余数据写完再关闭另一端的输出，两端都结束后关闭连接
+    private void tunnelShutdown() throws IOException {
+        if (clientEof && !upstreamShutdown && toUpstream.isEmpty()) {
+            upstream.shutdownOutput();
+            upstreamShutdown = true;
+        }
+        if (upstreamEof && !clientShutdown && toClient.isEmpty()) {
+            client.shutdownOutput();
+            clientShutdown = true;
+        }
+        if (clientShutdown && upstreamShutdown) {
+            close();
+        }
+    }
+
+    // ---------- 读写 ----------
+
+    private void writeToClient(ByteBuffer data) throws IOException {
+        if (toClient.isEmpty()) {
+            client.write(data);
+        }
+        enqueue(toClient, data);
+    }
+
+    private void writeToUpstream(ByteBuffer data) throws IOException {
+        if (upstreamConnected && toUpstream.isEmpty()) {
+            upstream.write(data);
+        }
+        enqueue(toUpstream, data);
+    }
+
+    // 没有写完的数据复制后放入队列
+    private static void enqueue(ArrayDeque<ByteBuffer> queue, ByteBuffer data) {
+        if (data.hasRemaining()) {
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            queue.add(copy);
+        }
+    }
+
+    private static void flush(SocketChannel channel, ArrayDeque<ByteBuffer> queue) throws IOException {
+        while (!queue.isEmpty()) {
+            ByteBuffer buffer = queue.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            queue.poll();
+        }
+    }
+
+    private void flushClient() throws IOException {
+        flush(client, toClient);
+        if (toClient.isEmpty()) {
+            if (state == TUNNEL) {
+                tunnelShutdown();
+            } else if (following != null) {
+                pumpFlight(); // 客户端的数据已经发送完，继续转发领导者的响应体
+            } else if (decoding != null) {
+                pumpDecoded(); // 继续解压下一块
+            } else {
+                maybeFinish();
+            }
+        }
+    }
+
+    private void flushUpstream() throws IOException {
+        flush(upstream, toUpstream);
+        if (toUpstream.isEmpty() && state == TUNNEL) {
+            tunnelShutdown();
+        }
+    }
+
+    // 根据当前状态设置关注的事件，输出队列不为空时暂停读取另一端，实现背压
+    private void updateInterest() {
+        int clientOps = toClient.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+        if (state == HEAD
+                || (state == EXCHANGE && requestBodyPending() && upstreamConnected && toUpstream.isEmpty())
+                || (state == TUNNEL && !clientEof && toUpstream.isEmpty())) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        clientKey.interestOps(clientOps);
+
+        if (upstreamKey != null && upstreamKey.isValid()) {
+            int upstreamOps;
+            if (!upstreamConnected) {
+                upstreamOps = SelectionKey.OP_CONNECT;
+            } else {
+                upstreamOps = toUpstream.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+                if (toClient.isEmpty() && ((state == EXCHANGE && !exchangeDone) || (state == TUNNEL && !upstreamEof))) {
+                    upstreamOps |= SelectionKey.OP_READ;
+                }
+            }
+            upstreamKey.interestOps(upstreamOps);
+        }
+    }
+
+    // 确保输入缓冲区有剩余空间，超过请求头上限时返回 false
+    private boolean ensureCapacity(boolean forClient) {
+        ByteBuffer buffer = forClient ? clientIn : upstreamIn;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(4096);
+        } else if (!buffer.hasRemaining()) {
+            if (buffer.capacity() >= MAX_HEAD_SIZE) {
+                return false;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        if (forClient) {
+            clientIn = buffer;
+        } else {
+            upstreamIn = buffer;
+        }
+        return true;
+    }
+
+    // 丢弃缓冲区开头的 n 个字节，缓冲区为空时返回 null 以释放内存
+    private static ByteBuffer consume(ByteBuffer buffer, int n) {
+        if (buffer.position() == n) {
+            return null;
+        }
+        buffer.flip();
+        buffer.position(n);
+        buffer.compact();
+        return buffer;
+    }
+
+    private void closeUpstream() {
+        if (upstream != null) {
+            if (upstreamKey != null) {
+                upstreamKey.cancel();
+            }
+            try {
+                upstream.close();
+            } catch (IOException ignored) {}
+        }
+        upstream = null;
+        upstreamKey = null;
+        upstreamConnected = false;
+        upstreamIn = null;
+        toUpstream.clear();
+    }
+
+    void close() {
+        if (state == CLOSED) {
+            return;
+        }
+        state = CLOSED;
+        logRequest();
+        closeUpstream();
+        // 领导者没有正常结束时，让跟随者自己访问目标服务器
+        if (flight != null) {
+            flight.fail();
+            flight = null;
+        }
+        if (following != null) {
+            following.unlisten(followListener);
+            following = null;
+        }
+        closeDecoding();
+        clientKey.cancel();
+        try {
+            client.close();
+        } catch (IOException ignored) {}
+        clientIn = null;
+        toClient.clear();
+        // 没有完整接收的响应体删除临时文件
+        if (cacheFill != null) {
+            cacheFill.close();
+            cacheFill = null;
+        }
+    }
+
+    // ---------- 报文解析 ----------
+
+    // 查找报文头的结束位置（空行之后），未找到时返回-1
+    private static int headEnd(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                if (i + 1 < length && data[i + 1] == '\n') {
+                    return i + 2;
+                }
+                if (i + 2 < length && data[i + 1] == '\r' && data[i + 2] == '\n') {
+                    return i + 3;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // 解析报文头：返回起始行（请求行或状态行），首部行直接从缓冲区复制到首部表中，不为每个首部创建字符串
+    // 跳过起始行之前的空行，没有起始行时返回 null
+    private static String parseHead(byte[] data, int end, HeaderTable table) throws IOException {
+        table.clear();
+        String startLine = null;
+        int lineStart = 0;
+        for (int i = 0; i < end; i++) {
+            if (data[i] == '\n') {
+                int lineEnd = (i > lineStart && data[i - 1] == '\r') ? i - 1 : i;
+                if (lineEnd > lineStart) {
+                    if (startLine == null) {
+                        startLine = new String(data, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+                    } else {
+                        table.add(data, lineStart, lineEnd - lineStart);
+                    }
+                }
+                lineStart = i + 1;
+            }
+        }
+        return startLine;
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, String line) {
+        out.writeBytes(line.getBytes(StandardCharsets.ISO_8859_1));
+        out.write('\r');
+        out.write('\n');
+    }
+}
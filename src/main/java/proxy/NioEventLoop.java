@@ -0,0 +1,121 @@
+package proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NIO 引擎的事件循环
+ * 每个事件循环独占一个线程和一个 Selector，负责其上所有连接的读写事件
+ * 其他线程只能通过 execute 提交任务，不能直接操作连接
+ */
+class NioEventLoop implements Runnable {
+    private static final long SWEEP_INTERVAL = 1000; // 每秒检查一次超时
+
+    private final NioProxyServer server;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // 所有连接共用的读缓冲区，只在事件循环线程中使用
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean running = true;
+    private long lastSweep = System.currentTimeMillis();
+
+    NioEventLoop(NioProxyServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * 将新接受的客户端连接交给本事件循环
+     * @param client 已设置为非阻塞的客户端通道
+     */
+    void register(SocketChannel client) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(this, client);
+                connection.start(client.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    /**
+     * 在事件循环线程中执行任务
+     * @param task 任务
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    NioProxyServer server() {
+        return server;
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    // 获取清空后的共用读缓冲区
+    ByteBuffer scratch() {
+        scratch.clear();
+        return scratch;
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+            } catch (IOException e) {
+                break;
+            }
+            // 执行其他线程提交的任务
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            // 处理就绪的事件
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                if (key.isValid()) {
+                    connection.handle(key);
+                }
+            }
+            // 定期关闭超时的连接
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SWEEP_INTERVAL) {
+                lastSweep = now;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() instanceof NioConnection connection) {
+                        connection.checkTimeout(now);
+                    }
+                }
+            }
+        }
+        // 关闭所有连接
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+}
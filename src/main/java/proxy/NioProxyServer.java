@@ -0,0 +1,105 @@
+package proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 基于 Selector 的非阻塞代理服务器
+ * 使用少量固定的事件循环线程（默认每个 CPU 核心一个）处理所有连接，
+ * 空闲的长连接和 CONNECT 隧道不再各自占用线程
+ * 支持与 AdvancedProxy 相同的 GET/POST/CONNECT、缓存、过滤和钓鱼功能
+ */
+public final class NioProxyServer {
+    private final int port;
+    private final String user;
+    private final String isAllowed;
+    private final NioEventLoop[] loops;
+    private final byte[] fishResponse;
+    // 执行 DNS 解析、缓存文件读写等阻塞操作，避免阻塞事件循环
+    private final ExecutorService blockingExecutor;
+
+    /**
+     * 构造函数
+     * @param port 监听端口
+     * @param user 用户
+     * @param a 为"ALL"时不进行用户和网站过滤
+     * @param loopCount 事件循环线程数
+     */
+    public NioProxyServer(int port, String user, String a, int loopCount) throws IOException {
+        this.port = port;
+        this.user = user;
+        this.isAllowed = a;
+        this.fishResponse = loadFishResponse();
+        this.blockingExecutor = ThreadMode.current().newExecutor(Math.max(4, loopCount * 2));
+        this.loops = new NioEventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this);
+        }
+    }
+
+    /**
+     * 启动事件循环并在当前线程中接受客户端连接
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("NIO proxy server started on port " + port + " (" + loops.length + " event loops)");
+            int next = 0;
+            // 无限循环，等待客户端连接，轮流分配给各个事件循环
+            while (true) {
+                SocketChannel client = serverChannel.accept();
+                client.configureBlocking(false);
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+            blockingExecutor.shutdown();
+        }
+    }
+
+    // 读取钓鱼时发送的重定向报文
+    private static byte[] loadFishResponse() {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("src/main/resources/fish.txt"), StandardCharsets.UTF_8);
+            StringBuilder response = new StringBuilder();
+            for (String line : lines) {
+                response.append(line).append("\r\n");
+            }
+            return response.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("读取重定向响应时出错: " + e.getMessage());
+            return new byte[0];
+        }
+    }
+
+    String user() {
+        return user;
+    }
+
+    // 判断是否允许访问，policy 是本次请求使用的访问策略快照
+    boolean isAllowed(AccessPolicy policy, String method, String host, int port) {
+        return policy.isAllowed(method, host, port, user, isAllowed);
+    }
+
+    byte[] fishResponse() {
+        return fishResponse;
+    }
+
+    ExecutorService blockingExecutor() {
+        return blockingExecutor;
+    }
+}
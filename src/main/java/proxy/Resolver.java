@@ -0,0 +1,23 @@
+package proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * 域名解析器
+ * 默认使用 JVM 的解析，测试时可以替换为本地的解析器
+ */
+public interface Resolver {
+    /**
+     * 使用 JVM 的域名解析
+     */
+    Resolver SYSTEM = InetAddress::getAllByName;
+
+    /**
+     * 解析域名
+     * @param host 主机名
+     * @return 主机的所有地址
+     * @throws UnknownHostException 域名不存在
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
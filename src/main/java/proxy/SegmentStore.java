@@ -0,0 +1,656 @@
+package proxy;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * 日志结构的缓存存储
+ * 所有缓存的响应追加写入缓存目录下 segments/ 中的段文件，每个段最大 SEGMENT_SIZE 字节，写满后换新段
+ * 每条记录带 CRC32 校验，完整写入之后才更新索引（CacheIndex），查找时不会看到写了一半的记录
+ * 覆盖和删除也只追加记录（删除写入墓碑），旧记录成为无效数据；后台线程定期把有效数据不足一半的段中
+ * 仍被索引引用的记录复制到当前段，旧段在 RETIRE_DELAY 之后关闭并删除，正在发送的响应体不受影响
+ * 上次异常退出（索引日志没有关闭标记）时按顺序扫描所有段重建索引，段末尾不完整的记录被截掉
+ * 记录不逐条 fsync，断电时最后写入的几条缓存可能丢失，但不会读到损坏的记录
+ */
+public class SegmentStore {
+    public static final String DIRECTORY = "segments";
+    public static final long SEGMENT_SIZE = Long.getLong("proxy.cache.segmentSize", 64L * 1024 * 1024); // 每个段64MB
+    public static final double COMPACT_THRESHOLD = 0.5; // 有效数据少于一半的段被压缩
+    public static final long COMPACT_INTERVAL = Long.getLong("proxy.cache.compactInterval", 30000); // 每30秒检查一次
+    public static final long RETIRE_DELAY = 60000; // 压缩后的旧段60秒后才关闭，之前取得的响应可以继续读取
+
+    private static final int MAGIC = 0x50435347; // "PCSG"
+    private static final int HEADER = 24;        // 魔数、CRC32、收到响应的时间、键长度、内容长度
+    private static final int MAX_KEY = 64 * 1024;
+    private static final int TOMBSTONE = -1;     // 内容长度为-1的记录表示删除
+
+    private final File directory;
+    private final CacheIndex index;
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+    private final ReentrantLock lock = new ReentrantLock(); // 追加写入、更新索引和有效字节数
+    private final ScheduledExecutorService background;
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder reclaimed = new LongAdder();
+    private final ReentrantLock compactLock = new ReentrantLock(); // 定期压缩与淘汰后的压缩不能同时进行
+    private Segment active; // 当前追加写入的段
+    private volatile long liveBytes; // 所有段中仍被引用的字节数，持有锁时修改
+
+    /**
+     * 一个段文件
+     * 多个线程共用同一个 FileChannel，只使用按位置的读写
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;        // 下一条记录的写入位置
+        long live;        // 索引仍在引用的记录的字节数
+        boolean retired;  // 已被压缩，等待关闭
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    // 顺序扫描时的回调；内容只在校验时读取，否则为 null
+    private interface RecordVisitor {
+        void visit(String name, long position, long storedAt, int length, byte[] data) throws IOException;
+    }
+
+    /**
+     * 构造函数，打开段文件并恢复索引
+     * @param cacheDirectory 缓存目录
+     */
+    public SegmentStore(String cacheDirectory) {
+        this.directory = new File(cacheDirectory, DIRECTORY);
+        long start = System.nanoTime();
+        boolean fresh = !directory.isDirectory();
+        directory.mkdirs();
+        this.index = new CacheIndex(cacheDirectory);
+        String recovery = "";
+        try {
+            openSegments();
+            if (fresh) {
+                index.reset(new HashMap<String, CacheIndex.Entry>());
+            } else if (!index.clean()) {
+                rebuild();
+                recovery = ", rebuilt from segments";
+            }
+        } catch (IOException e) {
+            System.err.println("打开缓存段文件时出错: " + e.getMessage());
+        }
+        // 统计每个段中仍被引用的字节数，删除指向不存在的段的条目
+        List<String> orphans = new ArrayList<String>();
+        index.forEach((name, entry) -> {
+            Segment segment = segments.get(entry.segment);
+            if (segment == null || entry.offset + entry.size > segment.size) {
+                orphans.add(name);
+            } else {
+                long length = recordLength(name, entry.size);
+                segment.live += length;
+                liveBytes += length;
+            }
+        });
+        for (String name : orphans) {
+            index.remove(name);
+        }
+        index.open();
+        AccessLog.shared().info(String.format("cache store loaded %d entries in %d segments in %.1fms%s",
+                index.size(), segments.size(), (System.nanoTime() - start) / 1e6, recovery));
+
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-compact");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (COMPACT_INTERVAL > 0) {
+            background.scheduleWithFixedDelay(() -> compact(COMPACT_THRESHOLD),
+                    COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param name 缓存键
+     * @return 索引条目，不存在时返回 null
+     */
+    public CacheIndex.Entry get(String name) {
+        return index.get(name);
+    }
+
+    /**
+     * 读取一个缓存的完整内容
+     * @param entry 索引条目
+     * @return 响应头和响应体
+     * @throws IOException 段文件已被删除或被截断
+     */
+    public byte[] read(CacheIndex.Entry entry) throws IOException {
+        byte[] data = new byte[(int) entry.size];
+        readFully(segment(entry.segment).channel, ByteBuffer.wrap(data), entry.offset);
+        return data;
+    }
+
+    /**
+     * 只读取响应头，响应体发送时直接从段文件发送
+     * @param key 缓存键
+     * @param entry 索引条目
+     * @return 缓存的响应，内容不完整时返回 null
+     * @throws IOException 段文件已被删除
+     */
+    public CachedResponse open(String key, CacheIndex.Entry entry) throws IOException {
+        return CachedResponse.ofSegment(key, segment(entry.segment).channel, entry.offset, entry.size, entry.storedAt);
+    }
+
+    /**
+     * 追加一个缓存，写入完成后更新索引，之前的版本成为无效数据
+     * @param name 缓存键
+     * @param data 响应头和响应体
+     * @param response 由 data 解析的缓存响应，提供索引中的元数据
+     * @param storedAt 收到响应的时间
+     * @throws IOException 写入段文件失败，索引不变
+     */
+    public void put(String name, byte[] data, CachedResponse response, long storedAt) throws IOException {
+        byte[] record = record(name, data, storedAt);
+        lock.lock();
+        try {
+            long position = append(record);
+            CacheIndex.Entry old = index.get(name);
+            index.put(name, CacheIndex.Entry.of(response, active.id, position + record.length - data.length, storedAt));
+            active.live += record.length;
+            liveBytes += record.length;
+            release(name, old);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 追加一个较大的缓存，响应体从文件（临时文件或另一条记录）由内核直接复制，不经过 Java 堆
+     * 校验和在加锁之前读取一遍响应体计算，持有锁时只复制；写入完成后更新索引，之前的版本成为无效数据
+     * @param name 缓存键
+     * @param head 响应头
+     * @param body 响应体所在的文件，只使用按位置的读取
+     * @param position 响应体在文件中的位置
+     * @param length 响应体的字节数
+     * @param storedAt 收到响应的时间
+     * @return 写入的缓存响应，响应体从段文件发送
+     * @throws IOException 读取响应体或写入段文件失败，索引不变
+     */
+    public CachedResponse put(String name, byte[] head, FileChannel body, long position, long length, long storedAt)
+            throws IOException {
+        if (head.length + length > Integer.MAX_VALUE) {
+            throw new IOException("缓存内容过大: " + (head.length + length));
+        }
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int size = (int) (head.length + length);
+        ByteBuffer prefix = ByteBuffer.allocate(HEADER + key.length + head.length);
+        prefix.putInt(MAGIC);
+        prefix.putInt(0);
+        prefix.putLong(storedAt);
+        prefix.putInt(key.length);
+        prefix.putInt(size);
+        prefix.put(key);
+        prefix.put(head);
+        CRC32 crc = new CRC32();
+        crc.update(prefix.array(), 8, prefix.capacity() - 8);
+        ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+        for (long read = 0; read < length; ) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), length - read));
+            readFully(body, chunk, position + read);
+            chunk.flip();
+            crc.update(chunk);
+            read += chunk.limit();
+        }
+        prefix.putInt(4, (int) crc.getValue());
+        long recordLength = prefix.capacity() + length;
+        lock.lock();
+        try {
+            long start = append(prefix.array(), body, position, length);
+            long offset = start + HEADER + key.length;
+            CachedResponse response = CachedResponse.ofSegment(name, active.channel, offset, size, storedAt);
+            if (response == null) {
+                throw new IOException("缓存的响应头不完整");
+            }
+            CacheIndex.Entry old = index.get(name);
+            index.put(name, CacheIndex.Entry.of(response, active.id, offset, storedAt));
+            active.live += recordLength;
+            liveBytes += recordLength;
+            release(name, old);
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除一个缓存，写入墓碑，重建索引时不会恢复
+     * @param name 缓存键
+     */
+    public void remove(String name) {
+        lock.lock();
+        try {
+            CacheIndex.Entry old = index.get(name);
+            if (old == null) {
+                return;
+            }
+            try {
+                append(record(name, null, System.currentTimeMillis()));
+            } catch (IOException e) {
+                System.err.println("写入缓存段文件失败: " + e.getMessage());
+            }
+            index.remove(name);
+            release(name, old);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除指定版本的缓存，条目已经被更新（例如重新写入或压缩后移到新的段）时保留
+     * @param name 缓存键
+     * @param entry 读取失败或被淘汰的索引条目
+     * @return 是否删除
+     */
+    public boolean invalidate(String name, CacheIndex.Entry entry) {
+        lock.lock();
+        try {
+            if (index.get(name) != entry) {
+                return false;
+            }
+            remove(name);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 索引中的缓存数
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * 遍历所有缓存，遍历期间的修改可能可见也可能不可见
+     * @param action 对每个缓存执行的操作
+     */
+    public void forEach(BiConsumer<String, CacheIndex.Entry> action) {
+        index.forEach(action);
+    }
+
+    /**
+     * @return 所有段中仍被引用的记录的字节数，即有效缓存占用的空间
+     */
+    public long liveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return 段文件占用的总字节数，包括无效记录和等待删除的旧段
+     */
+    public long diskBytes() {
+        long bytes = 0;
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                bytes += segment.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return bytes;
+    }
+
+    /**
+     * 立即压缩所有含有无效记录的段（当前段除外），用于淘汰之后释放磁盘空间
+     */
+    public void reclaim() {
+        compact(1.0);
+    }
+
+    // ---------- 记录 ----------
+
+    // 记录格式：魔数、CRC32、收到响应的时间、键长度、内容长度（墓碑为-1）、键（UTF-8）、内容
+    // CRC32 覆盖 CRC 之后的所有字节
+    private static byte[] record(String name, byte[] data, long storedAt) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int length = data == null ? 0 : data.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER + key.length + length);
+        record.putInt(MAGIC);
+        record.putInt(0);
+        record.putLong(storedAt);
+        record.putInt(key.length);
+        record.putInt(data == null ? TOMBSTONE : data.length);
+        record.put(key);
+        if (data != null) {
+            record.put(data);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static long recordLength(String name, long size) {
+        return HEADER + name.getBytes(StandardCharsets.UTF_8).length + size;
+    }
+
+    // 追加写入当前段，写满时换新段，返回记录的起始位置；调用时需要持有锁
+    private long append(byte[] record) throws IOException {
+        return append(record, null, 0, 0);
+    }
+
+    // 追加一条记录：前一部分在内存中，其余部分从 body 的指定位置由内核复制；调用时需要持有锁
+    private long append(byte[] record, FileChannel body, long bodyPosition, long bodyLength) throws IOException {
+        long total = record.length + bodyLength;
+        if (active == null || (active.size > 0 && active.size + total > SEGMENT_SIZE)) {
+            int id = active == null ? 1 : active.id + 1;
+            Segment segment = new Segment(id, new File(directory, String.format("%08d.seg", id)));
+            segments.put(id, segment);
+            active = segment;
+        }
+        long position = active.size;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, position + buffer.position());
+        }
+        if (body != null) {
+            // transferTo 写入目标通道的当前位置；其他地方只使用按位置的读写，持有锁时修改位置不影响它们
+            active.channel.position(position + record.length);
+            for (long copied = 0; copied < bodyLength; ) {
+                long n = body.transferTo(bodyPosition + copied, bodyLength - copied, active.channel);
+                if (n <= 0) {
+                    throw new EOFException("缓存内容被截断");
+                }
+                copied += n;
+            }
+        }
+        // 写入失败时不移动写入位置，下一条记录覆盖写了一半的内容
+        active.size = position + total;
+        return position;
+    }
+
+    // 旧版本不再被索引引用；调用时需要持有锁
+    private void release(String name, CacheIndex.Entry old) {
+        if (old != null) {
+            Segment segment = segments.get(old.segment);
+            long length = recordLength(name, old.size);
+            if (segment != null) {
+                segment.live -= length;
+            }
+            liveBytes -= length;
+        }
+    }
+
+    private Segment segment(int id) throws IOException {
+        Segment segment = segments.get(id);
+        if (segment == null) {
+            throw new IOException("缓存段文件不存在: " + id);
+        }
+        return segment;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("缓存段文件被截断");
+            }
+        }
+    }
+
+    // 顺序读取段中的记录，返回最后一条完整记录的结束位置
+    private static long scan(Segment segment, boolean verify, RecordVisitor visitor) throws IOException {
+        long end = segment.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        CRC32 crc = new CRC32();
+        while (position + HEADER <= end) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            long checksum = header.getInt() & 0xffffffffL;
+            long storedAt = header.getLong();
+            int keyLength = header.getInt();
+            int length = header.getInt();
+            if (magic != MAGIC || keyLength <= 0 || keyLength > MAX_KEY || length < TOMBSTONE
+                    || position + HEADER + keyLength + Math.max(length, 0) > end) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            readFully(segment.channel, ByteBuffer.wrap(key), position + HEADER);
+            byte[] data = null;
+            if (verify) {
+                data = new byte[Math.max(length, 0)];
+                readFully(segment.channel, ByteBuffer.wrap(data), position + HEADER + keyLength);
+                crc.reset();
+                crc.update(header.array(), 8, HEADER - 8);
+                crc.update(key);
+                crc.update(data);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+            }
+            visitor.visit(new String(key, StandardCharsets.UTF_8), position, storedAt, length, data);
+            position += HEADER + keyLength + Math.max(length, 0);
+        }
+        return position;
+    }
+
+    // ---------- 启动 ----------
+
+    private void openSegments() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.matches("\\d{8}\\.seg"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            int id = Integer.parseInt(file.getName().substring(0, 8));
+            Segment segment = new Segment(id, file);
+            segments.put(id, segment);
+            if (active == null || id > active.id) {
+                active = segment;
+            }
+        }
+    }
+
+    // 按顺序扫描所有段，后面的记录覆盖前面的记录；损坏的尾部被截掉
+    private void rebuild() throws IOException {
+        Map<String, CacheIndex.Entry> rebuilt = new HashMap<String, CacheIndex.Entry>();
+        List<Segment> ordered = new ArrayList<Segment>(segments.values());
+        ordered.sort(Comparator.comparingInt(s -> s.id));
+        for (Segment segment : ordered) {
+            long end = scan(segment, true, (name, position, storedAt, length, data) -> {
+                if (length == TOMBSTONE) {
+                    rebuilt.remove(name);
+                    return;
+                }
+                CachedResponse response = CachedResponse.of(name, data, storedAt);
+                if (response != null) {
+                    long offset = position + HEADER + name.getBytes(StandardCharsets.UTF_8).length;
+                    rebuilt.put(name, CacheIndex.Entry.of(response, segment.id, offset, storedAt));
+                }
+            });
+            if (end < segment.size) {
+                System.err.println("缓存段 " + segment.file.getName() + " 在 " + end + " 字节处损坏，丢弃之后的 "
+                        + (segment.size - end) + " 字节");
+                segment.channel.truncate(end);
+                segment.size = end;
+            }
+        }
+        index.reset(rebuilt);
+    }
+
+    // ---------- 压缩 ----------
+
+    // 压缩有效数据比例低于 threshold 的段，从旧到新
+    private void compact(double threshold) {
+        compactLock.lock();
+        try {
+            List<Segment> candidates = new ArrayList<Segment>();
+            lock.lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    if (segment != active && !segment.retired && segment.live < segment.size * threshold) {
+                        candidates.add(segment);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            candidates.sort(Comparator.comparingInt(s -> s.id));
+            for (Segment segment : candidates) {
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    System.err.println("压缩缓存段 " + segment.file.getName() + " 时出错: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.println("压缩缓存段 " + segment.file.getName() + " 时出错: " + e);
+                }
+            }
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    // 把仍被引用的记录原样复制到当前段（校验和不变），然后让旧段退役
+    private void compact(Segment victim) throws IOException {
+        long start = System.nanoTime();
+        long[] moved = new long[2]; // 复制的记录数和字节数
+        scan(victim, false, (name, position, storedAt, length, data) -> {
+            int keyLength = name.getBytes(StandardCharsets.UTF_8).length;
+            int recordLength = HEADER + keyLength + Math.max(length, 0);
+            lock.lock();
+            try {
+                CacheIndex.Entry entry = index.get(name);
+                if (length == TOMBSTONE) {
+                    // 更早的段中可能还有这个键的旧记录，墓碑要保留到那些段也被压缩，否则重建索引时旧记录会复活
+                    if (entry != null || !hasOlder(victim.id)) {
+                        return;
+                    }
+                } else if (entry == null || entry.segment != victim.id || entry.offset != position + HEADER + keyLength) {
+                    return; // 已被覆盖或删除
+                }
+                byte[] record = new byte[recordLength];
+                readFully(victim.channel, ByteBuffer.wrap(record), position);
+                long newPosition = append(record);
+                if (entry != null) {
+                    index.put(name, entry.moveTo(active.id, newPosition + HEADER + keyLength));
+                    active.live += recordLength;
+                    victim.live -= recordLength;
+                }
+                moved[0]++;
+                moved[1] += recordLength;
+            } finally {
+                lock.unlock();
+            }
+        });
+        lock.lock();
+        try {
+            victim.retired = true;
+        } finally {
+            lock.unlock();
+        }
+        compactions.increment();
+        reclaimed.add(victim.size - moved[1]);
+        background.schedule(() -> retire(victim), RETIRE_DELAY, TimeUnit.MILLISECONDS);
+        AccessLog.shared().info(String.format("cache segment %s compacted in %.1fms: %d records moved",
+                victim.file.getName(), (System.nanoTime() - start) / 1e6, moved[0]));
+    }
+
+    // 是否还有比指定段更早、没有退役的段；调用时需要持有锁
+    private boolean hasOlder(int id) {
+        for (Segment segment : segments.values()) {
+            if (segment.id < id && !segment.retired) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 关闭并删除已退役的段，此后仍指向该段的旧条目读取失败
+    private void retire(Segment segment) {
+        segments.remove(segment.id, segment);
+        try {
+            segment.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (!segment.file.delete()) {
+            System.err.println("无法删除缓存段文件: " + segment.file.getName());
+        }
+    }
+
+    // ---------- 统计 ----------
+
+    /**
+     * @return 统计信息
+     */
+    public Stats stats() {
+        int count = 0;
+        long bytes = 0;
+        long live = 0;
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (!segment.retired) {
+                    count++;
+                    bytes += segment.size;
+                    live += segment.live;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Stats(index.size(), count, bytes, live, compactions.sum(), reclaimed.sum());
+    }
+
+    /**
+     * 段存储的统计信息
+     */
+    public static class Stats {
+        public final int entries;      // 索引中的缓存数
+        public final int segments;     // 段文件数
+        public final long bytes;       // 段文件的总字节数
+        public final long liveBytes;   // 仍被引用的记录的字节数
+        public final long compactions; // 已完成的压缩次数
+        public final long reclaimed;   // 压缩释放的段文件字节数
+
+        Stats(int entries, int segments, long bytes, long liveBytes, long compactions, long reclaimed) {
+            this.entries = entries;
+            this.segments = segments;
+            this.bytes = bytes;
+            this.liveBytes = liveBytes;
+            this.compactions = compactions;
+            this.reclaimed = reclaimed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("entries=%d segments=%d bytes=%d live=%d compactions=%d reclaimed=%d",
+                    entries, segments, bytes, liveBytes, compactions, reclaimed);
+        }
+    }
+}
@@ -5,7 +5,7 @@ import java.net.*;
 
 /**
  * HTTP代理服务器的简单实现
- * 支持字符串类型的请求/响应体
+ * 请求/响应按字节转发，支持任意类型的请求/响应体
  * 支持GET/POST请求
  * 支持HTTP/1.0/1.1版本
  */
@@ -16,10 +16,24 @@ public class SimpleProxy implements Proxy,Runnable{
     protected String host;
     protected int port;
     protected String version;
-    protected PrintWriter serverOutput = null;
-    protected PrintWriter clientOutput = null;
-    protected BufferedReader serverInput = null;
-    protected BufferedReader clientInput = null;
+    protected HttpOutput serverOutput = null;
+    protected HttpOutput clientOutput = null;
+    protected HttpInput serverInput = null;
+    protected HttpInput clientInput = null;
+    protected boolean keepAlive; // 客户端连接是否可以继续使用
+    protected boolean upstreamReusable; // 上游连接是否可以归还连接池
+    protected boolean requestChunked; // 请求体是否使用分块编码
+    protected boolean responseChunked; // 上游的响应体是否使用分块编码
+    protected boolean clientChunked; // 是否以分块编码把响应体发送给客户端
+    protected final HeaderTable requestHeaders = new HeaderTable(); // 当前请求的首部，连接内复用
+    protected final HeaderTable responseHeaders = new HeaderTable(); // 当前响应的首部，连接内复用
+    protected String statusLine; // 当前响应的状态行
+    protected final Timings timings = new Timings(); // 当前请求各阶段的耗时
+    protected int status; // 返回给客户端的状态码
+    protected long responseBytes; // 返回给客户端的响应体字节数
+    protected boolean traceHeaders; // 本次请求是否跟踪首部
+    protected boolean traceBody; // 本次请求是否跟踪报文体
+    protected String clientAddress;
 
     public SimpleProxy(Socket clientSocket) {
         this.clientSocket = clientSocket;
@@ -27,47 +41,34 @@ public class SimpleProxy implements Proxy,Runnable{
 
     @Override
     public void run() {
-        try (BufferedReader clientInput = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter clientOutput = new PrintWriter(clientSocket.getOutputStream(), true))
+        try (HttpInput clientInput = new HttpInput(clientSocket.getInputStream());
+             HttpOutput clientOutput = new HttpOutput(clientSocket.getOutputStream()))
         {
             this.clientInput = clientInput;
             this.clientOutput = clientOutput;
-            // 读取服务端信息
-            getServerInfo();
-            if(method == null || (!method.equals("GET") && !method.equals("POST")))
-            {
-                return;
-            }
-            if(host == null ||port!=80)
-            {
-                return;
-            }
-            // 连接到目标服务器
-            System.out.println("=====连接到目标服务器: " + host + ":" + port + " =====");
-            try (Socket serverSocket = new Socket(host, port);
-                 PrintWriter serverOutput = new PrintWriter(serverSocket.getOutputStream(), true);
-                 BufferedReader serverInput = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()))) {
-
-                this.serverOutput = serverOutput;
-                this.serverInput = serverInput;
-                serverSocket.setSoTimeout(5000); // 设置5秒超时
-
-                // 发送请求头
-                int requestBodyLength = sendRequestHeader();
-
-                // 发送请求体（如果有的话）
-                if (requestBodyLength > 0) {
-                    sendRequestBody(requestBodyLength);
+            this.clientAddress = clientSocket.getInetAddress().getHostAddress();
+            int timeout = clientSocket.getSoTimeout();
+            // 循环处理同一连接上的请求，流水线请求按顺序处理，因此响应也按顺序返回
+            boolean first = true;
+            boolean next;
+            do {
+                // 等待下一个请求时使用空闲超时
+                if (!first) {
+                    clientSocket.setSoTimeout(KeepAlive.IDLE_TIMEOUT);
                 }
-
-                // 读取目标服务器响应并转发给客户端
-                int responseBodyLength = sendResponseHeader();
-
-                // 发送响应体（如果有的话）
-                if (responseBodyLength > 0) {
-                    sendResponseBody(responseBodyLength);
+                resetRequest();
+                // 读取服务端信息
+                getServerInfo();
+                clientSocket.setSoTimeout(timeout);
+                first = false;
+                try {
+                    next = processRequest();
+                    // 一个响应结束，确保全部发送给客户端
+                    clientOutput.flush();
+                } finally {
+                    logRequest();
                 }
-            }
+            } while (next);
         }
         catch(IOException ignored) {}
         finally {
@@ -77,19 +78,101 @@ public class SimpleProxy implements Proxy,Runnable{
         }
     }
 
+    // 清除上一个请求的信息
+    protected void resetRequest() {
+        method = null;
+        url = null;
+        host = null;
+        port = 0;
+        version = null;
+        keepAlive = false;
+        upstreamReusable = false;
+        requestChunked = false;
+        responseChunked = false;
+        clientChunked = false;
+        requestHeaders.clear();
+        responseHeaders.clear();
+        statusLine = null;
+        timings.reset();
+        status = 0;
+        responseBytes = 0;
+        traceHeaders = AccessLog.sampleHeaders();
+        traceBody = AccessLog.sampleBody();
+    }
+
+    // 请求结束时写入访问日志
+    protected void logRequest() {
+        if (method == null) {
+            return;
+        }
+        AccessLog.shared().log(new AccessLog.Entry(clientAddress, method, host, url, status, responseBytes,
+                AccessLog.CacheResult.NONE, timings));
+    }
+
+    // 处理一个请求
+    // 返回客户端连接是否可以继续处理下一个请求
+    protected boolean processRequest() throws IOException {
+        if(method == null || (!method.equals("GET") && !method.equals("POST")))
+        {
+            return false;
+        }
+        if(host == null ||port!=80)
+        {
+            return false;
+        }
+        // 从连接池获取到目标服务器的连接
+        Socket serverSocket = UpstreamPool.shared().acquire(host, port, timings);
+        boolean reusable = false;
+        try {
+            // 这里不关闭流，连接用完后归还连接池
+            HttpOutput serverOutput = new HttpOutput(serverSocket.getOutputStream());
+            HttpInput serverInput = new HttpInput(serverSocket.getInputStream());
+
+            this.serverOutput = serverOutput;
+            this.serverInput = serverInput;
+            serverSocket.setSoTimeout(5000); // 设置5秒超时
+
+            // 发送请求头
+            long requestBodyLength = sendRequestHeader();
+
+            // 发送请求体（如果有的话）
+            if (requestBodyLength > 0 || requestChunked) {
+                sendRequestBody(requestBodyLength);
+            }
+
+            // 读取目标服务器响应并转发给客户端
+            long responseBodyLength = sendResponseHeader();
+
+            // 发送响应体（如果有的话），-1 表示分块编码或以连接关闭结束
+            if (responseBodyLength != 0) {
+                sendResponseBody(responseBodyLength);
+            }
+            // 响应已经完整读取且没有多余的数据时，连接才能复用
+            reusable = upstreamReusable && !serverInput.ready();
+        } finally {
+            UpstreamPool.shared().release(host, port, serverSocket, reusable);
+        }
+        return keepAlive;
+    }
+
     //用于获取服务器的信息
     @Override
     public void getServerInfo() throws IOException {
         // 读取客户端请求
         String requestLine = null;
         try {
-            requestLine = clientInput.readLine();
+            // 跳过请求之间多余的空行
+            do {
+                requestLine = clientInput.readLine();
+            } while (requestLine != null && requestLine.isEmpty());
         } catch (SocketTimeoutException ignored) {}
         if (requestLine != null) {
+            timings.begin();
             String[] requestParts = requestLine.split(" ");
             method = requestParts[0]; // 请求方法
             url = requestParts[1]; // 请求 URL
             version = requestParts[2]; // HTTP 版本
+            keepAlive = KeepAlive.defaultFor(version);
 
             // 将 URL 转换为 URL 对象
             URL targetUrl = null;
@@ -111,113 +194,136 @@ public class SimpleProxy implements Proxy,Runnable{
     //用于发送请求头
     //返回请求体的长度
     @Override
-    public int sendRequestHeader() throws IOException {
+    public long sendRequestHeader() throws IOException {
         // 转发请求到目标服务器
-        System.out.println("----------RequestHeader----------");
         serverOutput.println(method + " " + url + " " + version);
-        System.out.println(method + " " + url + " " + version);
-
-        // 读取并转发请求头
-        String headerLine;
-        int RequestBodyLength = -1; // 默认请求体长度为-1
-        while ((headerLine = clientInput.readLine()) != null) {
-            serverOutput.println(headerLine);
-            System.out.println(headerLine);
-            serverOutput.flush(); // 确保立即发送到目标服务器
-            // 当读到空行时，说明请求头已经结束，可以开始读取请求体
-            if (headerLine.isEmpty()) {
-                break;
-            }
-            // 检查是否有 Content-Length 头部
-            if (headerLine.toLowerCase().startsWith("content-length:")) {
-                RequestBodyLength = Integer.parseInt(headerLine.split(": ")[1]);
+
+        // 读取请求头到首部表中，请求头不完整时客户端连接不能继续使用
+        if (!clientInput.readHeaders(requestHeaders)) {
+            keepAlive = false;
+        }
+        keepAlive = KeepAlive.update(keepAlive, requestHeaders);
+        // 转发请求头，连接管理首部由代理处理，不转发
+        for (int i = 0; i < requestHeaders.size(); i++) {
+            if (!KeepAlive.isConnectionHeader(requestHeaders.nameAt(i))) {
+                requestHeaders.writeLine(i, serverOutput);
             }
         }
-        System.out.println("----------End----------");
+        if (traceHeaders) {
+            AccessLog.shared().trace("request " + method + " " + url + " " + version + "\n" + requestHeaders);
+        }
+        // 与目标服务器保持连接，以便归还连接池
+        serverOutput.println(KeepAlive.header(true));
+        serverOutput.println();
+        serverOutput.flush(); // 确保立即发送到目标服务器
 
-        return RequestBodyLength;
+        // 分块编码的请求体原样按块转发，否则由 Content-Length 决定请求体长度，默认为-1
+        requestChunked = requestHeaders.hasToken(HeaderName.TRANSFER_ENCODING, "chunked");
+        return requestChunked ? -1 : requestHeaders.longValue(HeaderName.CONTENT_LENGTH);
     }
 
     // 用于发送请求体
     @Override
-    public void sendRequestBody(int RequestBodyLength) throws IOException {
+    public void sendRequestBody(long RequestBodyLength) throws IOException {
         // 读取并转发请求体
-        if (RequestBodyLength > 0) {
-            int totalBytesRead = 0; // 记录已读取的字节数
-            char[] buffer = new char[4096]; // 用于读取响应体的缓冲区
-            int bytesRead;
-
-            System.out.println("----------RequestBody----------");
-            // 继续读取，直到读取到的字节数大于或等于 Content-Length
-            while (totalBytesRead < RequestBodyLength
-                    && (bytesRead = clientInput.read(buffer, 0,
-                    Math.min(buffer.length, RequestBodyLength - totalBytesRead))) != -1)
-            {
-                serverOutput.print(new String(buffer, 0, bytesRead)); // 转发读取的内容
-                serverOutput.flush(); // 确保立即发送到服务端
-                System.out.print(new String(buffer, 0, bytesRead)); // 打印到控制台
-                totalBytesRead += bytesRead; // 更新已读取的字节数
+        if (RequestBodyLength > 0 || requestChunked) {
+            // 按字节原样转发，直到读取到 Content-Length 个字节或最后一个块
+            AccessLog.BodySample sample = traceBody ? new AccessLog.BodySample(null) : null;
+            long totalBytesRead = BodyRelay.relay(clientInput, serverOutput, requestChunked ? -1 : RequestBodyLength,
+                    requestChunked, requestChunked, sample);
+            if (sample != null) {
+                AccessLog.shared().trace(sample.describe("request " + url));
+            }
+            // 请求体不完整时不能继续使用客户端连接和上游连接
+            if (totalBytesRead < 0) {
+                keepAlive = false;
+                upstreamReusable = false;
             }
-            System.out.println("EOF");
-            System.out.println("----------End----------");
         }
     }
 
 
     //用于发送响应头
-    //返回响应体的长度
-    public int sendResponseHeader() throws IOException {
-        // 读取目标服务器响应并转发给客户端
-        String responseLine;
-        int ResponseBodyLength = -1; // 默认响应体长度为-1
-        System.out.println("----------ResponseHeader----------");
-        // 读取并转发响应头
-        while ((responseLine = serverInput.readLine()) != null) {
-            clientOutput.println(responseLine);
-            System.out.println(responseLine);
-            clientOutput.flush(); // 确保立即发送到客户端
-            // 当读到换行符时，说明响应头已经结束，可以开始读取响应体
-            if (responseLine.isEmpty()) {
-                break;
+    //返回响应体的长度，0 表示没有响应体，-1 表示分块编码或以连接关闭结束
+    public long sendResponseHeader() throws IOException {
+        // 读取目标服务器响应，先保存到首部表中，确定响应体的边界后再转发给客户端
+        long start = System.nanoTime();
+        statusLine = serverInput.readLine();
+        boolean complete = statusLine != null && serverInput.readHeaders(responseHeaders);
+        timings.add(Timings.Phase.UPSTREAM, System.nanoTime() - start);
+        if (!complete) {
+            // 上游没有返回完整的响应头就关闭了连接
+            keepAlive = false;
+            upstreamReusable = false;
+            return 0;
+        }
+        if (traceHeaders) {
+            AccessLog.shared().trace("response " + url + "\n" + statusLine + "\n" + responseHeaders);
+        }
+        status = KeepAlive.statusCode(statusLine);
+        upstreamReusable = KeepAlive.update(KeepAlive.defaultFor(statusLine.split(" ", 2)[0]), responseHeaders);
+        responseChunked = responseHeaders.hasToken(HeaderName.TRANSFER_ENCODING, "chunked");
+        long ResponseBodyLength = responseHeaders.longValue(HeaderName.CONTENT_LENGTH); // 默认响应体长度为-1
+
+        boolean bodyless = KeepAlive.isBodyless(method, statusLine);
+        if (bodyless) {
+            ResponseBodyLength = 0; // 没有响应体
+            responseChunked = false;
+        } else if (responseChunked) {
+            ResponseBodyLength = -1; // 分块编码优先于 Content-Length
+        }
+        // 没有 Content-Length 的响应体以分块编码或连接关闭结束
+        boolean streaming = !bodyless && ResponseBodyLength < 0;
+        if (streaming) {
+            if (!responseChunked) {
+                upstreamReusable = false; // 以连接关闭结束，上游连接不能复用
             }
-            String[] headerParts = responseLine.split(": ", 2); // 只分割成两个部分
-            if (headerParts[0].equalsIgnoreCase("Content-Length")) {
-                ResponseBodyLength = Integer.parseInt(headerParts[1]);
+            // HTTP/1.1 客户端以分块编码接收，客户端连接可以继续使用；HTTP/1.0 客户端只能以关闭连接结束
+            clientChunked = "HTTP/1.1".equals(version);
+            if (!clientChunked) {
+                keepAlive = false;
             }
         }
-        System.out.println("----------End----------");
+        clientOutput.println(statusLine);
+        for (int i = 0; i < responseHeaders.size(); i++) {
+            HeaderName name = responseHeaders.nameAt(i);
+            // 连接管理首部由代理处理，不转发
+            if (KeepAlive.isConnectionHeader(name)) {
+                continue;
+            }
+            if (streaming && (name == HeaderName.CONTENT_LENGTH || (!clientChunked && name == HeaderName.TRANSFER_ENCODING))) {
+                continue;
+            }
+            responseHeaders.writeLine(i, clientOutput);
+        }
+        if (clientChunked && !responseChunked) {
+            clientOutput.println("Transfer-Encoding: chunked");
+        }
+        clientOutput.println(KeepAlive.header(keepAlive));
+        clientOutput.println();
+        clientOutput.flush(); // 确保立即发送到客户端
         return ResponseBodyLength;
     }
 
     //用于发送响应体
     @Override
-    public void sendResponseBody(int ResponseBodyLength) throws IOException {
-        // 读取并转发响应体
-        if (ResponseBodyLength > 0) {
-            int totalBytesRead = 0; // 记录已读取的字节数
-            char[] buffer = new char[4096]; // 用于读取响应体的缓冲区
-            int bytesRead;
-
-            System.out.println("----------ResponseBody----------");
-            // 继续读取，直到读取到的字节数大于或等于 Content-Length
-            while (totalBytesRead < ResponseBodyLength
-                    && (bytesRead = serverInput.read(buffer, 0,
-                    Math.min(buffer.length, ResponseBodyLength - totalBytesRead))) != -1)
-            {
-                clientOutput.print(new String(buffer, 0, bytesRead)); // 转发读取的内容
-                clientOutput.flush(); // 确保立即发送到客户端
-                System.out.print(new String(buffer, 0, bytesRead)); // 打印到控制台
-                totalBytesRead += bytesRead; // 更新已读取的字节数
+    public void sendResponseBody(long ResponseBodyLength) throws IOException {
+        // 读取并转发响应体，数据到达后立即转发，不保存整个响应体
+        if (ResponseBodyLength != 0) {
+            long start = System.nanoTime();
+            AccessLog.BodySample sample = traceBody ? new AccessLog.BodySample(null) : null;
+            long totalBytesRead = BodyRelay.relay(serverInput, clientOutput, ResponseBodyLength,
+                    responseChunked, clientChunked, sample);
+            timings.add(Timings.Phase.TRANSFER, System.nanoTime() - start);
+            responseBytes = totalBytesRead;
+            if (sample != null) {
+                AccessLog.shared().trace(sample.describe("response " + url));
+            }
+            // 响应体不完整时不能继续使用客户端连接和上游连接
+            if (totalBytesRead < 0) {
+                keepAlive = false;
+                upstreamReusable = false;
             }
-            System.out.println("EOF");
-            System.out.println("----------End----------");
         }
     }
-
-
 }
-
-
-
-
-
@@ -0,0 +1,366 @@
+package proxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 并发缓存未命中的合并（single-flight）
+ * 多个客户端同时请求同一个未缓存的 URL 时，只有第一个请求（领导者）访问目标服务器并写入缓存，
+ * 其他请求（跟随者）等待领导者的响应头，然后随着数据到达转发同一份响应体，不再各自访问目标服务器
+ * 跟随者等待响应头的时间有上限，超时或领导者失败（响应不能共享、上游出错）时跟随者自己访问目标服务器
+ */
+public class SingleFlight {
+    public static final long WAIT = Long.getLong("proxy.cache.coalesceWait", 5000); // 跟随者最多等待响应头5秒
+    public static final long STALL = 30000; // 响应体30秒没有新数据视为领导者失败
+
+    private static final SingleFlight SHARED = new SingleFlight();
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder followers = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     * @return 共享的实例
+     */
+    public static SingleFlight shared() {
+        return SHARED;
+    }
+
+    /**
+     * 成为指定缓存的领导者
+     * @param key 缓存键
+     * @return 新的获取过程，已经有请求正在获取时返回 null
+     */
+    public Flight lead(String key) {
+        Flight flight = new Flight(key);
+        if (flights.putIfAbsent(key, flight) != null) {
+            return null;
+        }
+        leaders.increment();
+        return flight;
+    }
+
+    /**
+     * 加入正在进行的获取
+     * @param key 缓存键
+     * @return 正在进行的获取过程，没有时返回 null
+     */
+    public Flight follow(String key) {
+        Flight flight = flights.get(key);
+        if (flight != null) {
+            followers.increment();
+        }
+        return flight;
+    }
+
+    // 获取结束，之后的请求查找缓存或成为新的领导者
+    private void end(Flight flight) {
+        flights.remove(flight.key, flight);
+    }
+
+    /**
+     * 记录一次跟随失败，跟随者自己访问目标服务器
+     */
+    public void fallback() {
+        fallbacks.increment();
+    }
+
+    /**
+     * @return 统计信息
+     */
+    public Stats stats() {
+        return new Stats(leaders.sum(), followers.sum(), fallbacks.sum(), flights.size());
+    }
+
+    /**
+     * 合并的统计信息
+     */
+    public static class Stats {
+        public final long leaders;   // 访问目标服务器的领导者数
+        public final long followers; // 加入已有获取的跟随者数
+        public final long fallbacks; // 跟随失败后自己访问目标服务器的次数
+        public final int inFlight;   // 正在进行的获取数
+
+        Stats(long leaders, long followers, long fallbacks, int inFlight) {
+            this.leaders = leaders;
+            this.followers = followers;
+            this.fallbacks = fallbacks;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("leaders=%d followers=%d fallbacks=%d inFlight=%d", leaders, followers, fallbacks, inFlight);
+        }
+    }
+
+    /**
+     * 一个 URL 的获取过程
+     * 领导者把响应头和解码后的响应体写入其中，同时作为缓存的副本（超过 CacheStore.MAX_BODY 后不再保存）；
+     * 跟随者按偏移读取，可以在任何时刻加入，都从响应体的开头读起
+     * 阻塞引擎的跟随者在条件变量上等待，NIO 引擎的跟随者注册回调，数据到达时回到自己的事件循环继续发送
+     */
+    public static class Flight extends BodyRelay.Capture {
+        private static final int PENDING = 0;
+        private static final int STREAMING = 1;
+        private static final int DONE = 2;
+        private static final int FAILED = 3;
+
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final List<Runnable> listeners = new ArrayList<Runnable>();
+        private int state = PENDING;
+        private String statusLine;
+        private List<String> headers;
+        private long contentLength;
+
+        Flight(String key) {
+            super(CacheStore.MAX_BODY);
+            this.key = key;
+        }
+
+        // ---------- 领导者 ----------
+
+        /**
+         * 发布响应头，之后跟随者可以开始发送
+         * @param statusLine 状态行
+         * @param headers 响应首部，不包括连接管理首部、Content-Length 和 Transfer-Encoding
+         * @param contentLength 响应体长度，-1 表示未知（分块编码或以连接关闭结束）
+         */
+        public void publish(String statusLine, List<String> headers, long contentLength) {
+            lock.lock();
+            try {
+                if (state != PENDING) {
+                    return;
+                }
+                this.statusLine = statusLine;
+                this.headers = headers;
+                this.contentLength = contentLength;
+                state = STREAMING;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            notifyListeners();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            lock.lock();
+            try {
+                super.write(b, off, len);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            notifyListeners();
+        }
+
+        /**
+         * 响应体已经完整接收并写入缓存
+         */
+        public void complete() {
+            finish(DONE);
+        }
+
+        /**
+         * 领导者失败或响应不能共享，等待中的跟随者自己访问目标服务器，已经开始发送的跟随者中断连接
+         */
+        public void fail() {
+            finish(FAILED);
+        }
+
+        private void finish(int result) {
+            lock.lock();
+            try {
+                if (state == DONE || state == FAILED) {
+                    return;
+                }
+                state = result;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            SHARED.end(this);
+            notifyListeners();
+        }
+
+        // ---------- 跟随者 ----------
+
+        /**
+         * 等待响应头，最多等待 WAIT 毫秒
+         * @return 响应头已经发布时返回 true，超时或领导者失败时返回 false
+         */
+        public boolean awaitHeaders() throws InterruptedException {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(WAIT);
+            lock.lock();
+            try {
+                while (state == PENDING && remaining > 0) {
+                    remaining = changed.awaitNanos(remaining);
+                }
+                return statusLine != null && state != FAILED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return 响应头是否已经发布；领导者失败时返回 false
+         */
+        public boolean ready() {
+            lock.lock();
+            try {
+                return statusLine != null && state != FAILED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return 领导者是否已经失败
+         */
+        public boolean failed() {
+            lock.lock();
+            try {
+                return state == FAILED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return 状态行
+         */
+        public String statusLine() {
+            return statusLine;
+        }
+
+        /**
+         * @return 响应首部，不包括连接管理首部、Content-Length 和 Transfer-Encoding
+         */
+        public List<String> headers() {
+            return headers;
+        }
+
+        /**
+         * @return 响应体长度，-1 表示未知
+         */
+        public long contentLength() {
+            return contentLength;
+        }
+
+        /**
+         * 从指定偏移读取响应体，没有新数据时等待
+         * @param offset 偏移
+         * @param buffer 目标缓冲区
+         * @return 读取的字节数，响应体结束时返回-1
+         * @throws IOException 领导者失败、响应体超过缓存上限或长时间没有新数据
+         */
+        public int read(long offset, byte[] buffer) throws IOException {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(STALL);
+            lock.lock();
+            try {
+                while (true) {
+                    int n = copy(offset, buffer, 0, buffer.length);
+                    if (n != 0) {
+                        return n;
+                    }
+                    if (remaining <= 0) {
+                        throw new IOException("等待响应体超时");
+                    }
+                    try {
+                        remaining = changed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("等待响应体时被中断");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 不等待地读取已经到达的响应体，用于 NIO 引擎
+         * @param offset 偏移
+         * @param buffer 目标缓冲区
+         * @param off 目标缓冲区的起始位置
+         * @param len 最多读取的字节数
+         * @return 读取的字节数，暂时没有数据时返回0，响应体结束时返回-1
+         * @throws IOException 领导者失败或响应体超过缓存上限
+         */
+        public int poll(long offset, byte[] buffer, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                return copy(offset, buffer, off, len);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 调用时需要持有锁
+        private int copy(long offset, byte[] buffer, int off, int len) throws IOException {
+            if (state == FAILED || overflowed()) {
+                throw new IOException("领导者获取失败");
+            }
+            if (offset < count) {
+                int n = (int) Math.min(len, count - offset);
+                System.arraycopy(buf, (int) offset, buffer, off, n);
+                return n;
+            }
+            return state == DONE ? -1 : 0;
+        }
+
+        /**
+         * 注册回调，响应头发布、新数据到达或获取结束时调用
+         * 回调在领导者的线程中执行，不能阻塞
+         * @param listener 回调
+         */
+        public void listen(Runnable listener) {
+            lock.lock();
+            try {
+                listeners.add(listener);
+            } finally {
+                lock.unlock();
+            }
+            listener.run(); // 注册之前可能已经有数据
+        }
+
+        /**
+         * 取消回调，例如跟随者的连接已经关闭
+         * @param listener 回调
+         */
+        public void unlisten(Runnable listener) {
+            lock.lock();
+            try {
+                listeners.remove(listener);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void notifyListeners() {
+            Runnable[] snapshot;
+            lock.lock();
+            try {
+                if (listeners.isEmpty()) {
+                    return;
+                }
+                snapshot = listeners.toArray(new Runnable[0]);
+            } finally {
+                lock.unlock();
+            }
+            for (Runnable listener : snapshot) {
+                listener.run();
+            }
+        }
+    }
+}
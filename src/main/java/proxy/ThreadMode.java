@@ -0,0 +1,73 @@
+package proxy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 代理服务器的线程模式
+ * PLATFORM：固定大小的平台线程池，隧道每个方向一个平台线程（原有行为）
+ * VIRTUAL：每个连接、每个隧道方向各一个虚拟线程，不再受线程池大小限制
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    // 当前使用的线程模式，由 ProxyServer 启动时设置
+    private static volatile ThreadMode current = PLATFORM;
+
+    /**
+     * 根据名称获取线程模式，忽略大小写，无法识别时使用 PLATFORM
+     * @param name 模式名称
+     * @return 线程模式
+     */
+    public static ThreadMode of(String name) {
+        if (name != null) {
+            for (ThreadMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return PLATFORM;
+    }
+
+    /**
+     * @return 当前使用的线程模式
+     */
+    public static ThreadMode current() {
+        return current;
+    }
+
+    /**
+     * 设置当前使用的线程模式
+     * @param mode 线程模式
+     */
+    public static void use(ThreadMode mode) {
+        current = mode;
+    }
+
+    /**
+     * 创建处理客户端连接的线程池
+     * @param poolSize 平台线程池的大小，虚拟线程模式下忽略
+     * @return 线程池
+     */
+    public ExecutorService newExecutor(int poolSize) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("proxy-", 0).factory());
+        }
+        return Executors.newFixedThreadPool(poolSize);
+    }
+
+    /**
+     * 启动一个新线程执行任务，例如 CONNECT 隧道的单向转发
+     * @param name 线程名
+     * @param task 任务
+     * @return 已启动的线程
+     */
+    public Thread start(String name, Runnable task) {
+        if (this == VIRTUAL) {
+            return Thread.ofVirtual().name(name).start(task);
+        }
+        return Thread.ofPlatform().name(name).start(task);
+    }
+}
@@ -0,0 +1,79 @@
+package proxy;
+
+/**
+ * 一个请求在各个阶段的耗时
+ * 每个连接持有一个实例，每个请求开始时重置
+ */
+public class Timings {
+    /**
+     * 请求的各个阶段
+     */
+    public enum Phase {
+        DNS,      // 域名解析
+        CONNECT,  // 建立上游连接
+        UPSTREAM, // 等待上游的响应头
+        TRANSFER  // 转发响应体
+    }
+
+    private final long[] nanos = new long[Phase.values().length];
+    private long start; // 请求开始的时间（System.nanoTime）
+
+    /**
+     * 累加某个阶段的耗时
+     * @param phase 阶段
+     * @param elapsedNanos 耗时（纳秒）
+     */
+    public void add(Phase phase, long elapsedNanos) {
+        nanos[phase.ordinal()] += elapsedNanos;
+    }
+
+    /**
+     * @param phase 阶段
+     * @return 该阶段的耗时（纳秒）
+     */
+    public long nanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * 记录请求开始的时间，读到请求行时调用
+     */
+    public void begin() {
+        start = System.nanoTime();
+    }
+
+    /**
+     * @return 从请求开始到现在的耗时（纳秒），没有开始时返回0
+     */
+    public long elapsed() {
+        return start == 0 ? 0 : System.nanoTime() - start;
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(nanos, 0);
+        start = 0;
+    }
+
+    /**
+     * @return 各阶段耗时的副本，用于在其他线程中格式化
+     */
+    public Timings copy() {
+        Timings copy = new Timings();
+        System.arraycopy(nanos, 0, copy.nanos, 0, nanos.length);
+        copy.start = start;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(phase.name().toLowerCase()).append('=')
+                    .append(String.format("%.1fms", nanos[phase.ordinal()] / 1e6));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,185 @@
+package proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CONNECT 隧道的双向转发
+ * 直接在 SocketChannel 之间通过池化的直接缓冲区转发，不经过 Java 堆，也不需要逐次 flush
+ * 缓冲区大小根据流量自动调整：连续读满时扩大，长时间只读到少量数据时缩小
+ * 一端关闭输出后只关闭另一端的输出（半关闭），另一个方向继续转发直到结束
+ * 隧道不使用读超时，空闲超过 IDLE_TIMEOUT 的隧道由后台线程关闭
+ */
+public class TunnelRelay {
+    public static final long IDLE_TIMEOUT = Long.getLong("proxy.tunnel.idleTimeout", 300000); // 隧道空闲超时时间为5分钟
+    private static final int INITIAL_SIZE = 16 * 1024;
+    private static final int GROW_AFTER = 2;    // 连续读满2次后扩大缓冲区
+    private static final int SHRINK_AFTER = 16; // 连续16次读到不足1/4后缩小缓冲区
+
+    private static final Set<TunnelRelay> ACTIVE = ConcurrentHashMap.newKeySet();
+    private static final LongAdder BYTES = new LongAdder();
+
+    static {
+        // 后台定期关闭空闲的隧道
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tunnel-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            for (TunnelRelay relay : ACTIVE) {
+                if (now - relay.lastActive > IDLE_TIMEOUT) {
+                    relay.abort();
+                }
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+
+    private final Socket client;
+    private final Socket upstream;
+    private final byte[] pending;
+    private final AtomicBoolean aborted = new AtomicBoolean();
+    private final LongAdder bytes = new LongAdder(); // 本隧道转发的字节数
+    private volatile long lastActive = System.currentTimeMillis();
+
+    /**
+     * 构造函数
+     * @param client 客户端连接
+     * @param upstream 目标服务器连接
+     */
+    public TunnelRelay(Socket client, Socket upstream) {
+        this(client, upstream, new byte[0]);
+    }
+
+    /**
+     * 构造函数
+     * @param client 客户端连接
+     * @param upstream 目标服务器连接
+     * @param pending 已经从客户端读入、需要先发送给目标服务器的数据
+     */
+    public TunnelRelay(Socket client, Socket upstream, byte[] pending) {
+        this.client = client;
+        this.upstream = upstream;
+        this.pending = pending;
+    }
+
+    /**
+     * @return 所有隧道累计转发的字节数
+     */
+    public static long bytesRelayed() {
+        return BYTES.sum();
+    }
+
+    /**
+     * @return 本隧道两个方向累计转发的字节数
+     */
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * 双向转发直到两个方向都结束
+     * 客户端到上游的方向在新线程中执行，上游到客户端的方向在当前线程中执行
+     * 返回后由调用者关闭两个连接
+     * @param name 线程名称的后缀，通常为目标主机
+     */
+    public void run(String name) throws IOException, InterruptedException {
+        // 隧道由空闲检查控制超时，不使用读超时
+        client.setSoTimeout(0);
+        upstream.setSoTimeout(0);
+        ACTIVE.add(this);
+        try {
+            if (pending.length > 0) {
+                OutputStream out = upstream.getOutputStream();
+                out.write(pending);
+                out.flush();
+                BYTES.add(pending.length);
+                bytes.add(pending.length);
+            }
+            Thread up = ThreadMode.current().start("tunnel-up-" + name, () -> pump(client, upstream));
+            pump(upstream, client);
+            up.join();
+        } finally {
+            ACTIVE.remove(this);
+        }
+    }
+
+    // 单向转发，读到结束后关闭目标的输出，出错时关闭整个隧道
+    private void pump(Socket from, Socket to) {
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer = pool.acquire(INITIAL_SIZE);
+        int full = 0;
+        int small = 0;
+        try {
+            ReadableByteChannel in = from.getChannel() != null ? from.getChannel() : Channels.newChannel(from.getInputStream());
+            WritableByteChannel out = to.getChannel() != null ? to.getChannel() : Channels.newChannel(to.getOutputStream());
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                lastActive = System.currentTimeMillis();
+                BYTES.add(n);
+                bytes.add(n);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                int capacity = buffer.capacity();
+                int size = capacity;
+                if (n == capacity) {
+                    small = 0;
+                    if (++full >= GROW_AFTER && capacity < pool.maxSize()) {
+                        size = capacity * 2;
+                    }
+                } else if (n < capacity / 4) {
+                    full = 0;
+                    if (++small >= SHRINK_AFTER && capacity > pool.minSize()) {
+                        size = capacity / 2;
+                    }
+                } else {
+                    full = 0;
+                    small = 0;
+                }
+                if (size != capacity) {
+                    pool.release(buffer);
+                    buffer = pool.acquire(size);
+                    full = 0;
+                    small = 0;
+                } else {
+                    buffer.clear();
+                }
+            }
+            // 半关闭：通知另一端数据已经发送完毕
+            if (!to.isClosed()) {
+                to.shutdownOutput();
+            }
+        } catch (IOException e) {
+            abort();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    // 关闭两个连接，阻塞在读写上的转发随即结束
+    private void abort() {
+        if (aborted.compareAndSet(false, true)) {
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+            try {
+                upstream.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 上游连接池
+ * 按 host:port 保存空闲的上游连接，同一目标服务器的多个请求复用同一条 TCP 连接，
+ * 省去每次请求的 DNS 解析、TCP 握手和慢启动；新建连接时通过 DnsCache 解析域名
+ * 每个目标服务器的连接数有上限，达到上限时在限定时间内等待其他请求归还连接
+ * 使用 ReentrantLock 而不是 synchronized，虚拟线程等待时不会固定载体线程
+ */
+public class UpstreamPool {
+    public static final int MAX_PER_HOST = Integer.getInteger("proxy.pool.maxPerHost", 32); // 每个目标服务器的最大连接数
+    public static final long IDLE_TIMEOUT = Long.getLong("proxy.pool.idleTimeout", 5000); // 空闲连接保留5秒
+    public static final long MAX_WAIT = Long.getLong("proxy.pool.maxWait", 10000); // 等待可用连接最多10秒
+    public static final int CONNECT_TIMEOUT = 10000; // 建立连接的超时时间为10秒
+
+    private static final UpstreamPool SHARED = new UpstreamPool(MAX_PER_HOST, IDLE_TIMEOUT, MAX_WAIT);
+
+    private final int maxPerHost;
+    private final long idleTimeout;
+    private final long maxWait;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, HostPool> pools = new HashMap<String, HostPool>();
+
+    // 统计信息
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // 一个目标服务器的连接
+    private static class HostPool {
+        final ArrayDeque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+        final Condition available;
+        int leased; // 正在使用的连接数
+
+        HostPool(Condition available) {
+            this.available = available;
+        }
+    }
+
+    // 空闲连接及其归还时间
+    private static class IdleConnection {
+        final Socket socket;
+        final long since;
+
+        IdleConnection(Socket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+
+    /**
+     * 构造函数
+     * @param maxPerHost 每个目标服务器的最大连接数
+     * @param idleTimeout 空闲连接的保留时间（毫秒）
+     * @param maxWait 等待可用连接的最长时间（毫秒）
+     */
+    public UpstreamPool(int maxPerHost, long idleTimeout, long maxWait) {
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        this.maxWait = maxWait;
+        // 后台定期清理超时的空闲连接
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upstream-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return 所有代理共用的连接池
+     */
+    public static UpstreamPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * 建立一条不属于连接池的新连接，例如 CONNECT 隧道
+     * 连接通过 SocketChannel 建立，既可以使用 Socket 的流，也可以直接使用通道
+     * @param host 目标主机
+     * @param port 目标端口
+     * @return 已连接的 Socket
+     */
+    public static Socket open(String host, int port) throws IOException {
+        return open(host, port, null);
+    }
+
+    /**
+     * 建立一条不属于连接池的新连接，并记录域名解析和建立连接的耗时
+     * 域名通过 DnsCache 解析，依次尝试解析得到的每个地址
+     * @param host 目标主机
+     * @param port 目标端口
+     * @param timings 请求的耗时记录，可以为 null
+     * @return 已连接的 Socket
+     */
+    public static Socket open(String host, int port, Timings timings) throws IOException {
+        InetAddress[] addresses = DnsCache.shared().resolve(host, timings);
+        long start = System.nanoTime();
+        IOException failure = null;
+        try {
+            for (InetAddress address : addresses) {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.socket().connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+                    return channel.socket();
+                } catch (IOException e) {
+                    channel.close();
+                    failure = e;
+                } catch (RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+        } finally {
+            if (timings != null) {
+                timings.add(Timings.Phase.CONNECT, System.nanoTime() - start);
+            }
+        }
+        throw failure != null ? failure : new IOException("没有可用的地址: " + host);
+    }
+
+    /**
+     * 获取一条到目标服务器的连接，优先复用空闲连接
+     * 使用完毕后必须调用 release 归还
+     * @param host 目标主机
+     * @param port 目标端口
+     * @return 已连接的 Socket
+     */
+    public Socket acquire(String host, int port) throws IOException {
+        return acquire(host, port, null);
+    }
+
+    /**
+     * 获取一条到目标服务器的连接，新建连接时记录域名解析和建立连接的耗时
+     * @param host 目标主机
+     * @param port 目标端口
+     * @param timings 请求的耗时记录，可以为 null
+     * @return 已连接的 Socket
+     */
+    public Socket acquire(String host, int port, Timings timings) throws IOException {
+        return acquire(host, port, timings, false);
+    }
+
+    /**
+     * 获取一条到目标服务器的连接
+     * 锁内只取得名额和候选的空闲连接，健康检查（系统调用）和新建连接都在锁外进行，不阻塞其他目标服务器的请求
+     * @param host 目标主机
+     * @param port 目标端口
+     * @param timings 请求的耗时记录，可以为 null
+     * @param fresh 为 true 时不使用空闲连接，例如复用的连接已经被上游关闭、需要重试时
+     * @return 已连接的 Socket
+     */
+    public Socket acquire(String host, int port, Timings timings, boolean fresh) throws IOException {
+        String key = host + ":" + port;
+        HostPool pool;
+        IdleConnection idle;
+        long waitStart = 0;
+        lock.lock();
+        try {
+            pool = pools.computeIfAbsent(key, k -> new HostPool(lock.newCondition()));
+            while (true) {
+                // 优先使用最近归还的连接，它最可能仍然有效
+                idle = fresh ? null : pool.idle.pollLast();
+                if (idle != null || pool.leased < maxPerHost) {
+                    pool.leased++;
+                    break;
+                }
+                // 已达到上限，等待其他请求归还连接
+                if (waitStart == 0) {
+                    waitStart = System.nanoTime();
+                    waits.increment();
+                }
+                long remaining = TimeUnit.MILLISECONDS.toNanos(maxWait) - (System.nanoTime() - waitStart);
+                if (remaining <= 0) {
+                    recordWait(waitStart);
+                    throw new IOException("等待上游连接超时: " + key);
+                }
+                try {
+                    pool.available.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("等待上游连接时被中断: " + key);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        recordWait(waitStart);
+        // 在锁外检查空闲连接，不健康的连接关闭后换下一条，名额保持不变
+        while (idle != null) {
+            if (isHealthy(idle)) {
+                hits.increment();
+                return idle.socket;
+            }
+            evictions.increment();
+            closeQuietly(idle.socket);
+            lock.lock();
+            try {
+                idle = pool.idle.pollLast();
+            } finally {
+                lock.unlock();
+            }
+        }
+        misses.increment();
+        // 在锁外建立新连接
+        try {
+            return open(host, port, timings);
+        } catch (IOException | RuntimeException e) {
+            lock.lock();
+            try {
+                pool.leased--;
+                pool.available.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 归还连接
+     * @param host 目标主机
+     * @param port 目标端口
+     * @param socket acquire 得到的连接
+     * @param reusable 上一个响应是否已经完整读取且上游允许复用，否则直接关闭连接
+     */
+    public void release(String host, int port, Socket socket, boolean reusable) {
+        String key = host + ":" + port;
+        lock.lock();
+        try {
+            HostPool pool = pools.get(key);
+            if (pool != null) {
+                pool.leased--;
+                if (reusable && !socket.isClosed()) {
+                    pool.idle.addLast(new IdleConnection(socket, System.currentTimeMillis()));
+                    socket = null;
+                }
+                pool.available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (socket != null) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return 当前的统计信息
+     */
+    public Stats stats() {
+        int leased = 0;
+        int idle = 0;
+        lock.lock();
+        try {
+            for (HostPool pool : pools.values()) {
+                leased += pool.leased;
+                idle += pool.idle.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Stats(hits.sum(), misses.sum(), waits.sum(), waitNanos.sum(), evictions.sum(), leased, idle);
+    }
+
+    private void recordWait(long waitStart) {
+        if (waitStart != 0) {
+            waitNanos.add(System.nanoTime() - waitStart);
+        }
+    }
+
+    // 检查空闲连接：未超时，且上游没有关闭连接或发送多余的数据
+    private boolean isHealthy(IdleConnection idle) {
+        if (System.currentTimeMillis() - idle.since > idleTimeout || idle.socket.isClosed()) {
+            return false;
+        }
+        SocketChannel channel = idle.socket.getChannel();
+        if (channel == null) {
+            return true;
+        }
+        try {
+            // 非阻塞地读一个字节，返回0说明连接正常，-1说明上游已经关闭
+            channel.configureBlocking(false);
+            int n = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return n == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // 关闭超时的空闲连接，并移除不再使用的目标服务器
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            Iterator<HostPool> iterator = pools.values().iterator();
+            while (iterator.hasNext()) {
+                HostPool pool = iterator.next();
+                IdleConnection idle;
+                while ((idle = pool.idle.peekFirst()) != null && now - idle.since > idleTimeout) {
+                    pool.idle.pollFirst();
+                    evictions.increment();
+                    closeQuietly(idle.socket);
+                }
+                if (pool.leased == 0 && pool.idle.isEmpty() && !lock.hasWaiters(pool.available)) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * 连接池的统计信息
+     */
+    public static class Stats {
+        public final long hits;       // 复用空闲连接的次数
+        public final long misses;     // 新建连接的次数
+        public final long waits;      // 因达到上限而等待的次数
+        public final long waitNanos;  // 等待的总时间
+        public final long evictions;  // 因超时或健康检查失败而关闭的空闲连接数
+        public final int leased;      // 正在使用的连接数
+        public final int idle;        // 空闲连接数
+
+        Stats(long hits, long misses, long waits, long waitNanos, long evictions, int leased, int idle) {
+            this.hits = hits;
+            this.misses = misses;
+            this.waits = waits;
+            this.waitNanos = waitNanos;
+            this.evictions = evictions;
+            this.leased = leased;
+            this.idle = idle;
+        }
+
+        /**
+         * @return 命中率，即复用连接占所有获取的比例
+         */
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        /**
+         * @return 每次等待的平均时间（毫秒）
+         */
+        public double averageWaitMillis() {
+            return waits == 0 ? 0 : waitNanos / 1e6 / waits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRate=%.2f waits=%d avgWait=%.1fms evictions=%d leased=%d idle=%d",
+                    hits, misses, hitRate(), waits, averageWaitMillis(), evictions, leased, idle);
+        }
+    }
+}